@@ -55,6 +55,10 @@ void Java_org_telegram_SQLite_SQLitePreparedStatement_reset(JNIEnv *env, jobject
     }
 }
 
+void Java_org_telegram_SQLite_SQLitePreparedStatement_clearBindings(JNIEnv *env, jobject object, jlong statementHandle) {
+    sqlite3_clear_bindings((sqlite3_stmt *) (intptr_t) statementHandle);
+}
+
 void Java_org_telegram_SQLite_SQLitePreparedStatement_finalize(JNIEnv *env, jobject object, jlong statementHandle) {
     sqlite3_finalize((sqlite3_stmt *) (intptr_t) statementHandle);
 }
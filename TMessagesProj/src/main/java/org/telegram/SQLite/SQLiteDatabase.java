@@ -12,13 +12,55 @@ import org.telegram.messenger.BuildVars;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.ApplicationLoader;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 public class SQLiteDatabase {
 
+	private static final int STATEMENT_CACHE_SIZE = 64;
+
+	public static class QueryStats {
+		public final String sql;
+		public final String sample;
+		public long count;
+		public long rows;
+		public long totalTime;
+		public long maxTime;
+
+		QueryStats(String sql, String sample) {
+			this.sql = sql;
+			this.sample = sample;
+		}
+
+		void onStep(long time, boolean row, boolean firstStep) {
+			if (firstStep) {
+				count++;
+			}
+			if (row) {
+				rows++;
+			}
+			totalTime += time;
+			if (time > maxTime) {
+				maxTime = time;
+			}
+		}
+	}
+
 	private final long sqliteHandle;
 
 	private boolean isOpen;
     private boolean inTransaction;
 
+	private final LinkedHashMap<String, SQLitePreparedStatement> statementCache = new LinkedHashMap<>(STATEMENT_CACHE_SIZE, 0.75f, true);
+	private boolean statementCacheEnabled = true;
+	private long statementCacheHits;
+	private long statementCacheMisses;
+
+	private HashMap<String, QueryStats> queryStats;
+
 	public long getSQLiteHandle() {
 		return sqliteHandle;
 	}
@@ -35,9 +77,180 @@ public class SQLiteDatabase {
 	}
 
     public SQLitePreparedStatement executeFast(String sql) throws SQLiteException {
-        return new SQLitePreparedStatement(this, sql, true);
+        return obtainStatement(sql);
     }
 
+	/*
+	 * Statements with bound parameters are returned to a per-database LRU cache on dispose() and
+	 * handed out again, reset and with cleared bindings, for the same SQL text. SQL with inlined
+	 * literals is practically never repeated, so it bypasses the cache and is finalized as before.
+	 * A statement that is currently in use is never in the cache, so nested use of the same SQL
+	 * simply prepares a second statement.
+	 */
+	private SQLitePreparedStatement obtainStatement(String sql) throws SQLiteException {
+		checkOpened();
+		SQLitePreparedStatement statement = null;
+		boolean cacheable = statementCacheEnabled && sql.indexOf('?') >= 0;
+		if (cacheable) {
+			synchronized (statementCache) {
+				statement = statementCache.remove(sql);
+				if (statement != null) {
+					statement.inCache = false;
+					statement.released = false;
+					statementCacheHits++;
+				} else {
+					statementCacheMisses++;
+				}
+			}
+		}
+		if (statement == null) {
+			statement = new SQLitePreparedStatement(this, sql, true);
+			statement.cacheable = cacheable;
+		}
+		statement.stats = queryStats != null ? getQueryStats(sql) : null;
+		return statement;
+	}
+
+	boolean recycleStatement(SQLitePreparedStatement statement) {
+		if (!statement.cacheable || !isOpen || !statement.resetForReuse()) {
+			return false;
+		}
+		SQLitePreparedStatement evicted = null;
+		synchronized (statementCache) {
+			if (statementCache.containsKey(statement.sql)) {
+				return false;
+			}
+			statement.inCache = true;
+			statementCache.put(statement.sql, statement);
+			if (statementCache.size() > STATEMENT_CACHE_SIZE) {
+				Iterator<SQLitePreparedStatement> iterator = statementCache.values().iterator();
+				evicted = iterator.next();
+				iterator.remove();
+				evicted.inCache = false;
+			}
+		}
+		if (evicted != null) {
+			evicted.finalizeQuery();
+		}
+		return true;
+	}
+
+	public void setStatementCacheEnabled(boolean enabled) {
+		statementCacheEnabled = enabled;
+		if (!enabled) {
+			clearStatementCache();
+		}
+	}
+
+	private void clearStatementCache() {
+		ArrayList<SQLitePreparedStatement> statements;
+		synchronized (statementCache) {
+			statements = new ArrayList<>(statementCache.values());
+			statementCache.clear();
+		}
+		for (int a = 0, N = statements.size(); a < N; a++) {
+			SQLitePreparedStatement statement = statements.get(a);
+			statement.inCache = false;
+			statement.finalizeQuery();
+		}
+	}
+
+	public void setProfilingEnabled(boolean enabled) {
+		if (enabled) {
+			if (queryStats == null) {
+				queryStats = new HashMap<>();
+			}
+		} else {
+			queryStats = null;
+		}
+	}
+
+	private static void appendParameter(StringBuilder builder) {
+		int length = builder.length();
+		if (length >= 2 && builder.charAt(length - 1) == ',' && builder.charAt(length - 2) == '?') {
+			builder.setLength(length - 1);
+		} else if (length >= 3 && builder.charAt(length - 1) == ' ' && builder.charAt(length - 2) == ',' && builder.charAt(length - 3) == '?') {
+			builder.setLength(length - 2);
+		} else {
+			builder.append('?');
+		}
+	}
+
+	private static String normalizeSql(String sql) {
+		StringBuilder builder = new StringBuilder(sql.length());
+		char prev = ' ';
+		for (int a = 0, N = sql.length(); a < N; a++) {
+			char c = sql.charAt(a);
+			if (c == '\'') {
+				int end = sql.indexOf('\'', a + 1);
+				a = end < 0 ? N : end;
+				appendParameter(builder);
+				prev = '?';
+			} else if (Character.isDigit(c) && !Character.isLetterOrDigit(prev) && prev != '_' || c == '-' && a + 1 < N && Character.isDigit(sql.charAt(a + 1)) && (prev == ',' || prev == '(' || prev == ' ' || prev == '=')) {
+				while (a + 1 < N && Character.isDigit(sql.charAt(a + 1))) {
+					a++;
+				}
+				appendParameter(builder);
+				prev = '?';
+			} else {
+				builder.append(c);
+				prev = c;
+			}
+		}
+		return builder.toString();
+	}
+
+	private QueryStats getQueryStats(String sql) {
+		HashMap<String, QueryStats> map = queryStats;
+		if (map == null) {
+			return null;
+		}
+		String key = normalizeSql(sql);
+		synchronized (map) {
+			QueryStats stats = map.get(key);
+			if (stats == null) {
+				stats = new QueryStats(key, sql);
+				map.put(key, stats);
+			}
+			return stats;
+		}
+	}
+
+	public ArrayList<QueryStats> getSlowestQueries(int count) {
+		HashMap<String, QueryStats> map = queryStats;
+		ArrayList<QueryStats> result = new ArrayList<>();
+		if (map == null) {
+			return result;
+		}
+		synchronized (map) {
+			result.addAll(map.values());
+		}
+		Collections.sort(result, (o1, o2) -> Long.compare(o2.totalTime, o1.totalTime));
+		while (result.size() > count) {
+			result.remove(result.size() - 1);
+		}
+		return result;
+	}
+
+	public String getProfileReport(int count, boolean explain) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("statement cache hits=").append(statementCacheHits).append(" misses=").append(statementCacheMisses).append('\n');
+		ArrayList<QueryStats> stats = getSlowestQueries(count);
+		for (int a = 0, N = stats.size(); a < N; a++) {
+			QueryStats query = stats.get(a);
+			builder.append(query.totalTime / 1000000).append("ms total, ").append(query.maxTime / 1000000).append("ms max, ");
+			builder.append(query.count).append(" runs, ").append(query.rows).append(" rows: ").append(query.sql).append('\n');
+			if (explain) {
+				try {
+					builder.append(explainQueryPlan(query.sample));
+				} catch (Exception e) {
+					builder.append("  explain failed: ").append(e.getMessage()).append('\n');
+				}
+			}
+		}
+		return builder.toString();
+	}
+
 	public Integer executeInt(String sql, Object... args) throws SQLiteException {
 		checkOpened();
 		SQLiteCursor cursor = queryFinalized(sql, args);
@@ -52,28 +265,34 @@ public class SQLiteDatabase {
 	}
 
 	public void explainQuery(String sql, Object... args) throws SQLiteException {
+		FileLog.d(explainQueryPlan(sql, args));
+	}
+
+	public String explainQueryPlan(String sql, Object... args) throws SQLiteException {
 		checkOpened();
 		SQLiteCursor cursor = new SQLitePreparedStatement(this, "EXPLAIN QUERY PLAN " + sql, true).query(args);
+		StringBuilder builder = new StringBuilder();
 		while (cursor.next()) {
 			int count = cursor.getColumnCount();
-			StringBuilder builder = new StringBuilder();
+			builder.append("EXPLAIN QUERY PLAN ");
 			for (int a = 0; a < count; a++) {
 			    builder.append(cursor.stringValue(a)).append(", ");
             }
-            FileLog.d("EXPLAIN QUERY PLAN " + builder.toString());
+			builder.append('\n');
 		}
 		cursor.dispose();
+		return builder.toString();
 	}
 
 	public SQLiteCursor queryFinalized(String sql, Object... args) throws SQLiteException {
-		checkOpened();
-		return new SQLitePreparedStatement(this, sql, true).query(args);
+		return obtainStatement(sql).query(args);
 	}
 
 	public void close() {
 		if (isOpen) {
 			try {
                 commitTransaction();
+				clearStatementCache();
 				closedb(sqliteHandle);
 			} catch (SQLiteException e) {
 				if (BuildVars.LOGS_ENABLED) {
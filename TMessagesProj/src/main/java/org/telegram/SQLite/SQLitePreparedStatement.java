@@ -20,6 +20,14 @@ public class SQLitePreparedStatement {
     private long sqliteStatementHandle;
     private boolean finalizeAfterQuery;
 
+    SQLiteDatabase database;
+    String sql;
+    boolean cacheable;
+    boolean inCache;
+    boolean released;
+    SQLiteDatabase.QueryStats stats;
+    private boolean stepped;
+
     //private static HashMap<SQLitePreparedStatement, String> hashMap;
 
     public long getStatementHandle() {
@@ -28,6 +36,8 @@ public class SQLitePreparedStatement {
 
     public SQLitePreparedStatement(SQLiteDatabase db, String sql, boolean finalize) throws SQLiteException {
         finalizeAfterQuery = finalize;
+        database = db;
+        this.sql = sql;
         sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
         /*if (BuildVars.DEBUG_VERSION) {
             if (hashMap == null) {
@@ -51,6 +61,7 @@ public class SQLitePreparedStatement {
         checkFinalized();
 
         reset(sqliteStatementHandle);
+        stepped = false;
 
         int i = 1;
         for (int a = 0; a < args.length; a++) {
@@ -75,33 +86,74 @@ public class SQLitePreparedStatement {
     }
 
     public int step() throws SQLiteException {
-        return step(sqliteStatementHandle);
+        if (stats == null) {
+            return step(sqliteStatementHandle);
+        }
+        long start = System.nanoTime();
+        int result = step(sqliteStatementHandle);
+        stats.onStep(System.nanoTime() - start, result == 0, !stepped);
+        stepped = true;
+        return result;
     }
 
     public SQLitePreparedStatement stepThis() throws SQLiteException {
-        step(sqliteStatementHandle);
+        step();
         return this;
     }
 
     public void requery() throws SQLiteException {
         checkFinalized();
         reset(sqliteStatementHandle);
+        stepped = false;
     }
 
+    /**
+     * Gives the statement back: a cacheable one goes to the statement cache, any other is finalized.
+     * The statement is marked as released either way, so disposing it again does nothing and it can't
+     * be used until the cache hands it out anew.
+     */
     public void dispose() {
         if (finalizeAfterQuery) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (database != null && database.recycleStatement(this)) {
+                return;
+            }
             finalizeQuery();
         }
     }
 
+    boolean resetForReuse() {
+        if (isFinalized) {
+            return false;
+        }
+        try {
+            reset(sqliteStatementHandle);
+            clearBindings(sqliteStatementHandle);
+            stepped = false;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     void checkFinalized() throws SQLiteException {
         if (isFinalized) {
             throw new SQLiteException("Prepared query finalized");
         }
+        if (released) {
+            throw new SQLiteException("Prepared query released");
+        }
     }
 
+    /**
+     * Does nothing for a statement that sits in the cache: it belongs to the cache now, which
+     * finalizes it itself on eviction or when the database is closed.
+     */
     public void finalizeQuery() {
-        if (isFinalized) {
+        if (isFinalized || inCache) {
             return;
         }
         try {
@@ -152,6 +204,7 @@ public class SQLitePreparedStatement {
     native void bindDouble(long statementHandle, int index, double value) throws SQLiteException;
     native void bindNull(long statementHandle, int index) throws SQLiteException;
     native void reset(long statementHandle) throws SQLiteException;
+    native void clearBindings(long statementHandle);
     native long prepare(long sqliteHandle, String sql) throws SQLiteException;
     native void finalize(long statementHandle) throws SQLiteException;
     native int step(long statementHandle) throws SQLiteException;
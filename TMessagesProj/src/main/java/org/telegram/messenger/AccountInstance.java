@@ -73,6 +73,10 @@ public class AccountInstance {
         return SecretChatHelper.getInstance(currentAccount);
     }
 
+    public DialogsSearchIndex getDialogsSearchIndex() {
+        return DialogsSearchIndex.getInstance(currentAccount);
+    }
+
     public StatsController getStatsController() {
         return StatsController.getInstance(currentAccount);
     }
@@ -64,6 +64,10 @@ public class BaseController {
         return parentAccountInstance.getSecretChatHelper();
     }
 
+    protected DialogsSearchIndex getDialogsSearchIndex() {
+        return parentAccountInstance.getDialogsSearchIndex();
+    }
+
     protected StatsController getStatsController() {
         return parentAccountInstance.getStatsController();
     }
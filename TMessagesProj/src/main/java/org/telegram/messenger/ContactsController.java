@@ -34,6 +34,7 @@ import org.telegram.tgnet.TLRPC;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ContactsController extends BaseController {
@@ -126,6 +127,34 @@ public class ContactsController extends BaseController {
             return getLetter(first_name, last_name);
         }
 
+        /**
+         * Hash of the names, the imported count and the phones with their deleted flags, i.e. of
+         * what the phone book cache stores for the contact apart from contact_id, which is assigned
+         * anew on every read. Never 0, so 0 can mark cached rows that were changed in place.
+         */
+        public long getFingerprint() {
+            long hash = 1125899906842597L;
+            hash = fingerprint(hash, first_name);
+            hash = fingerprint(hash, last_name);
+            hash = 31 * hash + imported;
+            for (int a = 0, size = phones.size(); a < size; a++) {
+                hash = fingerprint(hash, phones.get(a));
+                hash = fingerprint(hash, a < shortPhones.size() ? shortPhones.get(a) : null);
+                hash = 31 * hash + (a < phoneDeleted.size() ? phoneDeleted.get(a) : 0);
+            }
+            return hash != 0 ? hash : 1;
+        }
+
+        private static long fingerprint(long hash, String value) {
+            if (value == null) {
+                return 31 * hash;
+            }
+            for (int a = 0, N = value.length(); a < N; a++) {
+                hash = 31 * hash + value.charAt(a);
+            }
+            return 31 * hash + value.length();
+        }
+
         public static String getLetter(String first_name, String last_name) {
             String key;
             if (!TextUtils.isEmpty(first_name)) {
@@ -138,6 +167,12 @@ public class ContactsController extends BaseController {
         }
     }
 
+    /**
+     * Larger address books read all structured names and filter them by lookup key in memory, as
+     * the IN() list would run into the content provider's SQL length limits.
+     */
+    private static final int MAX_LOOKUP_KEYS_IN_QUERY = 500;
+
     private String[] projectionPhones = {
             ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY,
             ContactsContract.CommonDataKinds.Phone.NUMBER,
@@ -156,16 +191,20 @@ public class ContactsController extends BaseController {
     public HashMap<String, Contact> contactsBook = new HashMap<>();
     public HashMap<String, Contact> contactsBookSPhones = new HashMap<>();
     public ArrayList<Contact> phoneBookContacts = new ArrayList<>();
-    public HashMap<String, ArrayList<Object>> phoneBookSectionsDict = new HashMap<>();
-    public ArrayList<String> phoneBookSectionsArray = new ArrayList<>();
+    private ContactsSectionIndex<Object> phoneBookIndex = new ContactsSectionIndex<>();
+    public HashMap<String, ArrayList<Object>> phoneBookSectionsDict = phoneBookIndex.getSectionsDict();
+    public ArrayList<String> phoneBookSectionsArray = phoneBookIndex.getSortedSections();
 
-    public ArrayList<TLRPC.TL_contact> contacts = new ArrayList<>();
+    private ContactsSectionIndex<TLRPC.TL_contact> usersIndex = new ContactsSectionIndex<>();
+    private ContactsSectionIndex<TLRPC.TL_contact> usersMutualIndex = new ContactsSectionIndex<>();
+
+    public ArrayList<TLRPC.TL_contact> contacts = usersIndex.getItems();
     public ConcurrentHashMap<Integer, TLRPC.TL_contact> contactsDict = new ConcurrentHashMap<>(20, 1.0f, 2);
-    public HashMap<String, ArrayList<TLRPC.TL_contact>> usersSectionsDict = new HashMap<>();
-    public ArrayList<String> sortedUsersSectionsArray = new ArrayList<>();
+    public HashMap<String, ArrayList<TLRPC.TL_contact>> usersSectionsDict = usersIndex.getSectionsDict();
+    public ArrayList<String> sortedUsersSectionsArray = usersIndex.getSortedSections();
 
-    public HashMap<String, ArrayList<TLRPC.TL_contact>> usersMutualSectionsDict = new HashMap<>();
-    public ArrayList<String> sortedUsersMutualSectionsArray = new ArrayList<>();
+    public HashMap<String, ArrayList<TLRPC.TL_contact>> usersMutualSectionsDict = usersMutualIndex.getSectionsDict();
+    public ArrayList<String> sortedUsersMutualSectionsArray = usersMutualIndex.getSortedSections();
 
     public HashMap<String, TLRPC.TL_contact> contactsByPhone = new HashMap<>();
     public HashMap<String, TLRPC.TL_contact> contactsByShortPhone = new HashMap<>();
@@ -232,17 +271,13 @@ public class ContactsController extends BaseController {
         contactsBook.clear();
         contactsBookSPhones.clear();
         phoneBookContacts.clear();
-        contacts.clear();
+        usersIndex.clear();
+        usersMutualIndex.clear();
         contactsDict.clear();
-        usersSectionsDict.clear();
-        usersMutualSectionsDict.clear();
-        sortedUsersSectionsArray.clear();
-        sortedUsersMutualSectionsArray.clear();
         delayedContactsUpdate.clear();
         contactsByPhone.clear();
         contactsByShortPhone.clear();
-        phoneBookSectionsDict.clear();
-        phoneBookSectionsArray.clear();
+        phoneBookIndex.clear();
 
         loadingContacts = false;
         contactsSyncInProgress = false;
@@ -457,15 +492,11 @@ public class ContactsController extends BaseController {
                     getMessagesStorage().putCachedPhoneBook(new HashMap<>(), false, true);
                     getMessagesStorage().putContacts(new ArrayList<>(), true);
                     phoneBookContacts.clear();
-                    contacts.clear();
+                    usersIndex.clear();
+                    usersMutualIndex.clear();
                     contactsDict.clear();
-                    usersSectionsDict.clear();
-                    usersMutualSectionsDict.clear();
-                    sortedUsersSectionsArray.clear();
-                    phoneBookSectionsDict.clear();
-                    phoneBookSectionsArray.clear();
+                    phoneBookIndex.clear();
                     delayedContactsUpdate.clear();
-                    sortedUsersMutualSectionsArray.clear();
                     contactsByPhone.clear();
                     contactsByShortPhone.clear();
                     getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
@@ -567,7 +598,7 @@ public class ContactsController extends BaseController {
             ContentResolver cr = ApplicationLoader.applicationContext.getContentResolver();
 
             HashMap<String, Contact> shortContacts = new HashMap<>();
-            ArrayList<String> idsArr = new ArrayList<>();
+            LinkedHashSet<String> lookupKeys = new LinkedHashSet<>();
             pCur = cr.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projectionPhones, null, null, null);
 
             int lastContactId = 1;
@@ -599,17 +630,12 @@ public class ContactsController extends BaseController {
                         }
 
                         String lookup_key = pCur.getString(0);
-                        escaper.setLength(0);
-                        DatabaseUtils.appendEscapedSQLString(escaper, lookup_key);
-                        String key = escaper.toString();
 
                         Contact existingContact = shortContacts.get(shortNumber);
                         if (existingContact != null) {
                             if (!existingContact.isGoodProvider && !accountType.equals(existingContact.provider)) {
-                                escaper.setLength(0);
-                                DatabaseUtils.appendEscapedSQLString(escaper, existingContact.key);
-                                idsArr.remove(escaper.toString());
-                                idsArr.add(key);
+                                lookupKeys.remove(existingContact.key);
+                                lookupKeys.add(lookup_key);
                                 existingContact.key = lookup_key;
                                 existingContact.isGoodProvider = isGoodAccountType;
                                 existingContact.provider = accountType;
@@ -617,9 +643,7 @@ public class ContactsController extends BaseController {
                             continue;
                         }
 
-                        if (!idsArr.contains(key)) {
-                            idsArr.add(key);
-                        }
+                        lookupKeys.add(lookup_key);
 
                         int type = pCur.getInt(2);
                         Contact contact = contactsMap.get(lookup_key);
@@ -679,12 +703,23 @@ public class ContactsController extends BaseController {
                 }
                 pCur = null;
             }
-            String ids = TextUtils.join(",", idsArr);
-
-            pCur = cr.query(ContactsContract.Data.CONTENT_URI, projectionNames, ContactsContract.CommonDataKinds.StructuredName.LOOKUP_KEY + " IN (" + ids + ") AND " + ContactsContract.Data.MIMETYPE + " = '" + ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE + "'", null, null);
+            String selection = ContactsContract.Data.MIMETYPE + " = '" + ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE + "'";
+            if (lookupKeys.size() <= MAX_LOOKUP_KEYS_IN_QUERY) {
+                for (String lookup_key : lookupKeys) {
+                    if (escaper.length() != 0) {
+                        escaper.append(",");
+                    }
+                    DatabaseUtils.appendEscapedSQLString(escaper, lookup_key);
+                }
+                selection = ContactsContract.CommonDataKinds.StructuredName.LOOKUP_KEY + " IN (" + escaper + ") AND " + selection;
+            }
+            pCur = lookupKeys.isEmpty() ? null : cr.query(ContactsContract.Data.CONTENT_URI, projectionNames, selection, null, null);
             if (pCur != null) {
                 while (pCur.moveToNext()) {
                     String lookup_key = pCur.getString(0);
+                    if (!lookupKeys.contains(lookup_key)) {
+                        continue;
+                    }
                     String fname = pCur.getString(1);
                     String sname = pCur.getString(2);
                     String mname = pCur.getString(3);
@@ -872,9 +907,8 @@ public class ContactsController extends BaseController {
                 checkContactsInternal();
             }
             final HashMap<String, Contact> contactsMap = readContactsFromPhoneBook();
-            final HashMap<String, ArrayList<Object>> phoneBookSectionsDictFinal = new HashMap<>();
             final HashMap<String, Contact> phoneBookByShortPhonesFinal = new HashMap<>();
-            final ArrayList<String> phoneBookSectionsArrayFinal = new ArrayList<>();
+            final ArrayList<Contact> phoneBookContactsFinal = new ArrayList<>(contactsMap.size());
 
             for (HashMap.Entry<String, Contact> entry : contactsMap.entrySet()) {
                 Contact contact = entry.getValue();
@@ -882,15 +916,7 @@ public class ContactsController extends BaseController {
                     String phone = contact.shortPhones.get(a);
                     phoneBookByShortPhonesFinal.put(phone.substring(Math.max(0, phone.length() - 7)), contact);
                 }
-
-                String key = contact.getLetter();
-                ArrayList<Object> arrayList = phoneBookSectionsDictFinal.get(key);
-                if (arrayList == null) {
-                    arrayList = new ArrayList<>();
-                    phoneBookSectionsDictFinal.put(key, arrayList);
-                    phoneBookSectionsArrayFinal.add(key);
-                }
-                arrayList.add(contact);
+                phoneBookContactsFinal.add(contact);
             }
 
             final HashMap<String, Contact> contactsBookShort = new HashMap<>();
@@ -1162,7 +1188,7 @@ public class ContactsController extends BaseController {
                             }
                             getMessagesStorage().putCachedPhoneBook(contactsMap, false, false);
                             AndroidUtilities.runOnUIThread(() -> {
-                                mergePhonebookAndTelegramContacts(phoneBookSectionsDictFinal, phoneBookSectionsArrayFinal, phoneBookByShortPhonesFinal);
+                                mergePhonebookAndTelegramContacts(phoneBookContactsFinal, phoneBookByShortPhonesFinal);
                                 updateUnregisteredContacts();
                                 getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
                                 getNotificationCenter().postNotificationName(NotificationCenter.contactsImported);
@@ -1250,7 +1276,7 @@ public class ContactsController extends BaseController {
                                         delayedContactsUpdate.clear();
                                     }
                                     AndroidUtilities.runOnUIThread(() -> {
-                                        mergePhonebookAndTelegramContacts(phoneBookSectionsDictFinal, phoneBookSectionsArrayFinal, phoneBookByShortPhonesFinal);
+                                        mergePhonebookAndTelegramContacts(phoneBookContactsFinal, phoneBookByShortPhonesFinal);
                                         getNotificationCenter().postNotificationName(NotificationCenter.contactsImported);
                                     });
                                     if (hasErrors[0]) {
@@ -1274,7 +1300,7 @@ public class ContactsController extends BaseController {
                             delayedContactsUpdate.clear();
                         }
                         AndroidUtilities.runOnUIThread(() -> {
-                            mergePhonebookAndTelegramContacts(phoneBookSectionsDictFinal, phoneBookSectionsArrayFinal, phoneBookByShortPhonesFinal);
+                            mergePhonebookAndTelegramContacts(phoneBookContactsFinal, phoneBookByShortPhonesFinal);
                             updateUnregisteredContacts();
                             getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
                             getNotificationCenter().postNotificationName(NotificationCenter.contactsImported);
@@ -1294,7 +1320,7 @@ public class ContactsController extends BaseController {
                         applyContactsUpdates(delayedContactsUpdate, null, null, null);
                         delayedContactsUpdate.clear();
                     }
-                    AndroidUtilities.runOnUIThread(() -> mergePhonebookAndTelegramContacts(phoneBookSectionsDictFinal, phoneBookSectionsArrayFinal, phoneBookByShortPhonesFinal));
+                    AndroidUtilities.runOnUIThread(() -> mergePhonebookAndTelegramContacts(phoneBookContactsFinal, phoneBookByShortPhonesFinal));
                 });
                 if (!contactsMap.isEmpty()) {
                     getMessagesStorage().putCachedPhoneBook(contactsMap, false, false);
@@ -1440,19 +1466,11 @@ public class ContactsController extends BaseController {
                     getMessagesStorage().putContacts(contactsArr, from != 2);
                 }
 
-                Collections.sort(contactsArr, (tl_contact, tl_contact2) -> {
-                    TLRPC.User user1 = usersDict.get(tl_contact.user_id);
-                    TLRPC.User user2 = usersDict.get(tl_contact2.user_id);
-                    String name1 = UserObject.getFirstName(user1);
-                    String name2 = UserObject.getFirstName(user2);
-                    return name1.compareTo(name2);
-                });
-
                 final ConcurrentHashMap<Integer, TLRPC.TL_contact> contactsDictionary = new ConcurrentHashMap<>(20, 1.0f, 2);
-                final HashMap<String, ArrayList<TLRPC.TL_contact>> sectionsDict = new HashMap<>();
-                final HashMap<String, ArrayList<TLRPC.TL_contact>> sectionsDictMutual = new HashMap<>();
-                final ArrayList<String> sortedSectionsArray = new ArrayList<>();
-                final ArrayList<String> sortedSectionsArrayMutual = new ArrayList<>();
+                final ContactsSectionIndex<TLRPC.TL_contact> index = new ContactsSectionIndex<>();
+                final ContactsSectionIndex<TLRPC.TL_contact> mutualIndex = new ContactsSectionIndex<>();
+                final ArrayList<ContactsSectionIndex.Entry<TLRPC.TL_contact>> entries = new ArrayList<>(contactsArr.size());
+                final ArrayList<ContactsSectionIndex.Entry<TLRPC.TL_contact>> mutualEntries = new ArrayList<>();
                 HashMap<String, TLRPC.TL_contact> contactsByPhonesDict = null;
                 HashMap<String, TLRPC.TL_contact> contactsByPhonesShortDict = null;
 
@@ -1476,66 +1494,24 @@ public class ContactsController extends BaseController {
                         contactsByPhonesShortDict.put(user.phone.substring(Math.max(0, user.phone.length() - 7)), value);
                     }
 
-                    String key = UserObject.getFirstName(user);
-                    if (key.length() > 1) {
-                        key = key.substring(0, 1);
-                    }
-                    if (key.length() == 0) {
-                        key = "#";
-                    } else {
-                        key = key.toUpperCase();
-                    }
-                    String replace = sectionsToReplace.get(key);
-                    if (replace != null) {
-                        key = replace;
-                    }
-                    ArrayList<TLRPC.TL_contact> arr = sectionsDict.get(key);
-                    if (arr == null) {
-                        arr = new ArrayList<>();
-                        sectionsDict.put(key, arr);
-                        sortedSectionsArray.add(key);
-                    }
-                    arr.add(value);
+                    ContactsSectionIndex.Entry<TLRPC.TL_contact> entry = createContactEntry(value, user);
+                    entries.add(entry);
                     if (user.mutual_contact) {
-                        arr = sectionsDictMutual.get(key);
-                        if (arr == null) {
-                            arr = new ArrayList<>();
-                            sectionsDictMutual.put(key, arr);
-                            sortedSectionsArrayMutual.add(key);
-                        }
-                        arr.add(value);
+                        mutualEntries.add(entry);
                     }
                 }
-
-                Collections.sort(sortedSectionsArray, (s, s2) -> {
-                    char cv1 = s.charAt(0);
-                    char cv2 = s2.charAt(0);
-                    if (cv1 == '#') {
-                        return 1;
-                    } else if (cv2 == '#') {
-                        return -1;
-                    }
-                    return s.compareTo(s2);
-                });
-
-                Collections.sort(sortedSectionsArrayMutual, (s, s2) -> {
-                    char cv1 = s.charAt(0);
-                    char cv2 = s2.charAt(0);
-                    if (cv1 == '#') {
-                        return 1;
-                    } else if (cv2 == '#') {
-                        return -1;
-                    }
-                    return s.compareTo(s2);
-                });
+                index.build(entries);
+                mutualIndex.build(mutualEntries);
 
                 AndroidUtilities.runOnUIThread(() -> {
-                    contacts = contactsArr;
+                    usersIndex = index;
+                    usersMutualIndex = mutualIndex;
+                    contacts = index.getItems();
                     contactsDict = contactsDictionary;
-                    usersSectionsDict = sectionsDict;
-                    usersMutualSectionsDict = sectionsDictMutual;
-                    sortedUsersSectionsArray = sortedSectionsArray;
-                    sortedUsersMutualSectionsArray = sortedSectionsArrayMutual;
+                    usersSectionsDict = index.getSectionsDict();
+                    usersMutualSectionsDict = mutualIndex.getSectionsDict();
+                    sortedUsersSectionsArray = index.getSortedSections();
+                    sortedUsersMutualSectionsArray = mutualIndex.getSortedSections();
                     if (from != 2) {
                         synchronized (loadContactsSync) {
                             loadingContacts = false;
@@ -1602,9 +1578,10 @@ public class ContactsController extends BaseController {
         }
     }
 
-    private void mergePhonebookAndTelegramContacts(final HashMap<String, ArrayList<Object>> phoneBookSectionsDictFinal, final ArrayList<String> phoneBookSectionsArrayFinal, final HashMap<String, Contact> phoneBookByShortPhonesFinal) {
+    private void mergePhonebookAndTelegramContacts(final ArrayList<Contact> phoneBookContactsFinal, final HashMap<String, Contact> phoneBookByShortPhonesFinal) {
         final ArrayList<TLRPC.TL_contact> contactsCopy = new ArrayList<>(contacts);
         Utilities.globalQueue.postRunnable(() -> {
+            ArrayList<TLRPC.User> usersToAdd = new ArrayList<>();
             for (int a = 0, size = contactsCopy.size(); a < size; a++) {
                 TLRPC.TL_contact value = contactsCopy.get(a);
                 TLRPC.User user = getMessagesController().getUser(value.user_id);
@@ -1618,64 +1595,30 @@ public class ContactsController extends BaseController {
                         contact.user = user;
                     }
                 } else {
-                    String key = Contact.getLetter(user.first_name, user.last_name);
-                    ArrayList<Object> arrayList = phoneBookSectionsDictFinal.get(key);
-                    if (arrayList == null) {
-                        arrayList = new ArrayList<>();
-                        phoneBookSectionsDictFinal.put(key, arrayList);
-                        phoneBookSectionsArrayFinal.add(key);
-                    }
-                    arrayList.add(user);
-                }
-            }
-            for (ArrayList<Object> arrayList : phoneBookSectionsDictFinal.values()) {
-                Collections.sort(arrayList, (o1, o2) -> {
-                    String name1;
-                    String name2;
-                    if (o1 instanceof TLRPC.User) {
-                        TLRPC.User user = (TLRPC.User) o1;
-                        name1 = ContactsController.formatName(user.first_name, user.last_name);
-                    } else if (o1 instanceof Contact) {
-                        Contact contact = (Contact) o1;
-                        if (contact.user != null) {
-                            name1 = ContactsController.formatName(contact.user.first_name, contact.user.last_name);
-                        } else {
-                            name1 = ContactsController.formatName(contact.first_name, contact.last_name);
-                        }
-                    } else {
-                        name1 = "";
-                    }
-
-                    if (o2 instanceof TLRPC.User) {
-                        TLRPC.User user = (TLRPC.User) o2;
-                        name2 = ContactsController.formatName(user.first_name, user.last_name);
-                    } else if (o2 instanceof Contact) {
-                        Contact contact = (Contact) o2;
-                        if (contact.user != null) {
-                            name2 = ContactsController.formatName(contact.user.first_name, contact.user.last_name);
-                        } else {
-                            name2 = ContactsController.formatName(contact.first_name, contact.last_name);
-                        }
-                    } else {
-                        name2 = "";
-                    }
-
-                    return name1.compareTo(name2);
-                });
+                    usersToAdd.add(user);
+                }
             }
-            Collections.sort(phoneBookSectionsArrayFinal, (s, s2) -> {
-                char cv1 = s.charAt(0);
-                char cv2 = s2.charAt(0);
-                if (cv1 == '#') {
-                    return 1;
-                } else if (cv2 == '#') {
-                    return -1;
+            ArrayList<ContactsSectionIndex.Entry<Object>> entries = new ArrayList<>(phoneBookContactsFinal.size() + usersToAdd.size());
+            for (int a = 0, size = phoneBookContactsFinal.size(); a < size; a++) {
+                Contact contact = phoneBookContactsFinal.get(a);
+                String name;
+                if (contact.user != null) {
+                    name = ContactsController.formatName(contact.user.first_name, contact.user.last_name);
+                } else {
+                    name = ContactsController.formatName(contact.first_name, contact.last_name);
                 }
-                return s.compareTo(s2);
-            });
+                entries.add(ContactsSectionIndex.createEntry(contact, contact, name, contact.getLetter()));
+            }
+            for (int a = 0, size = usersToAdd.size(); a < size; a++) {
+                TLRPC.User user = usersToAdd.get(a);
+                entries.add(ContactsSectionIndex.createEntry(user, user, ContactsController.formatName(user.first_name, user.last_name), Contact.getLetter(user.first_name, user.last_name)));
+            }
+            final ContactsSectionIndex<Object> index = new ContactsSectionIndex<>();
+            index.build(entries);
             AndroidUtilities.runOnUIThread(() -> {
-                phoneBookSectionsArray = phoneBookSectionsArrayFinal;
-                phoneBookSectionsDict = phoneBookSectionsDictFinal;
+                phoneBookIndex = index;
+                phoneBookSectionsArray = index.getSortedSections();
+                phoneBookSectionsDict = index.getSectionsDict();
             });
         });
     }
@@ -1725,62 +1668,47 @@ public class ContactsController extends BaseController {
         phoneBookContacts = sortedPhoneBookContacts;
     }
 
-    private void buildContactsSectionsArrays(boolean sort) {
-        if (sort) {
-            Collections.sort(contacts, (tl_contact, tl_contact2) -> {
-                TLRPC.User user1 = getMessagesController().getUser(tl_contact.user_id);
-                TLRPC.User user2 = getMessagesController().getUser(tl_contact2.user_id);
-                String name1 = UserObject.getFirstName(user1);
-                String name2 = UserObject.getFirstName(user2);
-                return name1.compareTo(name2);
-            });
+    private String getContactSection(TLRPC.User user) {
+        String key = UserObject.getFirstName(user);
+        if (key.length() > 1) {
+            key = key.substring(0, 1);
         }
+        if (key.length() == 0) {
+            key = "#";
+        } else {
+            key = key.toUpperCase();
+        }
+        String replace = sectionsToReplace.get(key);
+        if (replace != null) {
+            key = replace;
+        }
+        return key;
+    }
 
-        final HashMap<String, ArrayList<TLRPC.TL_contact>> sectionsDict = new HashMap<>();
-        final ArrayList<String> sortedSectionsArray = new ArrayList<>();
-
-        for (int a = 0; a < contacts.size(); a++) {
-            TLRPC.TL_contact value = contacts.get(a);
-            TLRPC.User user = getMessagesController().getUser(value.user_id);
-            if (user == null) {
-                continue;
-            }
+    /**
+     * A contact whose user isn't loaded yet stays in the contacts list but gets no section.
+     */
+    private ContactsSectionIndex.Entry<TLRPC.TL_contact> createContactEntry(TLRPC.TL_contact contact, TLRPC.User user) {
+        return ContactsSectionIndex.createEntry(contact.user_id, contact, UserObject.getFirstName(user), user != null ? getContactSection(user) : null);
+    }
 
-            String key = UserObject.getFirstName(user);
-            if (key.length() > 1) {
-                key = key.substring(0, 1);
-            }
-            if (key.length() == 0) {
-                key = "#";
-            } else {
-                key = key.toUpperCase();
-            }
-            String replace = sectionsToReplace.get(key);
-            if (replace != null) {
-                key = replace;
-            }
-            ArrayList<TLRPC.TL_contact> arr = sectionsDict.get(key);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                sectionsDict.put(key, arr);
-                sortedSectionsArray.add(key);
-            }
-            arr.add(value);
+    /**
+     * Inserts the contact or, if it is already indexed, moves it to the position and section of the
+     * user's current name.
+     */
+    private void putContactToSections(TLRPC.TL_contact contact, TLRPC.User user) {
+        ContactsSectionIndex.Entry<TLRPC.TL_contact> entry = createContactEntry(contact, user);
+        usersIndex.add(entry);
+        if (user != null && user.mutual_contact) {
+            usersMutualIndex.add(entry);
+        } else {
+            usersMutualIndex.remove(contact.user_id);
         }
+    }
 
-        Collections.sort(sortedSectionsArray, (s, s2) -> {
-            char cv1 = s.charAt(0);
-            char cv2 = s2.charAt(0);
-            if (cv1 == '#') {
-                return 1;
-            } else if (cv2 == '#') {
-                return -1;
-            }
-            return s.compareTo(s2);
-        });
-
-        usersSectionsDict = sectionsDict;
-        sortedUsersSectionsArray = sortedSectionsArray;
+    private void removeContactFromSections(int uid) {
+        usersIndex.remove(uid);
+        usersMutualIndex.remove(uid);
     }
 
     private boolean hasContactsPermission() {
@@ -1943,16 +1871,20 @@ public class ContactsController extends BaseController {
             AndroidUtilities.runOnUIThread(() -> {
                 for (int a = 0; a < newContacts.size(); a++) {
                     TLRPC.TL_contact contact = newContacts.get(a);
-                    if (contactsDict.get(contact.user_id) == null) {
-                        contacts.add(contact);
+                    TLRPC.User user = getMessagesController().getUser(contact.user_id);
+                    TLRPC.TL_contact existing = contactsDict.get(contact.user_id);
+                    if (existing == null) {
+                        putContactToSections(contact, user);
                         contactsDict.put(contact.user_id, contact);
+                    } else if (user != null) {
+                        putContactToSections(existing, user);
                     }
                 }
                 for (int a = 0; a < contactsToDelete.size(); a++) {
                     Integer uid = contactsToDelete.get(a);
                     TLRPC.TL_contact contact = contactsDict.get(uid);
                     if (contact != null) {
-                        contacts.remove(contact);
+                        removeContactFromSections(uid);
                         contactsDict.remove(uid);
                     }
                 }
@@ -1961,7 +1893,6 @@ public class ContactsController extends BaseController {
                     performWriteContactsToPhoneBook();
                 }
                 performSyncPhoneBook(getContactsCopy(contactsBook), false, false, false, false, true, false);
-                buildContactsSectionsArrays(!newContacts.isEmpty());
                 getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
             });
         }
@@ -2162,15 +2093,17 @@ public class ContactsController extends BaseController {
             AndroidUtilities.runOnUIThread(() -> {
                 for (int a = 0; a < res.users.size(); a++) {
                     TLRPC.User u = res.users.get(a);
-                    if (!u.contact || contactsDict.get(u.id) != null) {
+                    if (!u.contact) {
                         continue;
                     }
-                    TLRPC.TL_contact newContact = new TLRPC.TL_contact();
-                    newContact.user_id = u.id;
-                    contacts.add(newContact);
-                    contactsDict.put(newContact.user_id, newContact);
+                    TLRPC.TL_contact contact = contactsDict.get(u.id);
+                    if (contact == null) {
+                        contact = new TLRPC.TL_contact();
+                        contact.user_id = u.id;
+                        contactsDict.put(contact.user_id, contact);
+                    }
+                    putContactToSections(contact, u);
                 }
-                buildContactsSectionsArrays(true);
                 getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
             });
         }, ConnectionsManager.RequestFlagFailOnServerErrors | ConnectionsManager.RequestFlagCanCompress);
@@ -2219,18 +2152,13 @@ public class ContactsController extends BaseController {
             }
 
             AndroidUtilities.runOnUIThread(() -> {
-                boolean remove = false;
                 for (TLRPC.User user : users) {
                     TLRPC.TL_contact contact = contactsDict.get(user.id);
                     if (contact != null) {
-                        remove = true;
-                        contacts.remove(contact);
+                        removeContactFromSections(user.id);
                         contactsDict.remove(user.id);
                     }
                 }
-                if (remove) {
-                    buildContactsSectionsArrays(false);
-                }
                 getNotificationCenter().postNotificationName(NotificationCenter.updateInterfaces, MessagesController.UPDATE_MASK_NAME);
                 getNotificationCenter().postNotificationName(NotificationCenter.contactsDidLoad);
             });
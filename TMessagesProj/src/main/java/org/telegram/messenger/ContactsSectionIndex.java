@@ -0,0 +1,240 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted list of items split into letter sections, in the shape the contacts adapters read: a map
+ * from section to its items and the sorted list of sections. The sort key and the section of an
+ * item are computed once when its {@link Entry} is created, so keeping the index sorted only
+ * compares prepared strings. Single items are inserted and removed with binary searches; a full
+ * load sorts once through {@link #build}. Items with equal keys keep the order their entries were
+ * created in.
+ *
+ * The collections returned by the getters are owned by the index and change in place, so an index
+ * that is visible to the UI must only be modified on the UI thread.
+ */
+public class ContactsSectionIndex<T> {
+
+    private static final AtomicLong lastOrder = new AtomicLong();
+
+    public static final Comparator<String> SECTIONS_COMPARATOR = (s, s2) -> {
+        char cv1 = s.charAt(0);
+        char cv2 = s2.charAt(0);
+        if (cv1 == '#') {
+            return cv2 == '#' ? 0 : 1;
+        } else if (cv2 == '#') {
+            return -1;
+        }
+        return s.compareTo(s2);
+    };
+
+    public static class Entry<T> {
+        public final Object id;
+        public final T item;
+        public final String sortKey;
+        public final String section;
+        private final long order;
+
+        private Entry(Object id, T item, String sortKey, String section, long order) {
+            this.id = id;
+            this.item = item;
+            this.sortKey = sortKey;
+            this.section = section;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Entry<?>> ENTRIES_COMPARATOR = (e1, e2) -> {
+        int result = e1.sortKey.compareTo(e2.sortKey);
+        if (result != 0) {
+            return result;
+        }
+        return e1.order < e2.order ? -1 : (e1.order > e2.order ? 1 : 0);
+    };
+
+    private final HashMap<Object, Entry<T>> entries = new HashMap<>();
+    private final ArrayList<Entry<T>> sortedEntries = new ArrayList<>();
+    private final ArrayList<T> items = new ArrayList<>();
+    private final HashMap<String, ArrayList<Entry<T>>> sectionEntries = new HashMap<>();
+    private final HashMap<String, ArrayList<T>> sectionsDict = new HashMap<>();
+    private final ArrayList<String> sortedSections = new ArrayList<>();
+
+    /**
+     * An entry may be added to several indexes, e.g. the full and the mutual contacts lists. An entry
+     * with a null section is kept in the sorted list of items but doesn't show up in any section.
+     */
+    public static <T> Entry<T> createEntry(Object id, T item, String sortKey, String section) {
+        if (section != null && section.length() == 0) {
+            section = "#";
+        }
+        return new Entry<>(id, item, sortKey != null ? sortKey : "", section, lastOrder.incrementAndGet());
+    }
+
+    public ArrayList<T> getItems() {
+        return items;
+    }
+
+    public HashMap<String, ArrayList<T>> getSectionsDict() {
+        return sectionsDict;
+    }
+
+    public ArrayList<String> getSortedSections() {
+        return sortedSections;
+    }
+
+    public int size() {
+        return sortedEntries.size();
+    }
+
+    public Entry<T> get(Object id) {
+        return entries.get(id);
+    }
+
+    public boolean contains(Object id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Replaces the content of the index with the given entries; for an id given several times the
+     * first entry in sort order is kept.
+     */
+    public void build(ArrayList<Entry<T>> list) {
+        clear();
+        ArrayList<Entry<T>> sorted = new ArrayList<>(list);
+        Collections.sort(sorted, ENTRIES_COMPARATOR);
+        sortedEntries.ensureCapacity(sorted.size());
+        items.ensureCapacity(sorted.size());
+        for (int a = 0, size = sorted.size(); a < size; a++) {
+            Entry<T> entry = sorted.get(a);
+            if (entries.containsKey(entry.id)) {
+                continue;
+            }
+            entries.put(entry.id, entry);
+            sortedEntries.add(entry);
+            items.add(entry.item);
+            if (entry.section == null) {
+                continue;
+            }
+            ArrayList<Entry<T>> sectionList = sectionEntries.get(entry.section);
+            if (sectionList == null) {
+                sectionList = new ArrayList<>();
+                sectionEntries.put(entry.section, sectionList);
+                sectionsDict.put(entry.section, new ArrayList<>());
+                sortedSections.add(entry.section);
+            }
+            sectionList.add(entry);
+            sectionsDict.get(entry.section).add(entry.item);
+        }
+        Collections.sort(sortedSections, SECTIONS_COMPARATOR);
+    }
+
+    /**
+     * Inserts the entry, replacing the one with the same id if there is any.
+     */
+    public void add(Entry<T> entry) {
+        Entry<T> old = entries.get(entry.id);
+        if (old == entry) {
+            return;
+        }
+        if (old != null) {
+            removeEntry(old);
+        }
+        entries.put(entry.id, entry);
+
+        int index = findPosition(sortedEntries, entry);
+        sortedEntries.add(index, entry);
+        items.add(index, entry.item);
+        if (entry.section == null) {
+            return;
+        }
+
+        ArrayList<Entry<T>> sectionList = sectionEntries.get(entry.section);
+        ArrayList<T> sectionItems;
+        if (sectionList == null) {
+            sectionList = new ArrayList<>();
+            sectionItems = new ArrayList<>();
+            sectionEntries.put(entry.section, sectionList);
+            sectionsDict.put(entry.section, sectionItems);
+            int sectionIndex = Collections.binarySearch(sortedSections, entry.section, SECTIONS_COMPARATOR);
+            sortedSections.add(sectionIndex < 0 ? -sectionIndex - 1 : sectionIndex, entry.section);
+        } else {
+            sectionItems = sectionsDict.get(entry.section);
+        }
+        index = findPosition(sectionList, entry);
+        sectionList.add(index, entry);
+        sectionItems.add(index, entry.item);
+    }
+
+    public boolean remove(Object id) {
+        Entry<T> entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+
+    public void clear() {
+        entries.clear();
+        sortedEntries.clear();
+        items.clear();
+        sectionEntries.clear();
+        sectionsDict.clear();
+        sortedSections.clear();
+    }
+
+    private void removeEntry(Entry<T> entry) {
+        entries.remove(entry.id);
+        int index = findPosition(sortedEntries, entry);
+        if (index < sortedEntries.size() && sortedEntries.get(index) == entry) {
+            sortedEntries.remove(index);
+            items.remove(index);
+        }
+        if (entry.section == null) {
+            return;
+        }
+        ArrayList<Entry<T>> sectionList = sectionEntries.get(entry.section);
+        if (sectionList == null) {
+            return;
+        }
+        index = findPosition(sectionList, entry);
+        if (index < sectionList.size() && sectionList.get(index) == entry) {
+            sectionList.remove(index);
+            sectionsDict.get(entry.section).remove(index);
+        }
+        if (sectionList.isEmpty()) {
+            sectionEntries.remove(entry.section);
+            sectionsDict.remove(entry.section);
+            int sectionIndex = Collections.binarySearch(sortedSections, entry.section, SECTIONS_COMPARATOR);
+            if (sectionIndex >= 0) {
+                sortedSections.remove(sectionIndex);
+            }
+        }
+    }
+
+    private static <T> int findPosition(ArrayList<Entry<T>> list, Entry<T> entry) {
+        int low = 0;
+        int high = list.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ENTRIES_COMPARATOR.compare(list.get(mid), entry) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Names and usernames of all known users, chats and secret chats of an account. The index is read from
+ * the database on the first search and then kept up to date by MessagesController.putUser, putChat and
+ * putEncryptedChat. Name words (and their transliteration) live in one sorted array, so a prefix lookup is
+ * a binary search followed by a scan of the matching range; entries changed since the last build are kept
+ * in a short list that is scanned linearly until it grows big enough to rebuild the array.
+ */
+public class DialogsSearchIndex extends BaseController {
+
+    public static final int RANK_NAME_PREFIX = 0;
+    public static final int RANK_WORDS = 1;
+    public static final int RANK_USERNAME = 2;
+
+    private static final int MIN_REBUILD_PENDING = 256;
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    public static class Result {
+        public long did;
+        public int rank;
+        public String query;
+    }
+
+    private static class Entry {
+        long did;
+        String name;
+        String username;
+        String firstName;
+        String lastName;
+        String rawUsername;
+        String[] tokens;
+        String translitName;
+        String[] translitTokens = EMPTY_TOKENS;
+        boolean indexed;
+        boolean removed;
+        int searchStamp;
+    }
+
+    private static class Posting {
+        String token;
+        Entry entry;
+    }
+
+    private final Object lock = new Object();
+    private final HashMap<Long, Entry> entries = new HashMap<>();
+    private final ArrayList<Entry> pendingEntries = new ArrayList<>();
+    private final LongSparseArray<Integer> encryptedChatUsers = new LongSparseArray<>();
+    private String[] indexTokens = EMPTY_TOKENS;
+    private Entry[] indexEntries = new Entry[0];
+    private int searchStamp;
+    private volatile boolean loaded;
+
+    private static volatile DialogsSearchIndex[] Instance = new DialogsSearchIndex[UserConfig.MAX_ACCOUNT_COUNT];
+
+    public static DialogsSearchIndex getInstance(int num) {
+        DialogsSearchIndex localInstance = Instance[num];
+        if (localInstance == null) {
+            synchronized (DialogsSearchIndex.class) {
+                localInstance = Instance[num];
+                if (localInstance == null) {
+                    Instance[num] = localInstance = new DialogsSearchIndex(num);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public DialogsSearchIndex(int instance) {
+        super(instance);
+    }
+
+    public void cleanup() {
+        synchronized (lock) {
+            for (Entry entry : entries.values()) {
+                entry.removed = true;
+            }
+            entries.clear();
+            pendingEntries.clear();
+            encryptedChatUsers.clear();
+            indexTokens = EMPTY_TOKENS;
+            indexEntries = new Entry[0];
+            loaded = false;
+        }
+    }
+
+    public void putUser(TLRPC.User user) {
+        if (user == null) {
+            return;
+        }
+        // putUser runs for every user update, usually on the UI thread, so the raw fields are compared before
+        // anything is formatted; entries read from the database have no raw fields and are rebuilt once
+        synchronized (lock) {
+            Entry old = entries.get((long) user.id);
+            if (old != null && old.firstName != null && old.firstName.equals(user.first_name != null ? user.first_name : "") && TextUtils.equals(old.lastName, user.last_name) && TextUtils.equals(old.rawUsername, user.username)) {
+                return;
+            }
+        }
+        Entry entry = createUserEntry(user.id, MessagesStorage.formatUserSearchName(user));
+        entry.firstName = user.first_name != null ? user.first_name : "";
+        entry.lastName = user.last_name;
+        entry.rawUsername = user.username;
+        synchronized (lock) {
+            putEntry(entry);
+            for (int a = 0, N = encryptedChatUsers.size(); a < N; a++) {
+                if (encryptedChatUsers.valueAt(a) == user.id) {
+                    putEntry(copyEntry(encryptedChatUsers.keyAt(a), entry));
+                }
+            }
+        }
+    }
+
+    public void putChat(TLRPC.Chat chat) {
+        if (chat == null) {
+            return;
+        }
+        String name = chat.title != null ? chat.title.toLowerCase() : "";
+        String username = TextUtils.isEmpty(chat.username) ? null : chat.username.toLowerCase();
+        Entry entry = createEntry(getChatDialogId(chat.id), name, username);
+        synchronized (lock) {
+            putEntry(entry);
+        }
+    }
+
+    public void putEncryptedChat(TLRPC.EncryptedChat encryptedChat) {
+        if (encryptedChat == null || encryptedChat.user_id == 0) {
+            return;
+        }
+        long did = (long) encryptedChat.id << 32;
+        synchronized (lock) {
+            encryptedChatUsers.put(did, encryptedChat.user_id);
+            Entry user = entries.get((long) encryptedChat.user_id);
+            if (user != null) {
+                putEntry(copyEntry(did, user));
+            }
+        }
+    }
+
+    private static long getChatDialogId(int id) {
+        return id > 0 ? -id : AndroidUtilities.makeBroadcastId(id);
+    }
+
+    /**
+     * Entries are fully prepared, transliteration included, before they are published under the lock and
+     * are never modified afterwards except for the flags guarded by it.
+     */
+    private static Entry createEntry(long did, String name, String username) {
+        Entry entry = new Entry();
+        entry.did = did;
+        entry.name = name;
+        entry.username = username;
+        entry.tokens = splitTokens(name);
+        String translit = LocaleController.getInstance().getTranslitString(name);
+        if (translit != null && !translit.equals(name)) {
+            entry.translitName = translit;
+            entry.translitTokens = splitTokens(translit);
+        }
+        return entry;
+    }
+
+    private static Entry copyEntry(long did, Entry source) {
+        Entry entry = new Entry();
+        entry.did = did;
+        entry.name = source.name;
+        entry.username = source.username;
+        entry.firstName = source.firstName;
+        entry.lastName = source.lastName;
+        entry.rawUsername = source.rawUsername;
+        entry.tokens = source.tokens;
+        entry.translitName = source.translitName;
+        entry.translitTokens = source.translitTokens;
+        return entry;
+    }
+
+    private static Entry createUserEntry(long did, String searchName) {
+        int usernamePos = searchName.lastIndexOf(";;;");
+        if (usernamePos < 0) {
+            return createEntry(did, searchName, null);
+        }
+        String username = usernamePos + 3 < searchName.length() ? searchName.substring(usernamePos + 3) : null;
+        return createEntry(did, searchName.substring(0, usernamePos), username);
+    }
+
+    private void putEntry(Entry entry) {
+        Entry old = entries.get(entry.did);
+        if (old != null) {
+            if (old.name.equals(entry.name) && TextUtils.equals(old.username, entry.username)) {
+                return;
+            }
+            old.removed = true;
+        }
+        entries.put(entry.did, entry);
+        pendingEntries.add(entry);
+    }
+
+    private static String[] splitTokens(String text) {
+        if (text.length() == 0) {
+            return EMPTY_TOKENS;
+        }
+        if (text.indexOf(' ') < 0) {
+            return new String[]{text};
+        }
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int a = 0, N = text.length(); a <= N; a++) {
+            if (a == N || text.charAt(a) == ' ') {
+                if (a > start) {
+                    tokens.add(text.substring(start, a));
+                }
+                start = a + 1;
+            }
+        }
+        return tokens.toArray(EMPTY_TOKENS);
+    }
+
+    /**
+     * Must be called on the storage queue.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        ArrayList<Entry> loadedEntries = new ArrayList<>();
+        LongSparseArray<Integer> loadedEncryptedChats = new LongSparseArray<>();
+        try {
+            SQLiteDatabase database = getMessagesStorage().getDatabase();
+            SQLiteCursor cursor = database.queryFinalized("SELECT uid, name FROM users");
+            while (cursor.next()) {
+                String name = cursor.stringValue(1);
+                if (name != null) {
+                    loadedEntries.add(createUserEntry(cursor.intValue(0), name));
+                }
+            }
+            cursor.dispose();
+
+            cursor = database.queryFinalized("SELECT uid, name FROM chats");
+            while (cursor.next()) {
+                String name = cursor.stringValue(1);
+                loadedEntries.add(createEntry(getChatDialogId(cursor.intValue(0)), name != null ? name : "", null));
+            }
+            cursor.dispose();
+
+            cursor = database.queryFinalized("SELECT q.uid, q.user, u.name FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid");
+            while (cursor.next()) {
+                long did = (long) cursor.intValue(0) << 32;
+                loadedEncryptedChats.put(did, cursor.intValue(1));
+                String name = cursor.stringValue(2);
+                if (name != null) {
+                    loadedEntries.add(createUserEntry(did, name));
+                }
+            }
+            cursor.dispose();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        synchronized (lock) {
+            for (int a = 0, N = loadedEncryptedChats.size(); a < N; a++) {
+                if (encryptedChatUsers.indexOfKey(loadedEncryptedChats.keyAt(a)) < 0) {
+                    encryptedChatUsers.put(loadedEncryptedChats.keyAt(a), loadedEncryptedChats.valueAt(a));
+                }
+            }
+            for (int a = 0, N = loadedEntries.size(); a < N; a++) {
+                Entry entry = loadedEntries.get(a);
+                if (!entries.containsKey(entry.did)) {
+                    entries.put(entry.did, entry);
+                }
+            }
+            loaded = true;
+        }
+        rebuild(true);
+    }
+
+    private void rebuild(boolean force) {
+        ArrayList<Entry> snapshot;
+        synchronized (lock) {
+            if (!force && pendingEntries.size() <= Math.max(MIN_REBUILD_PENDING, entries.size() / 16)) {
+                return;
+            }
+            snapshot = new ArrayList<>(entries.values());
+        }
+        int count = 0;
+        for (int a = 0, N = snapshot.size(); a < N; a++) {
+            Entry entry = snapshot.get(a);
+            count += entry.tokens.length + entry.translitTokens.length + (entry.username != null ? 1 : 0);
+        }
+        Posting[] postings = new Posting[count];
+        count = 0;
+        for (int a = 0, N = snapshot.size(); a < N; a++) {
+            Entry entry = snapshot.get(a);
+            for (int b = 0; b < entry.tokens.length; b++) {
+                postings[count++] = createPosting(entry.tokens[b], entry);
+            }
+            for (int b = 0; b < entry.translitTokens.length; b++) {
+                postings[count++] = createPosting(entry.translitTokens[b], entry);
+            }
+            if (entry.username != null) {
+                postings[count++] = createPosting(entry.username, entry);
+            }
+        }
+        Arrays.sort(postings, (p1, p2) -> p1.token.compareTo(p2.token));
+        String[] tokens = new String[count];
+        Entry[] owners = new Entry[count];
+        for (int a = 0; a < count; a++) {
+            tokens[a] = postings[a].token;
+            owners[a] = postings[a].entry;
+        }
+        synchronized (lock) {
+            if (!loaded) {
+                return;
+            }
+            indexTokens = tokens;
+            indexEntries = owners;
+            for (int a = 0, N = snapshot.size(); a < N; a++) {
+                snapshot.get(a).indexed = true;
+            }
+            for (int a = pendingEntries.size() - 1; a >= 0; a--) {
+                Entry entry = pendingEntries.get(a);
+                if (entry.indexed || entry.removed) {
+                    pendingEntries.remove(a);
+                }
+            }
+        }
+    }
+
+    private static Posting createPosting(String token, Entry entry) {
+        Posting posting = new Posting();
+        posting.token = token;
+        posting.entry = entry;
+        return posting;
+    }
+
+    /**
+     * Returns every known peer whose name or username matches one of the queries, which must be trimmed
+     * and lower case. A name matches when it starts with the query or when every word of the query is the
+     * beginning of a different word of the name. Must be called on the storage queue.
+     */
+    public ArrayList<Result> search(String[] queries) {
+        load();
+        rebuild(false);
+        long time = BuildVars.LOGS_ENABLED ? SystemClock.elapsedRealtime() : 0;
+        ArrayList<Result> results = new ArrayList<>();
+        LongSparseArray<Result> found = new LongSparseArray<>();
+        int entriesCount;
+        synchronized (lock) {
+            entriesCount = entries.size();
+            for (int q = 0; q < queries.length; q++) {
+                String query = queries[q];
+                String[] queryTokens = splitTokens(query);
+                if (queryTokens.length == 0) {
+                    continue;
+                }
+                Arrays.sort(queryTokens, (t1, t2) -> t2.length() - t1.length());
+                String key = queryTokens[0];
+                int stamp = ++searchStamp;
+                for (int a = lowerBound(indexTokens, key); a < indexTokens.length && indexTokens[a].startsWith(key); a++) {
+                    checkEntry(indexEntries[a], query, queryTokens, stamp, found, results);
+                }
+                for (int a = 0, N = pendingEntries.size(); a < N; a++) {
+                    checkEntry(pendingEntries.get(a), query, queryTokens, stamp, found, results);
+                }
+            }
+        }
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("dialogs search index: " + results.size() + " of " + entriesCount + " peers matched in " + (SystemClock.elapsedRealtime() - time) + "ms");
+        }
+        return results;
+    }
+
+    private static void checkEntry(Entry entry, String query, String[] queryTokens, int stamp, LongSparseArray<Result> found, ArrayList<Result> results) {
+        if (entry.removed || entry.searchStamp == stamp) {
+            return;
+        }
+        entry.searchStamp = stamp;
+        int rank = match(entry, query, queryTokens);
+        if (rank < 0) {
+            return;
+        }
+        Result result = found.get(entry.did);
+        if (result == null) {
+            result = new Result();
+            result.did = entry.did;
+            result.rank = rank;
+            result.query = query;
+            found.put(entry.did, result);
+            results.add(result);
+        } else if (rank < result.rank) {
+            result.rank = rank;
+            result.query = query;
+        }
+    }
+
+    private static int match(Entry entry, String query, String[] queryTokens) {
+        if (entry.name.startsWith(query) || entry.translitName != null && entry.translitName.startsWith(query)) {
+            return RANK_NAME_PREFIX;
+        }
+        if (matchTokens(entry.tokens, queryTokens) || matchTokens(entry.translitTokens, queryTokens)) {
+            return RANK_WORDS;
+        }
+        if (entry.username != null && entry.username.startsWith(query)) {
+            return RANK_USERNAME;
+        }
+        return -1;
+    }
+
+    private static boolean matchTokens(String[] tokens, String[] queryTokens) {
+        if (queryTokens.length > tokens.length) {
+            return false;
+        }
+        long used = 0;
+        for (int a = 0; a < queryTokens.length; a++) {
+            boolean matched = false;
+            for (int b = 0, N = Math.min(tokens.length, 64); b < N; b++) {
+                if ((used & (1L << b)) == 0 && tokens[b].startsWith(queryTokens[a])) {
+                    used |= 1L << b;
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lowerBound(String[] tokens, String key) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tokens[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -11,26 +11,111 @@ package org.telegram.messenger;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DispatchQueue extends Thread {
 
+    public static final int PRIORITY_URGENT = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int LATENCY_BUCKETS = 12;
+    private static final int MAX_BACKGROUND_TASKS = 1000;
+
+    private static final ArrayList<DispatchQueue> instrumentedQueues = new ArrayList<>();
+
     private volatile Handler handler = null;
     private CountDownLatch syncLatch = new CountDownLatch(1);
 
+    private final boolean instrumented;
+    private final Object postLock = new Object();
+    private final AtomicLong postedCount = new AtomicLong();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private volatile int maxDepth;
+    private volatile long tasksCount;
+    private volatile long totalLatency;
+    private volatile long maxLatency;
+    private volatile long totalRunTime;
+    private volatile long maxRunTime;
+    private final long[] latencyHistogram = new long[LATENCY_BUCKETS];
+
+    private final Object tasksLock = new Object();
+    private final HashMap<Object, CoalescedTask> coalescedTasks = new HashMap<>();
+    private final ArrayDeque<Runnable> backgroundTasks = new ArrayDeque<>();
+    private boolean backgroundDrainPosted;
+
+    private final Runnable backgroundDrainRunnable = () -> {
+        Runnable task;
+        boolean hasMore;
+        synchronized (tasksLock) {
+            task = backgroundTasks.pollFirst();
+            hasMore = !backgroundTasks.isEmpty();
+            if (!hasMore) {
+                backgroundDrainPosted = false;
+            }
+        }
+        if (hasMore) {
+            postRunnable(DispatchQueue.this.backgroundDrainRunnable);
+        }
+        if (task != null) {
+            task.run();
+        }
+    };
+
+    private class CoalescedTask implements Runnable {
+
+        private final Object key;
+        private volatile Runnable runnable;
+
+        private CoalescedTask(Object key, Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (tasksLock) {
+                if (coalescedTasks.get(key) == this) {
+                    coalescedTasks.remove(key);
+                }
+            }
+            runnable.run();
+        }
+    }
+
     public DispatchQueue(final String threadName) {
+        this(threadName, false);
+    }
+
+    public DispatchQueue(final String threadName, boolean collectStats) {
+        instrumented = collectStats;
         setName(threadName);
+        if (instrumented) {
+            synchronized (instrumentedQueues) {
+                instrumentedQueues.add(this);
+            }
+        }
         start();
     }
 
     public void sendMessage(Message msg, int delay) {
         try {
             syncLatch.await();
-            if (delay <= 0) {
-                handler.sendMessage(msg);
-            } else {
-                handler.sendMessageDelayed(msg, delay);
+            onEnqueued();
+            synchronized (postLock) {
+                postedCount.incrementAndGet();
+                if (delay <= 0) {
+                    handler.sendMessage(msg);
+                } else {
+                    handler.sendMessageDelayed(msg, delay);
+                }
             }
         } catch (Exception e) {
             FileLog.e(e);
@@ -40,7 +125,13 @@ public class DispatchQueue extends Thread {
     public void cancelRunnable(Runnable runnable) {
         try {
             syncLatch.await();
+            if (instrumented && handler.hasMessages(0, runnable)) {
+                onDequeued();
+            }
             handler.removeCallbacks(runnable);
+            synchronized (tasksLock) {
+                backgroundTasks.remove(runnable);
+            }
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -51,22 +142,93 @@ public class DispatchQueue extends Thread {
     }
 
     public void postRunnable(Runnable runnable, long delay) {
+        postRunnable(runnable, delay, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @return the value of {@link #getPostedCount()} right after this task was posted, callers can
+     *     compare it later to find out whether anything else was posted in the meantime.
+     */
+    public long postRunnable(Runnable runnable, long delay, int priority) {
         try {
             syncLatch.await();
         } catch (Exception e) {
             FileLog.e(e);
         }
-        if (delay <= 0) {
-            handler.post(runnable);
-        } else {
-            handler.postDelayed(runnable, delay);
+        long sequence = 0;
+        if (priority == PRIORITY_BACKGROUND && delay <= 0) {
+            boolean needDrain;
+            synchronized (tasksLock) {
+                if (backgroundTasks.size() < MAX_BACKGROUND_TASKS) {
+                    sequence = postedCount.incrementAndGet();
+                    backgroundTasks.addLast(runnable);
+                    needDrain = !backgroundDrainPosted;
+                    backgroundDrainPosted = true;
+                } else {
+                    needDrain = false;
+                    runnable = null;
+                }
+            }
+            if (runnable == null) {
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.w(getName() + " background backlog is full, running task with normal priority");
+                }
+            } else {
+                if (needDrain) {
+                    postRunnable(backgroundDrainRunnable, 0, PRIORITY_NORMAL);
+                }
+                return sequence;
+            }
+        }
+        Message msg = Message.obtain(handler, runnable);
+        if (instrumented) {
+            msg.obj = runnable;
         }
+        onEnqueued();
+        synchronized (postLock) {
+            sequence = postedCount.incrementAndGet();
+            if (delay <= 0) {
+                if (priority == PRIORITY_URGENT) {
+                    msg.arg1 = (int) SystemClock.uptimeMillis();
+                    handler.sendMessageAtFrontOfQueue(msg);
+                } else {
+                    handler.sendMessage(msg);
+                }
+            } else {
+                handler.sendMessageDelayed(msg, delay);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Posts a task that replaces any not yet started task with the same key, so a burst of
+     * identical requests is executed only once with the latest runnable.
+     */
+    public void postCoalescedRunnable(Object key, Runnable runnable, long delay) {
+        CoalescedTask task;
+        synchronized (tasksLock) {
+            task = coalescedTasks.get(key);
+            if (task != null) {
+                task.runnable = runnable;
+                return;
+            }
+            task = new CoalescedTask(key, runnable);
+            coalescedTasks.put(key, task);
+        }
+        postRunnable(task, delay);
     }
 
     public void cleanupQueue() {
         try {
             syncLatch.await();
             handler.removeCallbacksAndMessages(null);
+            synchronized (tasksLock) {
+                backgroundTasks.clear();
+                coalescedTasks.clear();
+                backgroundDrainPosted = false;
+            }
+            pendingCount.set(0);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -78,12 +240,119 @@ public class DispatchQueue extends Thread {
 
     public void recycle() {
         handler.getLooper().quit();
+        if (instrumented) {
+            synchronized (instrumentedQueues) {
+                instrumentedQueues.remove(this);
+            }
+        }
+    }
+
+    private void onEnqueued() {
+        if (!instrumented) {
+            return;
+        }
+        int depth = pendingCount.incrementAndGet();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+    }
+
+    private void onDequeued() {
+        if (pendingCount.decrementAndGet() < 0) {
+            pendingCount.set(0);
+        }
+    }
+
+    private void onTaskFinished(long latency, long runTime) {
+        onDequeued();
+        if (latency < 0) {
+            latency = 0;
+        }
+        int bucket = latency == 0 ? 0 : Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency));
+        latencyHistogram[bucket]++;
+        tasksCount++;
+        totalLatency += latency;
+        totalRunTime += runTime;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+        if (runTime > maxRunTime) {
+            maxRunTime = runTime;
+        }
+    }
+
+    public long getPostedCount() {
+        return postedCount.get();
+    }
+
+    public int getQueueDepth() {
+        return pendingCount.get();
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder();
+        long count = tasksCount;
+        builder.append(getName()).append(": tasks=").append(count);
+        builder.append(" depth=").append(pendingCount.get()).append(" maxDepth=").append(maxDepth);
+        synchronized (tasksLock) {
+            builder.append(" background=").append(backgroundTasks.size());
+        }
+        if (count > 0) {
+            builder.append(" avgLatency=").append(totalLatency / count).append("ms maxLatency=").append(maxLatency).append("ms");
+            builder.append(" avgRun=").append(totalRunTime / count).append("ms maxRun=").append(maxRunTime).append("ms");
+        }
+        builder.append(" latency=[");
+        for (int a = 0; a < LATENCY_BUCKETS; a++) {
+            if (a != 0) {
+                builder.append(", ");
+            }
+            builder.append(a == 0 ? "0" : "<" + (1L << a)).append(":").append(latencyHistogram[a]);
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+
+    public void resetStats() {
+        maxDepth = pendingCount.get();
+        tasksCount = 0;
+        totalLatency = 0;
+        maxLatency = 0;
+        totalRunTime = 0;
+        maxRunTime = 0;
+        for (int a = 0; a < LATENCY_BUCKETS; a++) {
+            latencyHistogram[a] = 0;
+        }
+    }
+
+    public static void dumpStats() {
+        synchronized (instrumentedQueues) {
+            for (int a = 0, N = instrumentedQueues.size(); a < N; a++) {
+                FileLog.d(instrumentedQueues.get(a).getStats());
+            }
+        }
     }
 
     @Override
     public void run() {
         Looper.prepare();
         handler = new Handler() {
+            @Override
+            public void dispatchMessage(Message msg) {
+                if (!instrumented) {
+                    super.dispatchMessage(msg);
+                    return;
+                }
+                long start = SystemClock.uptimeMillis();
+                long latency;
+                if (msg.getWhen() == 0) {
+                    latency = (int) start - msg.arg1;
+                } else {
+                    latency = start - msg.getWhen();
+                }
+                super.dispatchMessage(msg);
+                onTaskFinished(latency, SystemClock.uptimeMillis() - start);
+            }
+
             @Override
             public void handleMessage(Message msg) {
                 DispatchQueue.this.handleMessage(msg);
@@ -0,0 +1,187 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Immutable prefix tree over the emoji keywords of one language. Nodes are stored in pre-order in
+ * plain arrays, so the results of a whole subtree form one contiguous range and a prefix lookup is a
+ * walk down the key followed by a copy of that range. Changes go through {@link Builder}.
+ */
+public class EmojiKeywordTrie {
+
+    private final char[] nodeChars;
+    private final int[] subtreeEnds;
+    private final int[] resultStarts;
+    private final int[] resultKeywords;
+    private final int[] resultEmoji;
+    private final String[] keywords;
+    private final String[] emoji;
+
+    private EmojiKeywordTrie(char[] nodeChars, int[] subtreeEnds, int[] resultStarts, int[] resultKeywords, int[] resultEmoji, String[] keywords, String[] emoji) {
+        this.nodeChars = nodeChars;
+        this.subtreeEnds = subtreeEnds;
+        this.resultStarts = resultStarts;
+        this.resultKeywords = resultKeywords;
+        this.resultEmoji = resultEmoji;
+        this.keywords = keywords;
+        this.emoji = emoji;
+    }
+
+    public int size() {
+        return resultEmoji.length;
+    }
+
+    private int findNode(String key) {
+        int node = 0;
+        for (int a = 0, N = key.length(); a < N; a++) {
+            char c = key.charAt(a);
+            int end = subtreeEnds[node];
+            int child = node + 1;
+            while (child < end && nodeChars[child] < c) {
+                child = subtreeEnds[child];
+            }
+            if (child >= end || nodeChars[child] != c) {
+                return -1;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Appends the emoji for every keyword that starts with key (or equals it when fullMatch is set),
+     * skipping emoji that are already in added.
+     */
+    public void search(String key, boolean fullMatch, ArrayList<MediaDataController.KeywordResult> result, HashSet<String> added) {
+        int node = findNode(key);
+        if (node < 0) {
+            return;
+        }
+        int end = fullMatch ? resultStarts[node + 1] : resultStarts[subtreeEnds[node]];
+        for (int a = resultStarts[node]; a < end; a++) {
+            String value = emoji[resultEmoji[a]];
+            if (!added.add(value)) {
+                continue;
+            }
+            MediaDataController.KeywordResult keywordResult = new MediaDataController.KeywordResult();
+            keywordResult.emoji = value;
+            keywordResult.keyword = keywords[resultKeywords[a]];
+            result.add(keywordResult);
+        }
+    }
+
+    public static class Builder {
+
+        private final HashMap<String, ArrayList<String>> entries = new HashMap<>();
+
+        public Builder() {
+
+        }
+
+        public Builder(EmojiKeywordTrie trie) {
+            if (trie != null) {
+                for (int a = 0, N = trie.resultEmoji.length; a < N; a++) {
+                    add(trie.keywords[trie.resultKeywords[a]], trie.emoji[trie.resultEmoji[a]]);
+                }
+            }
+        }
+
+        public void add(String keyword, String value) {
+            value = value.replace("\ufe0f", "");
+            ArrayList<String> values = entries.get(keyword);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                entries.put(keyword, values);
+            } else if (values.contains(value)) {
+                return;
+            }
+            values.add(value);
+        }
+
+        public void remove(String keyword, String value) {
+            ArrayList<String> values = entries.get(keyword);
+            if (values == null) {
+                return;
+            }
+            values.remove(value.replace("\ufe0f", ""));
+            if (values.isEmpty()) {
+                entries.remove(keyword);
+            }
+        }
+
+        public EmojiKeywordTrie build() {
+            String[] keys = entries.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            int maxNodes = 1;
+            int maxLength = 0;
+            int resultsCount = 0;
+            for (int a = 0; a < keys.length; a++) {
+                maxNodes += keys[a].length();
+                maxLength = Math.max(maxLength, keys[a].length());
+                resultsCount += entries.get(keys[a]).size();
+            }
+            char[] nodeChars = new char[maxNodes];
+            int[] subtreeEnds = new int[maxNodes];
+            int[] resultStarts = new int[maxNodes + 1];
+            int[] resultKeywords = new int[resultsCount];
+            int[] resultEmoji = new int[resultsCount];
+            ArrayList<String> emoji = new ArrayList<>();
+            HashMap<String, Integer> emojiIds = new HashMap<>();
+
+            int[] path = new int[maxLength + 1];
+            int nodesCount = 1;
+            int count = 0;
+            String prev = "";
+            for (int a = 0; a < keys.length; a++) {
+                String key = keys[a];
+                int common = 0;
+                int max = Math.min(prev.length(), key.length());
+                while (common < max && prev.charAt(common) == key.charAt(common)) {
+                    common++;
+                }
+                for (int depth = prev.length(); depth > common; depth--) {
+                    subtreeEnds[path[depth]] = nodesCount;
+                }
+                for (int depth = common + 1; depth <= key.length(); depth++) {
+                    int node = nodesCount++;
+                    nodeChars[node] = key.charAt(depth - 1);
+                    resultStarts[node] = count;
+                    path[depth] = node;
+                }
+                ArrayList<String> values = entries.get(key);
+                for (int b = 0, N = values.size(); b < N; b++) {
+                    String value = values.get(b);
+                    Integer id = emojiIds.get(value);
+                    if (id == null) {
+                        id = emoji.size();
+                        emojiIds.put(value, id);
+                        emoji.add(value);
+                    }
+                    resultKeywords[count] = a;
+                    resultEmoji[count] = id;
+                    count++;
+                }
+                prev = key;
+            }
+            for (int depth = prev.length(); depth > 0; depth--) {
+                subtreeEnds[path[depth]] = nodesCount;
+            }
+            subtreeEnds[0] = nodesCount;
+            resultStarts[nodesCount] = count;
+
+            return new EmojiKeywordTrie(Arrays.copyOf(nodeChars, nodesCount), Arrays.copyOf(subtreeEnds, nodesCount), Arrays.copyOf(resultStarts, nodesCount + 1),
+                    resultKeywords, resultEmoji, keys, emoji.toArray(new String[0]));
+        }
+    }
+}
@@ -8,6 +8,7 @@
 
 package org.telegram.messenger;
 
+import android.os.SystemClock;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
@@ -19,10 +20,10 @@ import org.telegram.tgnet.TLRPC;
 import java.io.FileInputStream;
 import java.io.RandomAccessFile;
 import java.io.File;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
 import java.util.zip.GZIPInputStream;
@@ -33,21 +34,12 @@ public class FileLoadOperation {
     protected static class RequestInfo {
         private int requestToken;
         private int offset;
+        private long sendTime;
         private TLRPC.TL_upload_file response;
         private TLRPC.TL_upload_webFile responseWeb;
         private TLRPC.TL_upload_cdnFile responseCdn;
     }
 
-    public static class Range {
-        private int start;
-        private int end;
-
-        private Range(int s, int e) {
-            start = s;
-            end = e;
-        }
-    }
-
     private static class PreloadRange {
         private int fileOffset;
         private int start;
@@ -96,10 +88,9 @@ public class FileLoadOperation {
 
     private boolean nextPartWasPreloaded;
 
-    private ArrayList<Range> notLoadedBytesRanges;
-    private volatile ArrayList<Range> notLoadedBytesRangesCopy;
-    private ArrayList<Range> notRequestedBytesRanges;
-    private ArrayList<Range> notCheckedCdnRanges;
+    private volatile RangeSet notLoadedBytesRanges;
+    private RangeSet notRequestedBytesRanges;
+    private RangeSet notCheckedCdnRanges;
     private int requestedBytesCount;
 
     private int currentAccount;
@@ -111,7 +102,7 @@ public class FileLoadOperation {
     private WebFile webFile;
     private volatile int state = stateIdle;
     private volatile boolean paused;
-    private int downloadedBytes;
+    private volatile int downloadedBytes;
     private int totalBytesCount;
     private int bytesCountPadding;
     private int streamStartOffset;
@@ -159,6 +150,7 @@ public class FileLoadOperation {
     private RandomAccessFile fileOutputStream;
     private RandomAccessFile fiv;
     private RandomAccessFile filePartsStream;
+    private MappedByteBuffer filePartsBuffer;
     private File storePath;
     private File tempPath;
     private boolean isForceRequest;
@@ -168,6 +160,11 @@ public class FileLoadOperation {
 
     private int currentType;
 
+    private long downloadStartTime;
+    private long receivedBytesCount;
+    private int completedRequestsCount;
+    private long totalRequestsTime;
+
     public interface FileLoadOperationDelegate {
         void didFinishLoadingFile(FileLoadOperation operation, File finalFile);
         void didFailedLoadingFile(FileLoadOperation operation, int state);
@@ -356,6 +353,45 @@ public class FileLoadOperation {
         return priority;
     }
 
+    boolean isDownloading() {
+        return state == stateDownloading && !paused;
+    }
+
+    boolean isStreaming() {
+        return streamListeners != null && !streamListeners.isEmpty();
+    }
+
+    boolean isBackgroundLoad() {
+        return isPreloadVideoOperation || !isForceRequest && priority == 0;
+    }
+
+    int getCurrentDatacenterId() {
+        return isCdn ? cdnDatacenterId : datacenterId;
+    }
+
+    int getRequestsInFlight() {
+        return requestInfos != null ? requestInfos.size() : 0;
+    }
+
+    private FileLoadScheduler getLoadScheduler() {
+        return FileLoader.getInstance(currentAccount).getLoadScheduler();
+    }
+
+    public String getDownloadStats() {
+        long time = downloadStartTime != 0 ? SystemClock.elapsedRealtime() - downloadStartTime : 0;
+        StringBuilder builder = new StringBuilder();
+        builder.append(getFileName()).append(": dc=").append(getCurrentDatacenterId());
+        builder.append(" bytes=").append(receivedBytesCount).append(" requests=").append(completedRequestsCount);
+        builder.append(" chunk=").append(currentDownloadChunkSize / 1024).append("KB");
+        if (time > 0) {
+            builder.append(" throughput=").append(receivedBytesCount * 1000 / 1024 / time).append("KB/s");
+        }
+        if (completedRequestsCount > 0) {
+            builder.append(" avgRtt=").append(totalRequestsTime / completedRequestsCount).append("ms");
+        }
+        return builder.toString();
+    }
+
     public void setPaths(int instance, File store, File temp) {
         storePath = store;
         tempPath = temp;
@@ -370,96 +406,23 @@ public class FileLoadOperation {
         return currentType;
     }
 
-    private void removePart(ArrayList<Range> ranges, int start, int end) {
-        if (ranges == null || end < start) {
+    private void removePart(RangeSet ranges, int start, int end) {
+        if (ranges == null) {
             return;
         }
-        int count = ranges.size();
-        Range range;
-        boolean modified = false;
-        for (int a = 0; a < count; a++) {
-            range = ranges.get(a);
-            if (start == range.end) {
-                range.end = end;
-                modified = true;
-                break;
-            } else if (end == range.start) {
-                range.start = start;
-                modified = true;
-                break;
-            }
-        }
-        Collections.sort(ranges, (o1, o2) -> {
-            if (o1.start > o2.start) {
-                return 1;
-            } else if (o1.start < o2.start) {
-                return -1;
-            }
-            return 0;
-        });
-        for (int a = 0; a < ranges.size() - 1; a++) {
-            Range r1 = ranges.get(a);
-            Range r2 = ranges.get(a + 1);
-            if (r1.end == r2.start) {
-                r1.end = r2.end;
-                ranges.remove(a + 1);
-                a--;
-            }
-        }
-        if (!modified) {
-            ranges.add(new Range(start, end));
-        }
+        ranges.add(start, end);
     }
 
-    private void addPart(ArrayList<Range> ranges, int start, int end, boolean save) {
-        if (ranges == null || end < start) {
+    private void addPart(RangeSet ranges, int start, int end, boolean save) {
+        if (ranges == null) {
             return;
         }
-        boolean modified = false;
-        int count = ranges.size();
-        Range range;
-        for (int a = 0; a < count; a++) {
-            range = ranges.get(a);
-            if (start <= range.start) {
-                if (end >= range.end) {
-                    ranges.remove(a);
-                    modified = true;
-                    break;
-                } else if (end > range.start) {
-                    range.start = end;
-                    modified = true;
-                    break;
-                }
-            } else {
-                if (end < range.end) {
-                    Range newRange = new Range(range.start, start);
-                    ranges.add(0, newRange);
-                    modified = true;
-                    range.start = end;
-                    break;
-                } else if (start < range.end) {
-                    range.end = start;
-                    modified = true;
-                    break;
-                }
-            }
-        }
+        int changedIndex = ranges.subtract(start, end);
         if (save) {
-            if (modified) {
-                try {
-                    filePartsStream.seek(0);
-                    count = ranges.size();
-                    filePartsStream.writeInt(count);
-                    for (int a = 0; a < count; a++) {
-                        range = ranges.get(a);
-                        filePartsStream.writeInt(range.start);
-                        filePartsStream.writeInt(range.end);
-                    }
-                } catch (Exception e) {
-                    FileLog.e(e);
-                }
+            if (changedIndex >= 0) {
+                saveNotLoadedRanges(changedIndex);
                 if (streamListeners != null) {
-                    count = streamListeners.size();
+                    int count = streamListeners.size();
                     for (int a = 0; a < count; a++) {
                         streamListeners.get(a).newDataAvailable();
                     }
@@ -472,6 +435,24 @@ public class FileLoadOperation {
         }
     }
 
+    private void saveNotLoadedRanges(int fromIndex) {
+        if (filePartsStream == null) {
+            return;
+        }
+        try {
+            int size = 4 + notLoadedBytesRanges.getCount() * 8;
+            if (filePartsBuffer == null || filePartsBuffer.capacity() < size) {
+                int capacity = Math.max(size, filePartsBuffer != null ? filePartsBuffer.capacity() * 2 : 4 + 64 * 8);
+                capacity = 4 + (capacity - 4 + 7) / 8 * 8;
+                filePartsBuffer = filePartsStream.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                fromIndex = 0;
+            }
+            notLoadedBytesRanges.writeTo(filePartsBuffer, fromIndex);
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+    }
+
     protected File getCurrentFile() {
         final CountDownLatch countDownLatch = new CountDownLatch(1);
         final File[] result = new File[1];
@@ -491,31 +472,20 @@ public class FileLoadOperation {
         return result[0];
     }
 
-    private int getDownloadedLengthFromOffsetInternal(ArrayList<Range> ranges, final int offset, final int length) {
+    private int getDownloadedLengthFromOffsetInternal(RangeSet ranges, final int offset, final int length) {
         if (ranges == null || state == stateFinished || ranges.isEmpty()) {
-            if (downloadedBytes == 0) {
+            int downloaded = downloadedBytes;
+            if (downloaded == 0) {
                 return length;
             } else {
-                return Math.min(length, Math.max(downloadedBytes - offset, 0));
+                return Math.min(length, Math.max(downloaded - offset, 0));
             }
         } else {
-            int count = ranges.size();
-            Range range;
-            Range minRange = null;
-            int availableLength = length;
-            for (int a = 0; a < count; a++) {
-                range = ranges.get(a);
-                if (offset <= range.start && (minRange == null || range.start < minRange.start)) {
-                    minRange = range;
-                }
-                if (range.start <= offset && range.end > offset) {
-                    availableLength = 0;
-                }
-            }
-            if (availableLength == 0) {
+            int nextNotLoaded = ranges.findOffset(offset);
+            if (nextNotLoaded == offset) {
                 return 0;
-            } else if (minRange != null) {
-                return Math.min(length, minRange.start - offset);
+            } else if (nextNotLoaded > offset) {
+                return Math.min(length, nextNotLoaded - offset);
             } else {
                 return Math.min(length, Math.max(totalBytesCount - offset, 0));
             }
@@ -523,26 +493,18 @@ public class FileLoadOperation {
     }
 
     protected float getDownloadedLengthFromOffset(final float progress) {
-        ArrayList<Range> ranges = notLoadedBytesRangesCopy;
+        RangeSet ranges = notLoadedBytesRanges;
         if (totalBytesCount == 0 || ranges == null) {
             return 0;
         }
         return progress + getDownloadedLengthFromOffsetInternal(ranges, (int) (totalBytesCount * progress), totalBytesCount) / (float) totalBytesCount;
     }
 
+    /**
+     * Safe to call from any thread, streaming readers poll this while the file is being loaded.
+     */
     protected int getDownloadedLengthFromOffset(final int offset, final int length) {
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
-        final int[] result = new int[1];
-        Utilities.stageQueue.postRunnable(() -> {
-            result[0] = getDownloadedLengthFromOffsetInternal(notLoadedBytesRanges, offset, length);
-            countDownLatch.countDown();
-        });
-        try {
-            countDownLatch.await();
-        } catch (Exception ignore) {
-
-        }
-        return result[0];
+        return getDownloadedLengthFromOffsetInternal(notLoadedBytesRanges, offset, length);
     }
 
     public String getFileName() {
@@ -562,13 +524,6 @@ public class FileLoadOperation {
         });
     }
 
-    private void copyNotLoadedRanges() {
-        if (notLoadedBytesRanges == null) {
-            return;
-        }
-        notLoadedBytesRangesCopy = new ArrayList<>(notLoadedBytesRanges);
-    }
-
     public void pause() {
         if (state != stateDownloading) {
             return;
@@ -582,12 +537,21 @@ public class FileLoadOperation {
 
     public boolean start(final FileLoadOperationStream stream, final int streamOffset, final boolean steamPriority) {
         if (currentDownloadChunkSize == 0) {
-            currentDownloadChunkSize = totalBytesCount >= bigFileSizeFrom ? downloadChunkSizeBig : downloadChunkSize;
+            if (totalBytesCount >= bigFileSizeFrom) {
+                currentDownloadChunkSize = downloadChunkSizeBig;
+            } else if (totalBytesCount > 0 && key == null && webLocation == null && !supportsPreloading && !isPreloadVideoOperation && currentType != ConnectionsManager.FileTypeVideo) {
+                currentDownloadChunkSize = getLoadScheduler().getChunkSize(datacenterId, downloadChunkSize);
+            } else {
+                currentDownloadChunkSize = downloadChunkSize;
+            }
             currentMaxDownloadRequests = totalBytesCount >= bigFileSizeFrom ? maxDownloadRequestsBig : maxDownloadRequests;
         }
         final boolean alreadyStarted = state != stateIdle;
         final boolean wasPaused = paused;
         paused = false;
+        if (wasPaused && alreadyStarted) {
+            getLoadScheduler().addOperation(this);
+        }
         if (stream != null) {
             Utilities.stageQueue.postRunnable(() -> {
                 if (streamListeners == null) {
@@ -639,8 +603,8 @@ public class FileLoadOperation {
         streamStartOffset = streamOffset / currentDownloadChunkSize * currentDownloadChunkSize;
 
         if (allowDisordererFileSave && totalBytesCount > 0 && totalBytesCount > currentDownloadChunkSize) {
-            notLoadedBytesRanges = new ArrayList<>();
-            notRequestedBytesRanges = new ArrayList<>();
+            notLoadedBytesRanges = new RangeSet();
+            notRequestedBytesRanges = new RangeSet();
         }
 
         String fileNameFinal;
@@ -715,6 +679,8 @@ public class FileLoadOperation {
         requestInfos = new ArrayList<>(currentMaxDownloadRequests);
         delayedRequestInfos = new ArrayList<>(currentMaxDownloadRequests - 1);
         state = stateDownloading;
+        downloadStartTime = SystemClock.elapsedRealtime();
+        getLoadScheduler().addOperation(this);
 
         cacheFileFinal = new File(storePath, fileNameFinal);
         boolean finalFileExist = cacheFileFinal.exists();
@@ -837,7 +803,7 @@ public class FileLoadOperation {
             if (fileNameParts != null) {
                 cacheFileParts = new File(tempPath, fileNameParts);
                 try {
-                    filePartsStream = new RandomAccessFile(cacheFileParts, "rws");
+                    filePartsStream = new RandomAccessFile(cacheFileParts, "rw");
                     long len = filePartsStream.length();
                     if (len % 8 == 4) {
                         len -= 4;
@@ -846,8 +812,8 @@ public class FileLoadOperation {
                             for (int a = 0; a < count; a++) {
                                 int start = filePartsStream.readInt();
                                 int end = filePartsStream.readInt();
-                                notLoadedBytesRanges.add(new Range(start, end));
-                                notRequestedBytesRanges.add(new Range(start, end));
+                                notLoadedBytesRanges.add(start, end);
+                                notRequestedBytesRanges.add(start, end);
                             }
                         }
                     }
@@ -867,22 +833,16 @@ public class FileLoadOperation {
                         requestedBytesCount = downloadedBytes = ((int) cacheFileTemp.length()) / currentDownloadChunkSize * currentDownloadChunkSize;
                     }
                     if (notLoadedBytesRanges != null && notLoadedBytesRanges.isEmpty()) {
-                        notLoadedBytesRanges.add(new Range(downloadedBytes, totalBytesCount));
-                        notRequestedBytesRanges.add(new Range(downloadedBytes, totalBytesCount));
+                        notLoadedBytesRanges.add(downloadedBytes, totalBytesCount);
+                        notRequestedBytesRanges.add(downloadedBytes, totalBytesCount);
                     }
                 }
             } else if (notLoadedBytesRanges != null && notLoadedBytesRanges.isEmpty()) {
-                notLoadedBytesRanges.add(new Range(0, totalBytesCount));
-                notRequestedBytesRanges.add(new Range(0, totalBytesCount));
+                notLoadedBytesRanges.add(0, totalBytesCount);
+                notRequestedBytesRanges.add(0, totalBytesCount);
             }
             if (notLoadedBytesRanges != null) {
-                downloadedBytes = totalBytesCount;
-                int size = notLoadedBytesRanges.size();
-                Range range;
-                for (int a = 0; a < size; a++) {
-                    range = notLoadedBytesRanges.get(a);
-                    downloadedBytes -= (range.end - range.start);
-                }
+                downloadedBytes = (int) (totalBytesCount - notLoadedBytesRanges.getTotalLength());
                 requestedBytesCount = downloadedBytes;
             }
 
@@ -912,7 +872,6 @@ public class FileLoadOperation {
                 }
             }
             if (!isPreloadVideoOperation && downloadedBytes != 0 && totalBytesCount > 0) {
-                copyNotLoadedRanges();
                 delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) downloadedBytes / (float) totalBytesCount));
             }
             try {
@@ -1045,6 +1004,7 @@ public class FileLoadOperation {
             FileLog.e(e);
         }
         try {
+            filePartsBuffer = null;
             if (filePartsStream != null) {
                 try {
                     filePartsStream.getChannel().close();
@@ -1153,6 +1113,7 @@ public class FileLoadOperation {
             }
             if (BuildVars.LOGS_ENABLED) {
                 FileLog.d("finished downloading file to " + cacheFileFinal);
+                FileLog.d(getDownloadStats());
             }
             if (increment) {
                 if (currentType == ConnectionsManager.FileTypeAudio) {
@@ -1391,18 +1352,7 @@ public class FileLoadOperation {
                     addPart(notLoadedBytesRanges, requestInfo.offset, requestInfo.offset + currentBytesSize, true);
                     if (isCdn) {
                         int cdnCheckPart = requestInfo.offset / cdnChunkCheckSize;
-
-                        int size = notCheckedCdnRanges.size();
-                        Range range;
-                        boolean checked = true;
-                        for (int a = 0; a < size; a++) {
-                            range = notCheckedCdnRanges.get(a);
-                            if (range.start <= cdnCheckPart && cdnCheckPart <= range.end) {
-                                checked = false;
-                                break;
-                            }
-                        }
-                        if (!checked) {
+                        if (notCheckedCdnRanges.contains(cdnCheckPart)) {
                             int fileOffset = cdnCheckPart * cdnChunkCheckSize;
                             int availableSize = getDownloadedLengthFromOffsetInternal(notLoadedBytesRanges, fileOffset, cdnChunkCheckSize);
                             if (availableSize != 0 && (availableSize == cdnChunkCheckSize || totalBytesCount > 0 && availableSize == totalBytesCount - fileOffset || totalBytesCount <= 0 && finishedDownloading)) {
@@ -1436,7 +1386,6 @@ public class FileLoadOperation {
                         fiv.write(iv);
                     }
                     if (totalBytesCount > 0 && state == stateDownloading) {
-                        copyNotLoadedRanges();
                         delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) downloadedBytes / (float) totalBytesCount));
                     }
                 }
@@ -1515,6 +1464,31 @@ public class FileLoadOperation {
         return false;
     }
 
+    private void onRequestFinished(RequestInfo requestInfo, int requestDatacenterId, TLObject response, TLRPC.TL_error error) {
+        long time = SystemClock.elapsedRealtime();
+        if (error != null) {
+            if (!FileRefController.isFileRefError(error.text)) {
+                getLoadScheduler().onRequestFailed(requestDatacenterId, time);
+            }
+            return;
+        }
+        NativeByteBuffer bytes;
+        if (response instanceof TLRPC.TL_upload_file) {
+            bytes = ((TLRPC.TL_upload_file) response).bytes;
+        } else if (response instanceof TLRPC.TL_upload_cdnFile) {
+            bytes = ((TLRPC.TL_upload_cdnFile) response).bytes;
+        } else if (response instanceof TLRPC.TL_upload_webFile) {
+            bytes = ((TLRPC.TL_upload_webFile) response).bytes;
+        } else {
+            return;
+        }
+        int count = bytes != null ? bytes.limit() : 0;
+        receivedBytesCount += count;
+        completedRequestsCount++;
+        totalRequestsTime += time - requestInfo.sendTime;
+        getLoadScheduler().onRequestCompleted(requestDatacenterId, count, requestInfo.sendTime, time);
+    }
+
     protected void onFail(boolean thread, final int reason) {
         cleanup();
         state = stateFailed;
@@ -1587,6 +1561,9 @@ public class FileLoadOperation {
     }
 
     protected void startDownloadRequest() {
+        if (state == stateDownloading && !paused) {
+            currentMaxDownloadRequests = getLoadScheduler().getMaxRequests(this, getCurrentDatacenterId());
+        }
         if (paused ||
                 state != stateDownloading ||
                 streamPriorityStartOffset == 0 && (
@@ -1640,28 +1617,11 @@ public class FileLoadOperation {
             } else {
                 if (notRequestedBytesRanges != null) {
                     int sreamOffset = streamPriorityStartOffset != 0 ? streamPriorityStartOffset : streamStartOffset;
-                    int size = notRequestedBytesRanges.size();
-                    int minStart = Integer.MAX_VALUE;
-                    int minStreamStart = Integer.MAX_VALUE;
-                    for (int b = 0; b < size; b++) {
-                        Range range = notRequestedBytesRanges.get(b);
-                        if (sreamOffset != 0) {
-                            if (range.start <= sreamOffset && range.end > sreamOffset) {
-                                minStreamStart = sreamOffset;
-                                minStart = Integer.MAX_VALUE;
-                                break;
-                            }
-                            if (sreamOffset < range.start && range.start < minStreamStart) {
-                                minStreamStart = range.start;
-                            }
-                        }
-                        minStart = Math.min(minStart, range.start);
+                    downloadOffset = sreamOffset != 0 ? notRequestedBytesRanges.findOffset(sreamOffset) : -1;
+                    if (downloadOffset < 0) {
+                        downloadOffset = notRequestedBytesRanges.getFirstStart();
                     }
-                    if (minStreamStart != Integer.MAX_VALUE) {
-                        downloadOffset = minStreamStart;
-                    } else if (minStart != Integer.MAX_VALUE) {
-                        downloadOffset = minStart;
-                    } else {
+                    if (downloadOffset < 0) {
                         break;
                     }
                 } else {
@@ -1737,10 +1697,13 @@ public class FileLoadOperation {
                 priorityRequestInfo = requestInfo;
             }
 
+            requestInfo.sendTime = SystemClock.elapsedRealtime();
+            final int requestDatacenterId = getCurrentDatacenterId();
             requestInfo.requestToken = ConnectionsManager.getInstance(currentAccount).sendRequest(request, (response, error) -> {
                 if (!requestInfos.contains(requestInfo)) {
                     return;
                 }
+                onRequestFinished(requestInfo, requestDatacenterId, response, error);
                 if (requestInfo == priorityRequestInfo) {
                     if (BuildVars.DEBUG_VERSION) {
                         FileLog.d("frame get request completed " + priorityRequestInfo.offset);
@@ -1779,8 +1742,8 @@ public class FileLoadOperation {
                     } else {
                         isCdn = true;
                         if (notCheckedCdnRanges == null) {
-                            notCheckedCdnRanges = new ArrayList<>();
-                            notCheckedCdnRanges.add(new Range(0, maxCdnParts));
+                            notCheckedCdnRanges = new RangeSet();
+                            notCheckedCdnRanges.add(0, maxCdnParts);
                         }
                         cdnDatacenterId = res.dc_id;
                         cdnIv = res.encryption_iv;
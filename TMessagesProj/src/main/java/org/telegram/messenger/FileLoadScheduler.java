@@ -0,0 +1,206 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Shares the download budget of one account between its {@link FileLoadOperation}s. For every
+ * datacenter it keeps a window of requests in flight that grows while the round trip time stays close
+ * to the best one seen and shrinks once requests start queueing up (the same idea TCP Vegas uses),
+ * plus a throughput estimate that decides the chunk size of small files. Streaming operations always
+ * get the first half of the window, background prefetch only what is left.
+ *
+ * Time is passed in by the callers, so the class has no dependencies on the network layer.
+ */
+public class FileLoadScheduler {
+
+    public static final int MIN_WINDOW = 2;
+    public static final int MAX_WINDOW = 24;
+    public static final int INITIAL_WINDOW = 8;
+    public static final int MAX_REQUESTS_PER_OPERATION = 8;
+
+    private static final int[] SMALL_CHUNK_SIZES = new int[]{1024 * 32, 1024 * 64, 1024 * 128};
+
+    private static final int THROUGHPUT_INTERVAL = 1000;
+    private static final int MIN_RTT_TTL = 30000;
+    private static final double WINDOW_ALPHA = 1.0;
+    private static final double WINDOW_BETA = 3.0;
+
+    private static class DatacenterState {
+        double window = INITIAL_WINDOW;
+        double throughput;
+        double rtt;
+        long minRtt;
+        long minRttTime;
+        long lastDecreaseTime;
+        long intervalStart;
+        long intervalBytes;
+        long totalBytes;
+        int completedRequests;
+        int failedRequests;
+    }
+
+    private final SparseArray<DatacenterState> states = new SparseArray<>();
+    private final ArrayList<FileLoadOperation> operations = new ArrayList<>();
+
+    private DatacenterState getState(int datacenterId) {
+        DatacenterState state = states.get(datacenterId);
+        if (state == null) {
+            state = new DatacenterState();
+            states.put(datacenterId, state);
+        }
+        return state;
+    }
+
+    public synchronized void addOperation(FileLoadOperation operation) {
+        if (!operations.contains(operation)) {
+            operations.add(operation);
+        }
+    }
+
+    /**
+     * Number of requests the operation may keep in flight right now, never less than one so that
+     * every started operation makes progress. Operations that stopped downloading, e.g. were paused,
+     * are dropped here; the operation asking is registered again if it was one of them.
+     */
+    public synchronized int getMaxRequests(FileLoadOperation operation, int datacenterId) {
+        DatacenterState state = getState(datacenterId);
+        int window = (int) Math.round(state.window);
+        int othersRequests = 0;
+        int streamRequests = 0;
+        boolean hasStream = false;
+        boolean registered = false;
+        for (int a = 0; a < operations.size(); a++) {
+            FileLoadOperation other = operations.get(a);
+            if (!other.isDownloading()) {
+                operations.remove(a);
+                a--;
+                continue;
+            }
+            if (other == operation) {
+                registered = true;
+                continue;
+            }
+            if (other.getCurrentDatacenterId() != datacenterId) {
+                continue;
+            }
+            int count = other.getRequestsInFlight();
+            othersRequests += count;
+            if (other.isStreaming()) {
+                hasStream = true;
+                streamRequests += count;
+            }
+        }
+        if (!registered && operation.isDownloading()) {
+            operations.add(operation);
+        }
+        int available;
+        if (operation.isStreaming()) {
+            available = window - streamRequests;
+            if (available < window / 2) {
+                available = window / 2;
+            }
+        } else if (operation.isBackgroundLoad()) {
+            available = window - othersRequests;
+            if (hasStream) {
+                available -= Math.max(0, window / 2 - streamRequests);
+            }
+        } else {
+            available = window - othersRequests;
+        }
+        return Math.max(1, Math.min(MAX_REQUESTS_PER_OPERATION, available));
+    }
+
+    public synchronized int getChunkSize(int datacenterId, int defaultChunkSize) {
+        DatacenterState state = states.get(datacenterId);
+        if (state == null || state.completedRequests < 8 || state.throughput <= 0 || state.minRtt <= 0) {
+            return defaultChunkSize;
+        }
+        double bytesPerRequest = state.throughput * state.minRtt / Math.max(1.0, state.window);
+        for (int a = 0; a < SMALL_CHUNK_SIZES.length; a++) {
+            if (bytesPerRequest <= SMALL_CHUNK_SIZES[a]) {
+                return Math.max(defaultChunkSize, SMALL_CHUNK_SIZES[a]);
+            }
+        }
+        return Math.max(defaultChunkSize, SMALL_CHUNK_SIZES[SMALL_CHUNK_SIZES.length - 1]);
+    }
+
+    /**
+     * Scales one of the fixed per type concurrency limits of {@link FileLoader} by how much room the
+     * datacenter has shown so far.
+     */
+    public synchronized int getMaxOperations(int datacenterId, int defaultCount) {
+        DatacenterState state = states.get(datacenterId);
+        if (state == null || state.window <= INITIAL_WINDOW) {
+            return defaultCount;
+        }
+        return Math.min(defaultCount * 2, (int) (defaultCount * state.window / INITIAL_WINDOW));
+    }
+
+    public synchronized void onRequestCompleted(int datacenterId, int bytes, long sendTime, long time) {
+        DatacenterState state = getState(datacenterId);
+        long rtt = Math.max(1, time - sendTime);
+        state.completedRequests++;
+        state.totalBytes += bytes;
+        state.rtt = state.rtt == 0 ? rtt : state.rtt * 0.875 + rtt * 0.125;
+        if (state.minRtt == 0 || rtt <= state.minRtt || time - state.minRttTime > MIN_RTT_TTL) {
+            state.minRtt = rtt;
+            state.minRttTime = time;
+        }
+
+        if (state.intervalStart == 0) {
+            state.intervalStart = sendTime;
+        }
+        state.intervalBytes += bytes;
+        long interval = time - state.intervalStart;
+        if (interval >= THROUGHPUT_INTERVAL) {
+            double sample = state.intervalBytes / (double) interval;
+            state.throughput = state.throughput == 0 ? sample : state.throughput * 0.7 + sample * 0.3;
+            state.intervalStart = time;
+            state.intervalBytes = 0;
+        }
+
+        double queued = state.window * (1.0 - state.minRtt / state.rtt);
+        if (queued < WINDOW_ALPHA) {
+            state.window = Math.min(MAX_WINDOW, state.window + 1.0 / state.window);
+        } else if (queued > WINDOW_BETA && time - state.lastDecreaseTime > state.rtt) {
+            state.window = Math.max(MIN_WINDOW, state.window - 1.0);
+            state.lastDecreaseTime = time;
+        }
+    }
+
+    public synchronized void onRequestFailed(int datacenterId, long time) {
+        DatacenterState state = getState(datacenterId);
+        state.failedRequests++;
+        if (time - state.lastDecreaseTime > state.rtt) {
+            state.window = Math.max(MIN_WINDOW, state.window / 2);
+            state.lastDecreaseTime = time;
+        }
+    }
+
+    public synchronized String getStats() {
+        StringBuilder builder = new StringBuilder();
+        for (int a = 0, N = states.size(); a < N; a++) {
+            DatacenterState state = states.valueAt(a);
+            if (a != 0) {
+                builder.append("\n");
+            }
+            builder.append("dc").append(states.keyAt(a));
+            builder.append(": window=").append(String.format("%.1f", state.window));
+            builder.append(" throughput=").append((int) (state.throughput * 1000 / 1024)).append("KB/s");
+            builder.append(" rtt=").append((int) state.rtt).append("ms minRtt=").append(state.minRtt).append("ms");
+            builder.append(" requests=").append(state.completedRequests).append(" failed=").append(state.failedRequests);
+            builder.append(" bytes=").append(state.totalBytes);
+        }
+        return builder.toString();
+    }
+}
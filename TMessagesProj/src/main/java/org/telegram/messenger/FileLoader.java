@@ -42,7 +42,7 @@ public class FileLoader extends BaseController {
     public static final int MEDIA_DIR_DOCUMENT = 3;
     public static final int MEDIA_DIR_CACHE = 4;
 
-    private volatile static DispatchQueue fileLoaderQueue = new DispatchQueue("fileUploadQueue");
+    private volatile static DispatchQueue fileLoaderQueue = new DispatchQueue("fileUploadQueue", true);
 
     private LinkedList<FileUploadOperation> uploadOperationQueue = new LinkedList<>();
     private LinkedList<FileUploadOperation> uploadSmallOperationQueue = new LinkedList<>();
@@ -65,6 +65,8 @@ public class FileLoader extends BaseController {
 
     private HashMap<String, Boolean> loadingVideos = new HashMap<>();
 
+    private FileLoadScheduler loadScheduler = new FileLoadScheduler();
+
     private static SparseArray<File> mediaDirs = null;
     private FileLoaderDelegate delegate = null;
 
@@ -89,6 +91,10 @@ public class FileLoader extends BaseController {
         super(instance);
     }
 
+    public FileLoadScheduler getLoadScheduler() {
+        return loadScheduler;
+    }
+
     public static void setMediaDirs(SparseArray<File> dirs) {
         mediaDirs = dirs;
     }
@@ -673,7 +679,7 @@ public class FileLoader extends BaseController {
         loadOperationPaths.put(fileName, operation);
         operation.setPriority(priority);
         if (type == MEDIA_DIR_AUDIO) {
-            int maxCount = priority > 0 ? 3 : 1;
+            int maxCount = loadScheduler.getMaxOperations(datacenterId, priority > 0 ? 3 : 1);
             int count = currentAudioLoadOperationsCount.get(datacenterId);
             if (stream != null || count < maxCount) {
                 if (operation.start(stream, streamOffset, streamPriority)) {
@@ -683,7 +689,7 @@ public class FileLoader extends BaseController {
                 addOperationToQueue(operation, audioLoadOperationQueue);
             }
         } else if (location != null || MessageObject.isImageWebDocument(webDocument)) {
-            int maxCount = priority > 0 ? 6 : 2;
+            int maxCount = loadScheduler.getMaxOperations(datacenterId, priority > 0 ? 6 : 2);
             int count = currentPhotoLoadOperationsCount.get(datacenterId);
             if (stream != null || count < maxCount) {
                 if (operation.start(stream, streamOffset, streamPriority)) {
@@ -693,7 +699,7 @@ public class FileLoader extends BaseController {
                 addOperationToQueue(operation, photoLoadOperationQueue);
             }
         } else {
-            int maxCount = priority > 0 ? 4 : 1;
+            int maxCount = loadScheduler.getMaxOperations(datacenterId, priority > 0 ? 4 : 1);
             int count = currentLoadOperationsCount.get(datacenterId);
             if (stream != null || count < maxCount) {
                 if (operation.start(stream, streamOffset, streamPriority)) {
@@ -778,7 +784,7 @@ public class FileLoader extends BaseController {
                 }
                 while (!audioLoadOperationQueue.isEmpty()) {
                     operation = audioLoadOperationQueue.get(0);
-                    int maxCount = operation.getPriority() != 0 ? 3 : 1;
+                    int maxCount = loadScheduler.getMaxOperations(datacenterId, operation.getPriority() != 0 ? 3 : 1);
                     if (count < maxCount) {
                         operation = audioLoadOperationQueue.poll();
                         if (operation != null && operation.start()) {
@@ -801,7 +807,7 @@ public class FileLoader extends BaseController {
                 }
                 while (!photoLoadOperationQueue.isEmpty()) {
                     operation = photoLoadOperationQueue.get(0);
-                    int maxCount = operation.getPriority() != 0 ? 6 : 2;
+                    int maxCount = loadScheduler.getMaxOperations(datacenterId, operation.getPriority() != 0 ? 6 : 2);
                     if (count < maxCount) {
                         operation = photoLoadOperationQueue.poll();
                         if (operation != null && operation.start()) {
@@ -825,7 +831,7 @@ public class FileLoader extends BaseController {
                 }
                 while (!loadOperationQueue.isEmpty()) {
                     operation = loadOperationQueue.get(0);
-                    int maxCount = operation.isForceRequest() ? 3 : 1;
+                    int maxCount = loadScheduler.getMaxOperations(datacenterId, operation.isForceRequest() ? 3 : 1);
                     if (count < maxCount) {
                         operation = loadOperationQueue.poll();
                         if (operation != null && operation.start()) {
@@ -11,6 +11,7 @@ package org.telegram.messenger;
 import android.app.Activity;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
@@ -21,7 +22,6 @@ import org.telegram.tgnet.TLRPC;
 
 import java.io.File;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
 
 public class FileUploadOperation {
 
@@ -30,6 +30,22 @@ public class FileUploadOperation {
         private byte[] iv;
     }
 
+    private static class UploadPart {
+        private TLObject request;
+        private NativeByteBuffer buffer;
+        private int partNum;
+        private int bytesCount;
+        private long endOffset;
+        private byte[] iv;
+        private long sendTime;
+    }
+
+    private static final DispatchQueue[] workQueues = new DispatchQueue[]{new DispatchQueue("fileUploadQueue0"), new DispatchQueue("fileUploadQueue1")};
+    private static int nextWorkQueue;
+
+    private static volatile double uploadSpeed;
+    private static volatile double uploadRtt;
+
     private int currentAccount;
     private boolean isLastPart;
     private boolean nextPartFirst;
@@ -40,10 +56,12 @@ public class FileUploadOperation {
     private static final int initialRequestsSlowNetworkCount = 1;
     private static final int maxUploadingKBytes = 1024 * 2;
     private static final int maxUploadingSlowNetworkKBytes = 32;
+    private static final int maxAdaptiveUploadingKBytes = 1024 * 4;
+    private static final int maxAdaptiveUploadChunkSize = 512;
+    private static final int maxAdaptiveRequestsCount = 16;
     private int maxRequestsCount;
     private int uploadChunkSize = 64 * 1024;
     private boolean slowNetwork;
-    private ArrayList<byte[]> freeRequestIvs;
     private int requestNum;
     private String uploadingFilePath;
     private int state;
@@ -75,6 +93,10 @@ public class FileUploadOperation {
     private long availableSize;
     private boolean uploadFirstPartLater;
     private SparseArray<UploadCachedResult> cachedResults = new SparseArray<>();
+    private final DispatchQueue workQueue;
+    private UploadPart preparedPart;
+    private long speedIntervalStart;
+    private long speedIntervalBytes;
 
     public interface FileUploadOperationDelegate {
         void didFinishUploadingFile(FileUploadOperation operation, TLRPC.InputFile inputFile, TLRPC.InputEncryptedFile inputEncryptedFile, byte[] key, byte[] iv);
@@ -89,6 +111,10 @@ public class FileUploadOperation {
         estimatedSize = estimated;
         currentType = type;
         uploadFirstPartLater = estimated != 0 && !isEncrypted;
+        synchronized (workQueues) {
+            workQueue = workQueues[nextWorkQueue];
+            nextWorkQueue = (nextWorkQueue + 1) % workQueues.length;
+        }
     }
 
     public long getTotalFileSize() {
@@ -104,7 +130,7 @@ public class FileUploadOperation {
             return;
         }
         state = 1;
-        Utilities.stageQueue.postRunnable(() -> {
+        workQueue.postRunnable(() -> {
             preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
             slowNetwork = ApplicationLoader.isConnectionSlow();
             if (BuildVars.LOGS_ENABLED) {
@@ -120,7 +146,7 @@ public class FileUploadOperation {
         if (state != 1) {
             return;
         }
-        Utilities.stageQueue.postRunnable(() -> {
+        workQueue.postRunnable(() -> {
             if (slowNetwork != slow) {
                 slowNetwork = slow;
                 if (BuildVars.LOGS_ENABLED) {
@@ -130,6 +156,7 @@ public class FileUploadOperation {
                     ConnectionsManager.getInstance(currentAccount).cancelRequest(requestTokens.valueAt(a), true);
                 }
                 requestTokens.clear();
+                releasePreparedPart();
                 cleanup();
                 isLastPart = false;
                 nextPartFirst = false;
@@ -159,13 +186,21 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        Utilities.stageQueue.postRunnable(() -> {
+        workQueue.postRunnable(() -> {
             for (int a = 0; a < requestTokens.size(); a++) {
                 ConnectionsManager.getInstance(currentAccount).cancelRequest(requestTokens.valueAt(a), true);
             }
+            releasePreparedPart();
+            cleanup();
         });
         delegate.didFailedUploadingFile(this);
-        cleanup();
+    }
+
+    private void releasePreparedPart() {
+        if (preparedPart != null) {
+            preparedPart.buffer.reuse();
+            preparedPart = null;
+        }
     }
 
     private void cleanup() {
@@ -178,7 +213,8 @@ public class FileUploadOperation {
                 remove(fileKey + "_id").
                 remove(fileKey + "_iv").
                 remove(fileKey + "_key").
-                remove(fileKey + "_ivc").commit();
+                remove(fileKey + "_ivc").
+                remove(fileKey + "_chunk").commit();
         try {
             if (stream != null) {
                 stream.close();
@@ -190,7 +226,7 @@ public class FileUploadOperation {
     }
 
     protected void checkNewDataAvailable(final long newAvailableSize, final long finalSize) {
-        Utilities.stageQueue.postRunnable(() -> {
+        workQueue.postRunnable(() -> {
             if (estimatedSize != 0 && finalSize != 0) {
                 estimatedSize = 0;
                 totalFileSize = finalSize;
@@ -211,6 +247,7 @@ public class FileUploadOperation {
         editor.putInt(fileKey + "_time", uploadStartTime);
         editor.putLong(fileKey + "_size", totalFileSize);
         editor.putLong(fileKey + "_id", currentFileId);
+        editor.putInt(fileKey + "_chunk", uploadChunkSize);
         editor.remove(fileKey + "_uploaded");
         if (isEncrypted) {
             editor.putString(fileKey + "_iv", Utilities.bytesToHex(iv));
@@ -236,257 +273,292 @@ public class FileUploadOperation {
         if (state != 1) {
             return;
         }
+        UploadPart part = preparedPart;
+        preparedPart = null;
+        try {
+            if (part == null) {
+                part = readPart();
+            }
+            if (part == null) {
+                return;
+            }
+            sendPart(part);
+            if (state == 1 && !isLastPart && currentUploadRequetsCount >= maxRequestsCount) {
+                preparedPart = readPart();
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            state = 4;
+            delegate.didFailedUploadingFile(this);
+            cleanup();
+        }
+    }
 
-        final TLObject finalRequest;
+    /**
+     * Reads and encrypts the next part; called again right after a request is sent so the following
+     * part is ready by the time a slot frees up.
+     */
+    private UploadPart readPart() throws Exception {
         final int currentRequestPartNum;
-
         final int currentRequestBytes;
         final byte[] currentRequestIv;
-        try {
-            started = true;
-            if (stream == null) {
-                File cacheFile = new File(uploadingFilePath);
-                if (AndroidUtilities.isInternalUri(Uri.fromFile(cacheFile))) {
-                    throw new Exception("trying to upload internal file");
-                }
-                stream = new RandomAccessFile(cacheFile, "r");
-                if (estimatedSize != 0) {
-                    totalFileSize = estimatedSize;
-                } else {
-                    totalFileSize = cacheFile.length();
-                }
-                if (totalFileSize > 10 * 1024 * 1024) {
-                    isBigFile = true;
-                }
+        started = true;
+        if (stream == null) {
+            File cacheFile = new File(uploadingFilePath);
+            if (AndroidUtilities.isInternalUri(Uri.fromFile(cacheFile))) {
+                throw new Exception("trying to upload internal file");
+            }
+            stream = new RandomAccessFile(cacheFile, "r");
+            if (estimatedSize != 0) {
+                totalFileSize = estimatedSize;
+            } else {
+                totalFileSize = cacheFile.length();
+            }
+            if (totalFileSize > 10 * 1024 * 1024) {
+                isBigFile = true;
+            }
 
-                uploadChunkSize = (int) Math.max(slowNetwork ? minUploadChunkSlowNetworkSize : minUploadChunkSize, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
-                if (1024 % uploadChunkSize != 0) {
-                    int chunkSize = 64;
-                    while (uploadChunkSize > chunkSize) {
-                        chunkSize *= 2;
-                    }
-                    uploadChunkSize = chunkSize;
+            uploadChunkSize = (int) Math.max(slowNetwork ? minUploadChunkSlowNetworkSize : minUploadChunkSize, (totalFileSize + 1024 * 3000 - 1) / (1024 * 3000));
+            if (!slowNetwork && uploadSpeed > 0) {
+                uploadChunkSize = (int) Math.max(uploadChunkSize, Math.min(maxAdaptiveUploadChunkSize, uploadSpeed * 250 / 1024));
+            }
+            if (1024 % uploadChunkSize != 0) {
+                int chunkSize = 64;
+                while (uploadChunkSize > chunkSize) {
+                    chunkSize *= 2;
                 }
-                maxRequestsCount = Math.max(1, (slowNetwork ? maxUploadingSlowNetworkKBytes : maxUploadingKBytes) / uploadChunkSize);
+                uploadChunkSize = chunkSize;
+            }
 
+            fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
+            long fileSize = preferences.getLong(fileKey + "_size", 0);
+            int savedChunkSize = preferences.getInt(fileKey + "_chunk", 0);
+            boolean canResume = !uploadFirstPartLater && !nextPartFirst && estimatedSize == 0 && fileSize == totalFileSize && savedChunkSize > 0 && savedChunkSize % 1024 == 0;
+            if (canResume) {
+                uploadChunkSize = savedChunkSize / 1024;
+            }
+            maxRequestsCount = Math.max(1, (slowNetwork ? maxUploadingSlowNetworkKBytes : maxUploadingKBytes) / uploadChunkSize);
+
+            uploadChunkSize *= 1024;
+            calcTotalPartsCount();
+            readBuffer = new byte[uploadChunkSize];
+
+            uploadStartTime = (int)(System.currentTimeMillis() / 1000);
+            boolean rewrite = false;
+            if (canResume) {
+                currentFileId = preferences.getLong(fileKey + "_id", 0);
+                int date = preferences.getInt(fileKey + "_time", 0);
+                long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
                 if (isEncrypted) {
-                    freeRequestIvs = new ArrayList<>(maxRequestsCount);
-                    for (int a = 0; a < maxRequestsCount; a++) {
-                        freeRequestIvs.add(new byte[32]);
-                    }
-                }
-
-                uploadChunkSize *= 1024;
-                calcTotalPartsCount();
-                readBuffer = new byte[uploadChunkSize];
-
-                fileKey = Utilities.MD5(uploadingFilePath + (isEncrypted ? "enc" : ""));
-                long fileSize = preferences.getLong(fileKey + "_size", 0);
-                uploadStartTime = (int)(System.currentTimeMillis() / 1000);
-                boolean rewrite = false;
-                if (!uploadFirstPartLater && !nextPartFirst && estimatedSize == 0 && fileSize == totalFileSize) {
-                    currentFileId = preferences.getLong(fileKey + "_id", 0);
-                    int date = preferences.getInt(fileKey + "_time", 0);
-                    long uploadedSize = preferences.getLong(fileKey + "_uploaded", 0);
-                    if (isEncrypted) {
-                        String ivString = preferences.getString(fileKey + "_iv", null);
-                        String keyString = preferences.getString(fileKey + "_key", null);
-                        if (ivString != null && keyString != null) {
-                            key = Utilities.hexToBytes(keyString);
-                            iv = Utilities.hexToBytes(ivString);
-                            if (key != null && iv != null && key.length == 32 && iv.length == 32) {
-                                ivChange = new byte[32];
-                                System.arraycopy(iv, 0, ivChange, 0, 32);
-                            } else {
-                                rewrite = true;
-                            }
+                    String ivString = preferences.getString(fileKey + "_iv", null);
+                    String keyString = preferences.getString(fileKey + "_key", null);
+                    if (ivString != null && keyString != null) {
+                        key = Utilities.hexToBytes(keyString);
+                        iv = Utilities.hexToBytes(ivString);
+                        if (key != null && iv != null && key.length == 32 && iv.length == 32) {
+                            ivChange = new byte[32];
+                            System.arraycopy(iv, 0, ivChange, 0, 32);
                         } else {
                             rewrite = true;
                         }
+                    } else {
+                        rewrite = true;
                     }
-                    if (!rewrite && date != 0) {
-                        if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
-                            date = 0;
-                        } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
-                            date = 0;
-                        }
-                        if (date != 0) {
-                            if (uploadedSize > 0) {
-                                readBytesCount = uploadedSize;
-                                currentPartNum = (int) (uploadedSize / uploadChunkSize);
-                                if (!isBigFile) {
-                                    for (int b = 0; b < readBytesCount / uploadChunkSize; b++) {
-                                        int bytesRead = stream.read(readBuffer);
-                                        int toAdd = 0;
-                                        if (isEncrypted && bytesRead % 16 != 0) {
-                                            toAdd += 16 - bytesRead % 16;
-                                        }
-                                        NativeByteBuffer sendBuffer = new NativeByteBuffer(bytesRead + toAdd);
-                                        if (bytesRead != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                                            isLastPart = true;
-                                        }
-                                        sendBuffer.writeBytes(readBuffer, 0, bytesRead);
-                                        if (isEncrypted) {
-                                            for (int a = 0; a < toAdd; a++) {
-                                                sendBuffer.writeByte(0);
-                                            }
-                                            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, bytesRead + toAdd);
-                                        }
-                                        sendBuffer.reuse();
+                }
+                if (!rewrite && date != 0) {
+                    if (isBigFile && date < uploadStartTime - 60 * 60 * 24) {
+                        date = 0;
+                    } else if (!isBigFile && date < uploadStartTime - 60 * 60 * 1.5f) {
+                        date = 0;
+                    }
+                    if (date != 0) {
+                        if (uploadedSize > 0 && uploadedSize % uploadChunkSize == 0) {
+                            readBytesCount = uploadedSize;
+                            currentPartNum = (int) (uploadedSize / uploadChunkSize);
+                            if (!isBigFile) {
+                                for (int b = 0; b < readBytesCount / uploadChunkSize; b++) {
+                                    int bytesRead = stream.read(readBuffer);
+                                    int toAdd = 0;
+                                    if (isEncrypted && bytesRead % 16 != 0) {
+                                        toAdd += 16 - bytesRead % 16;
+                                    }
+                                    NativeByteBuffer sendBuffer = new NativeByteBuffer(bytesRead + toAdd);
+                                    if (bytesRead != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
+                                        isLastPart = true;
                                     }
-                                } else {
-                                    stream.seek(uploadedSize);
+                                    sendBuffer.writeBytes(readBuffer, 0, bytesRead);
                                     if (isEncrypted) {
-                                        String ivcString = preferences.getString(fileKey + "_ivc", null);
-                                        if (ivcString != null) {
-                                            ivChange = Utilities.hexToBytes(ivcString);
-                                            if (ivChange == null || ivChange.length != 32) {
-                                                rewrite = true;
-                                                readBytesCount = 0;
-                                                currentPartNum = 0;
-                                            }
-                                        } else {
+                                        for (int a = 0; a < toAdd; a++) {
+                                            sendBuffer.writeByte(0);
+                                        }
+                                        Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, bytesRead + toAdd);
+                                    }
+                                    sendBuffer.reuse();
+                                }
+                            } else {
+                                stream.seek(uploadedSize);
+                                if (isEncrypted) {
+                                    String ivcString = preferences.getString(fileKey + "_ivc", null);
+                                    if (ivcString != null) {
+                                        ivChange = Utilities.hexToBytes(ivcString);
+                                        if (ivChange == null || ivChange.length != 32) {
                                             rewrite = true;
                                             readBytesCount = 0;
                                             currentPartNum = 0;
                                         }
+                                    } else {
+                                        rewrite = true;
+                                        readBytesCount = 0;
+                                        currentPartNum = 0;
                                     }
                                 }
-                            } else {
-                                rewrite = true;
                             }
+                            if (BuildVars.LOGS_ENABLED && !rewrite) {
+                                FileLog.d("resume upload of " + uploadingFilePath + " from part " + currentPartNum + " of " + totalPartsCount);
+                            }
+                        } else {
+                            rewrite = true;
                         }
-                    } else {
-                        rewrite = true;
                     }
                 } else {
                     rewrite = true;
                 }
-                if (rewrite) {
-                    if (isEncrypted) {
-                        iv = new byte[32];
-                        key = new byte[32];
-                        ivChange = new byte[32];
-                        Utilities.random.nextBytes(iv);
-                        Utilities.random.nextBytes(key);
-                        System.arraycopy(iv, 0, ivChange, 0, 32);
-                    }
-                    currentFileId = Utilities.random.nextLong();
-                    if (!nextPartFirst && !uploadFirstPartLater && estimatedSize == 0) {
-                        storeFileUploadInfo();
-                    }
-                }
-
+            } else {
+                rewrite = true;
+            }
+            if (rewrite) {
+                stream.seek(0);
+                readBytesCount = 0;
+                currentPartNum = 0;
+                isLastPart = false;
                 if (isEncrypted) {
-                    try {
-                        java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
-                        byte[] arr = new byte[64];
-                        System.arraycopy(key, 0, arr, 0, 32);
-                        System.arraycopy(iv, 0, arr, 32, 32);
-                        byte[] digest = md.digest(arr);
-                        for (int a = 0; a < 4; a++) {
-                            fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
-                        }
-                    } catch (Exception e) {
-                        FileLog.e(e);
-                    }
+                    iv = new byte[32];
+                    key = new byte[32];
+                    ivChange = new byte[32];
+                    Utilities.random.nextBytes(iv);
+                    Utilities.random.nextBytes(key);
+                    System.arraycopy(iv, 0, ivChange, 0, 32);
                 }
-                uploadedBytesCount = readBytesCount;
-                lastSavedPartNum = currentPartNum;
-
-                if (uploadFirstPartLater) {
-                    if (isBigFile) {
-                        stream.seek(uploadChunkSize);
-                        readBytesCount = uploadChunkSize;
-                    } else {
-                        stream.seek(1024);
-                        readBytesCount = 1024;
-                    }
-                    currentPartNum = 1;
+                currentFileId = Utilities.random.nextLong();
+                if (!nextPartFirst && !uploadFirstPartLater && estimatedSize == 0) {
+                    storeFileUploadInfo();
                 }
             }
 
-            if (estimatedSize != 0) {
-                if (readBytesCount + uploadChunkSize > availableSize) {
-                    return;
+            if (isEncrypted) {
+                try {
+                    java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
+                    byte[] arr = new byte[64];
+                    System.arraycopy(key, 0, arr, 0, 32);
+                    System.arraycopy(iv, 0, arr, 32, 32);
+                    byte[] digest = md.digest(arr);
+                    for (int a = 0; a < 4; a++) {
+                        fingerprint |= ((digest[a] ^ digest[a + 4]) & 0xFF) << (a * 8);
+                    }
+                } catch (Exception e) {
+                    FileLog.e(e);
                 }
             }
+            uploadedBytesCount = readBytesCount;
+            lastSavedPartNum = currentPartNum;
 
-            if (nextPartFirst) {
-                stream.seek(0);
+            if (uploadFirstPartLater) {
                 if (isBigFile) {
-                    currentRequestBytes = stream.read(readBuffer);
+                    stream.seek(uploadChunkSize);
+                    readBytesCount = uploadChunkSize;
                 } else {
-                    currentRequestBytes = stream.read(readBuffer, 0, 1024);
+                    stream.seek(1024);
+                    readBytesCount = 1024;
                 }
-                currentPartNum = 0;
-            } else {
-                currentRequestBytes = stream.read(readBuffer);
-            }
-            if (currentRequestBytes == -1) {
-                return;
+                currentPartNum = 1;
             }
-            int toAdd = 0;
-            if (isEncrypted && currentRequestBytes % 16 != 0) {
-                toAdd += 16 - currentRequestBytes % 16;
-            }
-            NativeByteBuffer sendBuffer = new NativeByteBuffer(currentRequestBytes + toAdd);
-            if (nextPartFirst || currentRequestBytes != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
-                if (uploadFirstPartLater) {
-                    nextPartFirst = true;
-                    uploadFirstPartLater = false;
-                } else {
-                    isLastPart = true;
-                }
+        }
+
+        if (estimatedSize != 0) {
+            if (readBytesCount + uploadChunkSize > availableSize) {
+                return null;
             }
-            sendBuffer.writeBytes(readBuffer, 0, currentRequestBytes);
-            if (isEncrypted) {
-                for (int a = 0; a < toAdd; a++) {
-                    sendBuffer.writeByte(0);
-                }
-                Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, currentRequestBytes + toAdd);
-                currentRequestIv = freeRequestIvs.get(0);
-                System.arraycopy(ivChange, 0, currentRequestIv, 0, 32);
-                freeRequestIvs.remove(0);
+        }
+
+        if (nextPartFirst) {
+            stream.seek(0);
+            if (isBigFile) {
+                currentRequestBytes = stream.read(readBuffer);
             } else {
-                currentRequestIv = null;
+                currentRequestBytes = stream.read(readBuffer, 0, 1024);
             }
-            if (isBigFile) {
-                TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentRequestPartNum = currentPartNum;
-                req.file_id = currentFileId;
-                if (estimatedSize != 0) {
-                    req.file_total_parts = -1;
-                } else {
-                    req.file_total_parts = totalPartsCount;
-                }
-                req.bytes = sendBuffer;
-                finalRequest = req;
+            currentPartNum = 0;
+        } else {
+            currentRequestBytes = stream.read(readBuffer);
+        }
+        if (currentRequestBytes == -1) {
+            return null;
+        }
+        int toAdd = 0;
+        if (isEncrypted && currentRequestBytes % 16 != 0) {
+            toAdd += 16 - currentRequestBytes % 16;
+        }
+        NativeByteBuffer sendBuffer = new NativeByteBuffer(currentRequestBytes + toAdd);
+        if (nextPartFirst || currentRequestBytes != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
+            if (uploadFirstPartLater) {
+                nextPartFirst = true;
+                uploadFirstPartLater = false;
             } else {
-                TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentRequestPartNum = currentPartNum;
-                req.file_id = currentFileId;
-                req.bytes = sendBuffer;
-                finalRequest = req;
+                isLastPart = true;
             }
-            if (isLastPart && nextPartFirst) {
-                nextPartFirst = false;
-                currentPartNum = totalPartsCount - 1;
-                stream.seek(totalFileSize);
+        }
+        sendBuffer.writeBytes(readBuffer, 0, currentRequestBytes);
+        if (isEncrypted) {
+            for (int a = 0; a < toAdd; a++) {
+                sendBuffer.writeByte(0);
             }
-            readBytesCount += currentRequestBytes;
-        } catch (Exception e) {
-            FileLog.e(e);
-            state = 4;
-            delegate.didFailedUploadingFile(this);
-            cleanup();
-            return;
+            Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, currentRequestBytes + toAdd);
+            currentRequestIv = new byte[32];
+            System.arraycopy(ivChange, 0, currentRequestIv, 0, 32);
+        } else {
+            currentRequestIv = null;
+        }
+        final TLObject finalRequest;
+        if (isBigFile) {
+            TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
+            req.file_part = currentRequestPartNum = currentPartNum;
+            req.file_id = currentFileId;
+            if (estimatedSize != 0) {
+                req.file_total_parts = -1;
+            } else {
+                req.file_total_parts = totalPartsCount;
+            }
+            req.bytes = sendBuffer;
+            finalRequest = req;
+        } else {
+            TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
+            req.file_part = currentRequestPartNum = currentPartNum;
+            req.file_id = currentFileId;
+            req.bytes = sendBuffer;
+            finalRequest = req;
+        }
+        if (isLastPart && nextPartFirst) {
+            nextPartFirst = false;
+            currentPartNum = totalPartsCount - 1;
+            stream.seek(totalFileSize);
         }
+        readBytesCount += currentRequestBytes;
         currentPartNum++;
+
+        UploadPart part = new UploadPart();
+        part.request = finalRequest;
+        part.buffer = sendBuffer;
+        part.partNum = currentRequestPartNum;
+        part.bytesCount = currentRequestBytes;
+        part.endOffset = readBytesCount;
+        part.iv = currentRequestIv;
+        return part;
+    }
+
+    private void sendPart(final UploadPart part) {
         currentUploadRequetsCount++;
         final int requestNumFinal = requestNum++;
-        final long currentRequestBytesOffset = currentRequestPartNum + currentRequestBytes;
-        final int requestSize = finalRequest.getObjectSize() + 4;
+        final int requestSize = part.request.getObjectSize() + 4;
         final int currentOperationGuid = operationGuid;
 
         int connectionType;
@@ -496,125 +568,144 @@ public class FileUploadOperation {
             connectionType = ConnectionsManager.ConnectionTypeUpload | ((requestNumFinal % 4) << 16);
         }
 
-        int requestToken = ConnectionsManager.getInstance(currentAccount).sendRequest(finalRequest, (response, error) -> {
-            if (currentOperationGuid != operationGuid) {
-                return;
+        part.sendTime = SystemClock.elapsedRealtime();
+        int requestToken = ConnectionsManager.getInstance(currentAccount).sendRequest(part.request, (response, error) -> workQueue.postRunnable(() -> onPartUploaded(part, response, requestNumFinal, currentOperationGuid, requestSize)), null, () -> workQueue.postRunnable(() -> {
+            if (currentOperationGuid == operationGuid && currentUploadRequetsCount < maxRequestsCount) {
+                startUploadRequest();
             }
-            int networkType = response != null ? response.networkType : ApplicationLoader.getCurrentNetworkType();
-            if (currentType == ConnectionsManager.FileTypeAudio) {
-                StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_AUDIOS, requestSize);
-            } else if (currentType == ConnectionsManager.FileTypeVideo) {
-                StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_VIDEOS, requestSize);
-            } else if (currentType == ConnectionsManager.FileTypePhoto) {
-                StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_PHOTOS, requestSize);
-            } else if (currentType == ConnectionsManager.FileTypeFile) {
-                StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_FILES, requestSize);
+        }), 0, ConnectionsManager.DEFAULT_DATACENTER_ID, connectionType, true);
+        requestTokens.put(requestNumFinal, requestToken);
+    }
+
+    private void updateUploadSpeed(UploadPart part) {
+        long time = SystemClock.elapsedRealtime();
+        long rtt = Math.max(1, time - part.sendTime);
+        uploadRtt = uploadRtt == 0 ? rtt : uploadRtt * 0.875 + rtt * 0.125;
+        if (speedIntervalStart == 0) {
+            speedIntervalStart = part.sendTime;
+        }
+        speedIntervalBytes += part.bytesCount;
+        long interval = time - speedIntervalStart;
+        if (interval < 1000) {
+            return;
+        }
+        double sample = speedIntervalBytes / (double) interval;
+        uploadSpeed = uploadSpeed == 0 ? sample : uploadSpeed * 0.7 + sample * 0.3;
+        speedIntervalStart = time;
+        speedIntervalBytes = 0;
+        if (!slowNetwork) {
+            long bytesInFlight = Math.min(maxAdaptiveUploadingKBytes * 1024L, (long) (uploadSpeed * uploadRtt * 1.25));
+            maxRequestsCount = (int) Math.max(2, Math.min(maxAdaptiveRequestsCount, bytesInFlight / uploadChunkSize + 1));
+        }
+    }
+
+    private void onPartUploaded(UploadPart part, TLObject response, int requestNumFinal, int currentOperationGuid, int requestSize) {
+        if (currentOperationGuid != operationGuid) {
+            return;
+        }
+        int networkType = response != null ? response.networkType : ApplicationLoader.getCurrentNetworkType();
+        if (currentType == ConnectionsManager.FileTypeAudio) {
+            StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_AUDIOS, requestSize);
+        } else if (currentType == ConnectionsManager.FileTypeVideo) {
+            StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_VIDEOS, requestSize);
+        } else if (currentType == ConnectionsManager.FileTypePhoto) {
+            StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_PHOTOS, requestSize);
+        } else if (currentType == ConnectionsManager.FileTypeFile) {
+            StatsController.getInstance(currentAccount).incrementSentBytesCount(networkType, StatsController.TYPE_FILES, requestSize);
+        }
+        requestTokens.delete(requestNumFinal);
+        if (response instanceof TLRPC.TL_boolTrue) {
+            if (state != 1) {
+                return;
             }
-            if (currentRequestIv != null) {
-                freeRequestIvs.add(currentRequestIv);
+            uploadedBytesCount += part.bytesCount;
+            updateUploadSpeed(part);
+            long size;
+            if (estimatedSize != 0) {
+                size = Math.max(availableSize, estimatedSize);
+            } else {
+                size = totalFileSize;
             }
-            requestTokens.delete(requestNumFinal);
-            if (response instanceof TLRPC.TL_boolTrue) {
-                if (state != 1) {
-                    return;
-                }
-                uploadedBytesCount += currentRequestBytes;
-                long size;
-                if (estimatedSize != 0) {
-                    size = Math.max(availableSize, estimatedSize);
+            delegate.didChangedUploadProgress(FileUploadOperation.this, uploadedBytesCount / (float) size);
+            currentUploadRequetsCount--;
+            if (isLastPart && currentUploadRequetsCount == 0 && preparedPart == null && state == 1) {
+                state = 3;
+                if (key == null) {
+                    TLRPC.InputFile result;
+                    if (isBigFile) {
+                        result = new TLRPC.TL_inputFileBig();
+                    } else {
+                        result = new TLRPC.TL_inputFile();
+                        result.md5_checksum = "";
+                    }
+                    result.parts = currentPartNum;
+                    result.id = currentFileId;
+                    result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+                    delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
+                    cleanup();
                 } else {
-                    size = totalFileSize;
-                }
-                delegate.didChangedUploadProgress(FileUploadOperation.this, uploadedBytesCount / (float) size);
-                currentUploadRequetsCount--;
-                if (isLastPart && currentUploadRequetsCount == 0 && state == 1) {
-                    state = 3;
-                    if (key == null) {
-                        TLRPC.InputFile result;
-                        if (isBigFile) {
-                            result = new TLRPC.TL_inputFileBig();
-                        } else {
-                            result = new TLRPC.TL_inputFile();
-                            result.md5_checksum = "";
-                        }
-                        result.parts = currentPartNum;
-                        result.id = currentFileId;
-                        result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                        delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
-                        cleanup();
+                    TLRPC.InputEncryptedFile result;
+                    if (isBigFile) {
+                        result = new TLRPC.TL_inputEncryptedFileBigUploaded();
                     } else {
-                        TLRPC.InputEncryptedFile result;
-                        if (isBigFile) {
-                            result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                        } else {
-                            result = new TLRPC.TL_inputEncryptedFileUploaded();
-                            result.md5_checksum = "";
-                        }
-                        result.parts = currentPartNum;
-                        result.id = currentFileId;
-                        result.key_fingerprint = fingerprint;
-                        delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
-                        cleanup();
+                        result = new TLRPC.TL_inputEncryptedFileUploaded();
+                        result.md5_checksum = "";
                     }
-                    if (currentType == ConnectionsManager.FileTypeAudio) {
-                        StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_AUDIOS, 1);
-                    } else if (currentType == ConnectionsManager.FileTypeVideo) {
-                        StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_VIDEOS, 1);
-                    } else if (currentType == ConnectionsManager.FileTypePhoto) {
-                        StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_PHOTOS, 1);
-                    } else if (currentType == ConnectionsManager.FileTypeFile) {
-                        StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_FILES, 1);
+                    result.parts = currentPartNum;
+                    result.id = currentFileId;
+                    result.key_fingerprint = fingerprint;
+                    delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
+                    cleanup();
+                }
+                if (currentType == ConnectionsManager.FileTypeAudio) {
+                    StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_AUDIOS, 1);
+                } else if (currentType == ConnectionsManager.FileTypeVideo) {
+                    StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_VIDEOS, 1);
+                } else if (currentType == ConnectionsManager.FileTypePhoto) {
+                    StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_PHOTOS, 1);
+                } else if (currentType == ConnectionsManager.FileTypeFile) {
+                    StatsController.getInstance(currentAccount).incrementSentItemsCount(ApplicationLoader.getCurrentNetworkType(), StatsController.TYPE_FILES, 1);
+                }
+            } else if (currentUploadRequetsCount < maxRequestsCount) {
+                if (estimatedSize == 0 && !uploadFirstPartLater && !nextPartFirst) {
+                    if (saveInfoTimes >= 4) {
+                        saveInfoTimes = 0;
                     }
-                } else if (currentUploadRequetsCount < maxRequestsCount) {
-                    if (estimatedSize == 0 && !uploadFirstPartLater && !nextPartFirst) {
-                        if (saveInfoTimes >= 4) {
-                            saveInfoTimes = 0;
-                        }
-                        if (currentRequestPartNum == lastSavedPartNum) {
+                    if (part.partNum == lastSavedPartNum) {
+                        lastSavedPartNum++;
+                        long offsetToSave = part.endOffset;
+                        byte[] ivToSave = part.iv;
+                        UploadCachedResult result;
+                        while ((result = cachedResults.get(lastSavedPartNum)) != null) {
+                            offsetToSave = result.bytesOffset;
+                            ivToSave = result.iv;
+                            cachedResults.remove(lastSavedPartNum);
                             lastSavedPartNum++;
-                            long offsetToSave = currentRequestBytesOffset;
-                            byte[] ivToSave = currentRequestIv;
-                            UploadCachedResult result;
-                            while ((result = cachedResults.get(lastSavedPartNum)) != null) {
-                                offsetToSave = result.bytesOffset;
-                                ivToSave = result.iv;
-                                cachedResults.remove(lastSavedPartNum);
-                                lastSavedPartNum++;
-                            }
-                            if (isBigFile && offsetToSave % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
-                                SharedPreferences.Editor editor = preferences.edit();
-                                editor.putLong(fileKey + "_uploaded", offsetToSave);
-                                if (isEncrypted) {
-                                    editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivToSave));
-                                }
-                                editor.commit();
-                            }
-                        } else {
-                            UploadCachedResult result = new UploadCachedResult();
-                            result.bytesOffset = currentRequestBytesOffset;
-                            if (currentRequestIv != null) {
-                                result.iv = new byte[32];
-                                System.arraycopy(currentRequestIv, 0, result.iv, 0, 32);
+                        }
+                        if (isBigFile && offsetToSave % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
+                            SharedPreferences.Editor editor = preferences.edit();
+                            editor.putLong(fileKey + "_uploaded", offsetToSave);
+                            if (isEncrypted) {
+                                editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivToSave));
                             }
-                            cachedResults.put(currentRequestPartNum, result);
+                            editor.commit();
                         }
-                        saveInfoTimes++;
+                    } else {
+                        UploadCachedResult result = new UploadCachedResult();
+                        result.bytesOffset = part.endOffset;
+                        result.iv = part.iv;
+                        cachedResults.put(part.partNum, result);
                     }
-                    startUploadRequest();
+                    saveInfoTimes++;
                 }
-            } else {
-                if (finalRequest != null) {
-                    FileLog.e("23123");
-                }
-                state = 4;
-                delegate.didFailedUploadingFile(FileUploadOperation.this);
-                cleanup();
-            }
-        }, null, () -> Utilities.stageQueue.postRunnable(() -> {
-            if (currentUploadRequetsCount < maxRequestsCount) {
                 startUploadRequest();
             }
-        }), 0, ConnectionsManager.DEFAULT_DATACENTER_ID, connectionType, true);
-        requestTokens.put(requestNumFinal, requestToken);
+        } else {
+            FileLog.e("upload part " + part.partNum + " failed");
+            state = 4;
+            delegate.didFailedUploadingFile(FileUploadOperation.this);
+            releasePreparedPart();
+            cleanup();
+        }
     }
 }
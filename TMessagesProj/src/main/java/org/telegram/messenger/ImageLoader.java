@@ -839,6 +839,15 @@ public class ImageLoader {
                 int orientation = 0;
                 File cacheFileFinal = cacheImage.finalFilePath;
                 boolean inEncryptedFile = cacheImage.secureDocument != null || cacheImage.encryptionKeyPath != null && cacheFileFinal != null && cacheFileFinal.getAbsolutePath().endsWith(".enc");
+                boolean useThumbnailDiskCache = Build.VERSION.SDK_INT >= 21 && cacheImage.filter != null && cacheImage.imageLocation.path == null && cacheImage.encryptionKeyPath == null && !inEncryptedFile;
+                if (useThumbnailDiskCache) {
+                    Bitmap cachedImage = ThumbnailDiskCache.getInstance().get(cacheImage.key);
+                    if (cachedImage != null) {
+                        Thread.interrupted();
+                        onPostExecute(new BitmapDrawable(cachedImage));
+                        return;
+                    }
+                }
                 SecureDocumentKey secureDocumentKey;
                 byte[] secureDocumentHash;
                 if (cacheImage.secureDocument != null) {
@@ -1280,6 +1289,9 @@ public class ImageLoader {
                 if (needInvert || orientation != 0) {
                     onPostExecute(image != null ? new ExtendedBitmapDrawable(image, needInvert, orientation) : null);
                 } else {
+                    if (useThumbnailDiskCache && image != null) {
+                        ThumbnailDiskCache.getInstance().put(cacheImage.key, image);
+                    }
                     onPostExecute(image != null ? new BitmapDrawable(image) : null);
                 }
             }
@@ -2048,6 +2060,44 @@ public class ImageLoader {
         memCache.put(key, bitmap);
     }
 
+    /**
+     * Moves the given key@filter thumbnails from {@link ThumbnailDiskCache} into the memory cache,
+     * so the first screen can be drawn before the regular cache-out tasks get to run.
+     */
+    public void preloadThumbnails(final ArrayList<String> keys) {
+        if (Build.VERSION.SDK_INT < 21 || keys == null || keys.isEmpty()) {
+            return;
+        }
+        cacheThumbOutQueue.postRunnable(() -> {
+            final ArrayList<String> loadedKeys = new ArrayList<>();
+            final ArrayList<Bitmap> loadedBitmaps = new ArrayList<>();
+            for (int a = 0, N = keys.size(); a < N; a++) {
+                String key = keys.get(a);
+                if (memCache.contains(key)) {
+                    continue;
+                }
+                Bitmap bitmap = ThumbnailDiskCache.getInstance().get(key);
+                if (bitmap != null) {
+                    loadedKeys.add(key);
+                    loadedBitmaps.add(bitmap);
+                }
+            }
+            if (loadedKeys.isEmpty()) {
+                return;
+            }
+            AndroidUtilities.runOnUIThread(() -> {
+                for (int a = 0, N = loadedKeys.size(); a < N; a++) {
+                    String key = loadedKeys.get(a);
+                    if (memCache.get(key) == null) {
+                        memCache.put(key, new BitmapDrawable(loadedBitmaps.get(a)));
+                    } else {
+                        loadedBitmaps.get(a).recycle();
+                    }
+                }
+            });
+        }, 0, DispatchQueue.PRIORITY_URGENT);
+    }
+
     private void generateThumb(int mediaType, File originalPath, ThumbGenerateInfo info) {
         if (mediaType != FileLoader.MEDIA_DIR_IMAGE && mediaType != FileLoader.MEDIA_DIR_VIDEO && mediaType != FileLoader.MEDIA_DIR_DOCUMENT || originalPath == null || info == null) {
             return;
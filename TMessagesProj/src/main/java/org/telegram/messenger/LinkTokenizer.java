@@ -0,0 +1,294 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+/**
+ * Hand written replacement for the link patterns {@link MessageObject} used to run through
+ * java.util.regex. It finds the same tokens as the patterns below in a single forward scan without
+ * backtracking and exposes them through a small Matcher-like API:
+ *
+ * MODE_DEFAULT: (^|\s)/[a-zA-Z@\d_]{1,255}|(^|\s|\()@[a-zA-Z\d_]{1,32}|(^|\s|\()#[\w.]+|(^|\s)\$[A-Z]{3,8}([ ,.]|$)
+ * MODE_INSTAGRAM: (^|\s|\()@[a-zA-Z\d_.]{1,32}|(^|\s|\()#[\w.]+
+ * MODE_TIMECODE: \b(?:(\d{1,2}):)?(\d{1,3}):([0-5][0-9])\b
+ *
+ * Character classes follow the ICU regex engine Android uses, so \d, \w, \s and \b are the Unicode
+ * aware versions.
+ */
+public class LinkTokenizer {
+
+    public static final int MODE_DEFAULT = 0;
+    public static final int MODE_INSTAGRAM = 1;
+    public static final int MODE_TIMECODE = 2;
+
+    private static final int CLASS_COMMAND = 0;
+    private static final int CLASS_USERNAME = 1;
+    private static final int CLASS_INSTAGRAM_USERNAME = 2;
+    private static final int CLASS_HASHTAG = 3;
+
+    private final CharSequence text;
+    private final int length;
+    private final int mode;
+
+    private int searchFrom;
+    private int start = -1;
+    private int end = -1;
+    private final int[] groups = new int[6];
+
+    public LinkTokenizer(CharSequence text, int mode) {
+        this.text = text;
+        this.length = text.length();
+        this.mode = mode;
+    }
+
+    public boolean find() {
+        for (int p = searchFrom; p < length; p++) {
+            int result = mode == MODE_TIMECODE ? matchTimecode(p) : matchToken(p);
+            if (result >= 0) {
+                start = p;
+                end = result;
+                searchFrom = result;
+                return true;
+            }
+        }
+        searchFrom = length;
+        start = end = -1;
+        return false;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    /**
+     * Bounds of the hours, minutes and seconds groups of the last timecode, -1 if a group did not
+     * take part in the match.
+     */
+    public int start(int group) {
+        return groups[(group - 1) * 2];
+    }
+
+    public int end(int group) {
+        return groups[(group - 1) * 2 + 1];
+    }
+
+    private int matchToken(int p) {
+        char c = text.charAt(p);
+        boolean space = isSpace(c);
+        boolean bracket = c == '(';
+        if (mode == MODE_DEFAULT) {
+            int result;
+            if (p == 0 && (result = matchPrefixed(p, '/', CLASS_COMMAND, 255)) >= 0) {
+                return result;
+            }
+            if (space && (result = matchPrefixed(p + 1, '/', CLASS_COMMAND, 255)) >= 0) {
+                return result;
+            }
+        }
+        int usernameClass = mode == MODE_INSTAGRAM ? CLASS_INSTAGRAM_USERNAME : CLASS_USERNAME;
+        int result;
+        if (p == 0 && (result = matchPrefixed(p, '@', usernameClass, 32)) >= 0) {
+            return result;
+        }
+        if ((space || bracket) && (result = matchPrefixed(p + 1, '@', usernameClass, 32)) >= 0) {
+            return result;
+        }
+        if (p == 0 && (result = matchPrefixed(p, '#', CLASS_HASHTAG, Integer.MAX_VALUE)) >= 0) {
+            return result;
+        }
+        if ((space || bracket) && (result = matchPrefixed(p + 1, '#', CLASS_HASHTAG, Integer.MAX_VALUE)) >= 0) {
+            return result;
+        }
+        if (mode == MODE_DEFAULT) {
+            if (p == 0 && (result = matchCashtag(p)) >= 0) {
+                return result;
+            }
+            if (space && (result = matchCashtag(p + 1)) >= 0) {
+                return result;
+            }
+        }
+        return -1;
+    }
+
+    private int matchPrefixed(int q, char prefix, int charClass, int maxCount) {
+        if (q >= length || text.charAt(q) != prefix) {
+            return -1;
+        }
+        int i = q + 1;
+        int count = 0;
+        while (i < length && count < maxCount) {
+            int cp = Character.codePointAt(text, i);
+            if (!isInClass(cp, charClass)) {
+                break;
+            }
+            i += Character.charCount(cp);
+            count++;
+        }
+        return count > 0 ? i : -1;
+    }
+
+    private int matchCashtag(int q) {
+        if (q >= length || text.charAt(q) != '$') {
+            return -1;
+        }
+        int i = q + 1;
+        while (i < length && i - q - 1 <= 8) {
+            char c = text.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            i++;
+        }
+        int count = i - q - 1;
+        if (count < 3 || count > 8) {
+            return -1;
+        }
+        if (i < length) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == ',' || c == '.') {
+                return i + 1;
+            }
+        }
+        return isEndOfInput(i) ? i : -1;
+    }
+
+    private int matchTimecode(int p) {
+        if (!isWordBoundary(p)) {
+            return -1;
+        }
+        for (int h = 2; h >= 1; h--) {
+            if (!isDigits(p, h) || !isChar(p + h, ':')) {
+                continue;
+            }
+            int result = matchMinutesAndSeconds(p + h + 1);
+            if (result >= 0) {
+                groups[0] = p;
+                groups[1] = p + h;
+                return result;
+            }
+        }
+        int result = matchMinutesAndSeconds(p);
+        if (result >= 0) {
+            groups[0] = groups[1] = -1;
+        }
+        return result;
+    }
+
+    private int matchMinutesAndSeconds(int q) {
+        for (int m = 3; m >= 1; m--) {
+            if (!isDigits(q, m) || !isChar(q + m, ':')) {
+                continue;
+            }
+            int s = q + m + 1;
+            if (s + 2 > length) {
+                continue;
+            }
+            char c1 = text.charAt(s);
+            char c2 = text.charAt(s + 1);
+            if (c1 < '0' || c1 > '5' || c2 < '0' || c2 > '9' || !isWordBoundary(s + 2)) {
+                continue;
+            }
+            groups[2] = q;
+            groups[3] = q + m;
+            groups[4] = s;
+            groups[5] = s + 2;
+            return s + 2;
+        }
+        return -1;
+    }
+
+    private boolean isChar(int index, char c) {
+        return index < length && text.charAt(index) == c;
+    }
+
+    private boolean isDigits(int index, int count) {
+        if (index + count > length) {
+            return false;
+        }
+        for (int a = index; a < index + count; a++) {
+            if (!Character.isDigit(text.charAt(a))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEndOfInput(int index) {
+        if (index == length) {
+            return true;
+        }
+        if (index == length - 2) {
+            return text.charAt(index) == '\r' && text.charAt(index + 1) == '\n';
+        }
+        if (index == length - 1) {
+            char c = text.charAt(index);
+            return c >= '\n' && c <= '\r' || c == '\u0085' || c == 0x2028 || c == 0x2029;
+        }
+        return false;
+    }
+
+    private boolean isWordBoundary(int index) {
+        boolean isWord = false;
+        if (index < length) {
+            int cp = Character.codePointAt(text, index);
+            if (isExtend(cp)) {
+                return false;
+            }
+            isWord = isWordChar(cp);
+        }
+        boolean prevIsWord = false;
+        int i = index;
+        while (i > 0) {
+            int cp = Character.codePointBefore(text, i);
+            i -= Character.charCount(cp);
+            if (!isExtend(cp)) {
+                prevIsWord = isWordChar(cp);
+                break;
+            }
+        }
+        return isWord != prevIsWord;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == '\t' || c == '\n' || c == '\f' || c == '\r' || Character.isSpaceChar(c);
+    }
+
+    private static boolean isExtend(int cp) {
+        int type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.FORMAT;
+    }
+
+    private static boolean isWordChar(int cp) {
+        if (cp == 0x200c || cp == 0x200d || Character.isAlphabetic(cp)) {
+            return true;
+        }
+        int type = Character.getType(cp);
+        return type == Character.DECIMAL_DIGIT_NUMBER || type == Character.CONNECTOR_PUNCTUATION || type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isInClass(int cp, int charClass) {
+        if (cp >= 'a' && cp <= 'z' || cp >= 'A' && cp <= 'Z' || cp == '_') {
+            return true;
+        }
+        switch (charClass) {
+            case CLASS_COMMAND:
+                return cp == '@' || Character.isDigit(cp);
+            case CLASS_USERNAME:
+                return Character.isDigit(cp);
+            case CLASS_INSTAGRAM_USERNAME:
+                return cp == '.' || Character.isDigit(cp);
+            case CLASS_HASHTAG:
+            default:
+                return cp == '.' || isWordChar(cp);
+        }
+    }
+}
@@ -12,21 +12,188 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Size-aware memory cache with an API compatible with {@link android.util.LruCache}.
+ * Keys are spread over independently locked shards by the part before the first "@",
+ * so every filter of an image lives in the same shard as its filter index entry.
+ * Each shard keeps a small LRU admission window in front of a main LRU segment; when
+ * the cache is over capacity the eldest window entry competes with the eldest main
+ * entry and the one that was requested less often (according to a TinyLFU frequency
+ * sketch) is evicted. The entry that has just been put is never evicted.
  */
 public class LruCache<T> {
-    private final LinkedHashMap<String, T> map;
-    private final LinkedHashMap<String, ArrayList<String>> mapFilters;
 
-    /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
+    private static final int DEFAULT_SHARDS_COUNT = 4;
+
+    private static class Node<T> {
+        private String key;
+        private String baseKey;
+        private String filter;
+        private T value;
+        private int size;
+        private boolean inWindow;
+    }
+
+    private static class FrequencySketch {
+
+        private static final int WIDTH = 1024;
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = new int[]{0x97cb3127, 0x5bd1e995, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final byte[] table = new byte[WIDTH * DEPTH];
+        private int additions;
+
+        private static int indexOf(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            return row * WIDTH + ((h ^ (h >>> 15)) & (WIDTH - 1));
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int a = 0; a < DEPTH; a++) {
+                int index = indexOf(hash, a);
+                if (table[index] < 15) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= WIDTH * 10) {
+                for (int a = 0; a < table.length; a++) {
+                    table[a] >>= 1;
+                }
+                additions >>= 1;
+            }
+        }
+
+        private int frequency(int hash) {
+            int result = 15;
+            for (int a = 0; a < DEPTH; a++) {
+                result = Math.min(result, table[indexOf(hash, a)]);
+            }
+            return result;
+        }
+    }
+
+    private static class Shard<T> {
+        private final LinkedHashMap<String, Node<T>> window = new LinkedHashMap<>(0, 0.75f, true);
+        private final LinkedHashMap<String, Node<T>> main = new LinkedHashMap<>(0, 0.75f, true);
+        private final HashMap<String, ArrayList<String>> mapFilters = new HashMap<>();
+        private final FrequencySketch sketch = new FrequencySketch();
+        private int windowSize;
+
+        private long hitCount;
+        private long missCount;
+        private long evictionCount;
+        private long rejectionCount;
+
+        private Node<T> get(String key) {
+            Node<T> node = window.get(key);
+            if (node == null) {
+                node = main.get(key);
+            }
+            return node;
+        }
+
+        private Node<T> remove(String key) {
+            Node<T> node = window.remove(key);
+            if (node != null) {
+                windowSize -= node.size;
+            } else {
+                node = main.remove(key);
+            }
+            if (node != null) {
+                removeFilter(node);
+            }
+            return node;
+        }
+
+        private void addFilter(Node<T> node) {
+            if (node.filter == null) {
+                return;
+            }
+            ArrayList<String> arr = mapFilters.get(node.baseKey);
+            if (arr == null) {
+                arr = new ArrayList<>();
+                mapFilters.put(node.baseKey, arr);
+            }
+            if (!arr.contains(node.filter)) {
+                arr.add(node.filter);
+            }
+        }
+
+        private void removeFilter(Node<T> node) {
+            if (node.filter == null) {
+                return;
+            }
+            ArrayList<String> arr = mapFilters.get(node.baseKey);
+            if (arr != null) {
+                arr.remove(node.filter);
+                if (arr.isEmpty()) {
+                    mapFilters.remove(node.baseKey);
+                }
+            }
+        }
+
+        private Node<T> eldest(LinkedHashMap<String, Node<T>> map, String justAdded) {
+            Iterator<Node<T>> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                Node<T> node = iterator.next();
+                if (justAdded == null || !justAdded.equals(node.key)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        private void promoteWindow(int maxWindowSize) {
+            while (windowSize > maxWindowSize && window.size() > 1) {
+                Iterator<Node<T>> iterator = window.values().iterator();
+                Node<T> node = iterator.next();
+                iterator.remove();
+                windowSize -= node.size;
+                node.inWindow = false;
+                main.put(node.key, node);
+            }
+        }
+
+        private Node<T> evictOne(String justAdded) {
+            Node<T> candidate = eldest(window, justAdded);
+            Node<T> victim = eldest(main, justAdded);
+            Node<T> evicted;
+            if (candidate == null && victim == null) {
+                return null;
+            } else if (candidate == null) {
+                evicted = victim;
+            } else if (victim == null) {
+                evicted = candidate;
+            } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evicted = victim;
+                window.remove(candidate.key);
+                windowSize -= candidate.size;
+                candidate.inWindow = false;
+                main.put(candidate.key, candidate);
+            } else {
+                evicted = candidate;
+                rejectionCount++;
+            }
+            if (evicted.inWindow) {
+                window.remove(evicted.key);
+                windowSize -= evicted.size;
+            } else {
+                main.remove(evicted.key);
+            }
+            removeFilter(evicted);
+            evictionCount++;
+            return evicted;
+        }
+    }
+
+    private final Shard<T>[] shards;
+    private final AtomicInteger size = new AtomicInteger();
     private int maxSize;
+    private int maxWindowSize;
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -34,12 +201,36 @@ public class LruCache<T> {
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, DEFAULT_SHARDS_COUNT);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize, int shardsCount) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (shardsCount <= 0) {
+            throw new IllegalArgumentException("shardsCount <= 0");
+        }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
-        this.mapFilters = new LinkedHashMap<>();
+        this.maxWindowSize = Math.max(1, maxSize / 100 / shardsCount);
+        shards = new Shard[shardsCount];
+        for (int a = 0; a < shardsCount; a++) {
+            shards[a] = new Shard<>();
+        }
+    }
+
+    private int shardIndex(String key) {
+        int hash = 0;
+        for (int a = 0, N = key.length(); a < N; a++) {
+            char c = key.charAt(a);
+            if (c == '@') {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % shards.length;
     }
 
     /**
@@ -52,29 +243,35 @@ public class LruCache<T> {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
-
-        T mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                return mapValue;
+        Shard<T> shard = shards[shardIndex(key)];
+        synchronized (shard) {
+            shard.sketch.increment(key.hashCode());
+            Node<T> node = shard.get(key);
+            if (node != null) {
+                shard.hitCount++;
+                return node.value;
             }
+            shard.missCount++;
         }
         return null;
     }
 
     public ArrayList<String> getFilterKeys(String key) {
-        ArrayList<String> arr = mapFilters.get(key);
-        if (arr != null) {
-            return new ArrayList<>(arr);
+        Shard<T> shard = shards[shardIndex(key)];
+        synchronized (shard) {
+            ArrayList<String> arr = shard.mapFilters.get(key);
+            if (arr != null) {
+                return new ArrayList<>(arr);
+            }
         }
         return null;
     }
 
     public void moveToFront(String key) {
-        T value = map.remove(key);
-        if (value != null) {
-            map.put(key, value);
+        Shard<T> shard = shards[shardIndex(key)];
+        synchronized (shard) {
+            shard.sketch.increment(key.hashCode());
+            shard.get(key);
         }
     }
 
@@ -89,68 +286,68 @@ public class LruCache<T> {
             throw new NullPointerException("key == null || value == null");
         }
 
-        T previous;
-        synchronized (this) {
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
-            }
+        Node<T> node = new Node<>();
+        node.key = key;
+        node.value = value;
+        node.size = safeSizeOf(key, value);
+        node.inWindow = true;
+        int index = key.indexOf('@');
+        if (index >= 0) {
+            node.baseKey = key.substring(0, index);
+            int end = key.indexOf('@', index + 1);
+            node.filter = end >= 0 ? key.substring(index + 1, end) : key.substring(index + 1);
         }
 
-        String[] args = key.split("@");
-        if (args.length > 1) {
-            ArrayList<String> arr = mapFilters.get(args[0]);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                mapFilters.put(args[0], arr);
-            }
-            if (!arr.contains(args[1])) {
-                arr.add(args[1]);
+        int shardIndex = shardIndex(key);
+        Shard<T> shard = shards[shardIndex];
+        Node<T> previous;
+        synchronized (shard) {
+            shard.sketch.increment(key.hashCode());
+            previous = shard.remove(key);
+            if (previous != null) {
+                size.addAndGet(-previous.size);
             }
+            shard.window.put(key, node);
+            shard.windowSize += node.size;
+            shard.addFilter(node);
+            size.addAndGet(node.size);
+            shard.promoteWindow(maxWindowSize);
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            entryRemoved(false, key, previous.value, value);
         }
 
-        trimToSize(maxSize, key);
-        return previous;
+        trimToSize(maxSize, key, shardIndex);
+        return previous != null ? previous.value : null;
     }
 
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1
      *     to evict even 0-sized elements.
      */
-    private void trimToSize(int maxSize, String justAdded) {
-        synchronized (this) {
-            Iterator<HashMap.Entry<String, T>> iterator = map.entrySet().iterator();
-            while (iterator.hasNext()) {
-                if (size <= maxSize || map.isEmpty()) {
-                    break;
-                }
-                HashMap.Entry<String, T> entry = iterator.next();
-
-                String key = entry.getKey();
-                if (justAdded != null && justAdded.equals(key)) {
-                    continue;
-                }
-                T value = entry.getValue();
-                size -= safeSizeOf(key, value);
-                iterator.remove();
-
-                String[] args = key.split("@");
-                if (args.length > 1) {
-                    ArrayList<String> arr = mapFilters.get(args[0]);
-                    if (arr != null) {
-                        arr.remove(args[1]);
-                        if (arr.isEmpty()) {
-                            mapFilters.remove(args[0]);
-                        }
+    private void trimToSize(int maxSize, String justAdded, int startShard) {
+        ArrayList<Node<T>> evicted = null;
+        for (int a = 0; a < shards.length && size.get() > maxSize; a++) {
+            Shard<T> shard = shards[(startShard + a) % shards.length];
+            synchronized (shard) {
+                while (size.get() > maxSize) {
+                    Node<T> node = shard.evictOne(justAdded);
+                    if (node == null) {
+                        break;
+                    }
+                    size.addAndGet(-node.size);
+                    if (evicted == null) {
+                        evicted = new ArrayList<>();
                     }
+                    evicted.add(node);
                 }
-
-                entryRemoved(true, key, value, null);
+            }
+        }
+        if (evicted != null) {
+            for (int a = 0, N = evicted.size(); a < N; a++) {
+                Node<T> node = evicted.get(a);
+                entryRemoved(true, node.key, node.value, null);
             }
         }
     }
@@ -165,34 +362,27 @@ public class LruCache<T> {
             throw new NullPointerException("key == null");
         }
 
-        T previous;
-        synchronized (this) {
-            previous = map.remove(key);
+        Node<T> previous;
+        Shard<T> shard = shards[shardIndex(key)];
+        synchronized (shard) {
+            previous = shard.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                size.addAndGet(-previous.size);
             }
         }
 
         if (previous != null) {
-            String[] args = key.split("@");
-            if (args.length > 1) {
-                ArrayList<String> arr = mapFilters.get(args[0]);
-                if (arr != null) {
-                    arr.remove(args[1]);
-                    if (arr.isEmpty()) {
-                        mapFilters.remove(args[0]);
-                    }
-                }
-            }
-
-            entryRemoved(false, key, previous, null);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
         }
-
-        return previous;
+        return null;
     }
-    
-    public boolean contains(String key){
-    	return map.containsKey(key);
+
+    public boolean contains(String key) {
+        Shard<T> shard = shards[shardIndex(key)];
+        synchronized (shard) {
+            return shard.window.containsKey(key) || shard.main.containsKey(key);
+        }
     }
 
     /**
@@ -235,7 +425,7 @@ public class LruCache<T> {
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
     public final void evictAll() {
-        trimToSize(-1, null); // -1 will evict 0-sized elements
+        trimToSize(-1, null, 0); // -1 will evict 0-sized elements
     }
 
     /**
@@ -243,8 +433,8 @@ public class LruCache<T> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        return size.get();
     }
 
     /**
@@ -252,7 +442,60 @@ public class LruCache<T> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
+
+    public final long hitCount() {
+        long result = 0;
+        for (int a = 0; a < shards.length; a++) {
+            synchronized (shards[a]) {
+                result += shards[a].hitCount;
+            }
+        }
+        return result;
+    }
+
+    public final long missCount() {
+        long result = 0;
+        for (int a = 0; a < shards.length; a++) {
+            synchronized (shards[a]) {
+                result += shards[a].missCount;
+            }
+        }
+        return result;
+    }
+
+    public final long evictionCount() {
+        long result = 0;
+        for (int a = 0; a < shards.length; a++) {
+            synchronized (shards[a]) {
+                result += shards[a].evictionCount;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of evictions in which the admission window entry lost
+     * against a more frequently used main segment entry.
+     */
+    public final long rejectionCount() {
+        long result = 0;
+        for (int a = 0; a < shards.length; a++) {
+            synchronized (shards[a]) {
+                result += shards[a].rejectionCount;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public final String toString() {
+        long hits = hitCount();
+        long misses = missCount();
+        long accesses = hits + misses;
+        int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        return String.format("LruCache[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d,rejections=%d]", size(), maxSize, hits, misses, hitPercent, evictionCount(), rejectionCount());
+    }
 }
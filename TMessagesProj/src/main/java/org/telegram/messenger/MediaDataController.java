@@ -60,6 +60,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -188,6 +189,8 @@ public class MediaDataController extends BaseController {
         recentGifsLoaded = false;
 
         currentFetchingEmoji.clear();
+        emojiKeywordTries = null;
+        emojiKeywordAliases = new HashMap<>();
 
         loading = false;
         loaded = false;
@@ -1572,6 +1575,9 @@ public class MediaDataController extends BaseController {
     private SparseArray<MessageObject>[] searchResultMessagesMap = new SparseArray[]{new SparseArray<>(), new SparseArray<>()};
     private String lastSearchQuery;
     private int lastReturnedNum;
+    private boolean localSearch;
+
+    private final static int LOCAL_SEARCH_PAGE_SIZE = 100;
 
     private int getMask() {
         int mask = 0;
@@ -1619,6 +1625,10 @@ public class MediaDataController extends BaseController {
                         lastReturnedNum--;
                         return;
                     }
+                    if (localSearch) {
+                        searchMessagesInChatLocal(lastSearchQuery, dialog_id, guid, searchResultMessages.get(searchResultMessages.size() - 1));
+                        return;
+                    }
                     firstQuery = false;
                     query = lastSearchQuery;
                     MessageObject messageObject = searchResultMessages.get(searchResultMessages.size() - 1);
@@ -1649,6 +1659,7 @@ public class MediaDataController extends BaseController {
                 return;
             }
         } else if (firstQuery) {
+            localSearch = false;
             getNotificationCenter().postNotificationName(NotificationCenter.chatSearchResultsLoading, guid);
             messagesSearchEndReached[0] = messagesSearchEndReached[1] = false;
             messagesSearchCount[0] = messagesSearchCount[1] = 0;
@@ -1659,6 +1670,11 @@ public class MediaDataController extends BaseController {
         if (messagesSearchEndReached[0] && !messagesSearchEndReached[1] && mergeDialogId != 0) {
             queryWithDialog = mergeDialogId;
         }
+        if (firstQuery && query != null && user == null && mergeDialogId == 0 && getMessagesStorage().isMessagesSearchIndexAvailable() &&
+                ((int) dialog_id == 0 || getConnectionsManager().getConnectionState() != ConnectionsManager.ConnectionStateConnected)) {
+            searchMessagesInChatLocal(query, dialog_id, guid, null);
+            return;
+        }
         if (queryWithDialog == dialog_id && firstQuery) {
             if (mergeDialogId != 0) {
                 TLRPC.InputPeer inputPeer = getMessagesController().getInputPeer((int) mergeDialogId);
@@ -1760,6 +1776,59 @@ public class MediaDataController extends BaseController {
         }), ConnectionsManager.RequestFlagFailOnServerErrors);
     }
 
+    /**
+     * Loads one page of local results; offsetMessage is the last result of the previous page or null
+     * for the first one.
+     */
+    private void searchMessagesInChatLocal(String query, final long dialog_id, final int guid, final MessageObject offsetMessage) {
+        final int currentReqId = ++lastReqId;
+        lastSearchQuery = query;
+        lastMergeDialogId = 0;
+        localSearch = true;
+        long offsetMid = 0;
+        int offsetDate = 0;
+        if (offsetMessage != null) {
+            offsetMid = offsetMessage.getId();
+            if (offsetMessage.messageOwner.to_id.channel_id != 0) {
+                offsetMid |= ((long) offsetMessage.messageOwner.to_id.channel_id) << 32;
+            }
+            offsetDate = offsetMessage.messageOwner.date;
+        }
+        getMessagesStorage().searchMessagesByText(dialog_id, query, offsetMid, offsetDate, LOCAL_SEARCH_PAGE_SIZE, (messages, users, chats) -> {
+            if (currentReqId != lastReqId) {
+                return;
+            }
+            getMessagesController().putUsers(users, true);
+            getMessagesController().putChats(chats, true);
+            if (offsetMessage == null) {
+                lastReturnedNum = 0;
+                searchResultMessages.clear();
+                searchResultMessagesMap[0].clear();
+                searchResultMessagesMap[1].clear();
+            }
+            for (int a = 0; a < messages.size(); a++) {
+                MessageObject messageObject = new MessageObject(currentAccount, messages.get(a), false);
+                searchResultMessages.add(messageObject);
+                searchResultMessagesMap[0].put(messageObject.getId(), messageObject);
+            }
+            messagesSearchEndReached[0] = messages.size() < LOCAL_SEARCH_PAGE_SIZE;
+            messagesSearchEndReached[1] = true;
+            messagesSearchCount[0] = searchResultMessages.size();
+            messagesSearchCount[1] = 0;
+            if (searchResultMessages.isEmpty()) {
+                getNotificationCenter().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, 0, getMask(), (long) 0, 0, 0);
+            } else if (offsetMessage == null || !messages.isEmpty()) {
+                if (lastReturnedNum >= searchResultMessages.size()) {
+                    lastReturnedNum = searchResultMessages.size() - 1;
+                }
+                MessageObject messageObject = searchResultMessages.get(lastReturnedNum);
+                getNotificationCenter().postNotificationName(NotificationCenter.chatSearchResultsAvailable, guid, messageObject.getId(), getMask(), messageObject.getDialogId(), lastReturnedNum, messagesSearchCount[0]);
+            } else {
+                lastReturnedNum = searchResultMessages.size() - 1;
+            }
+        });
+    }
+
     public String getLastSearchQuery() {
         return lastSearchQuery;
     }
@@ -4066,7 +4135,7 @@ public class MediaDataController extends BaseController {
 
             });
         }
-        getMessagesController().sortDialogs(null);
+        getMessagesController().sortDialog(did);
         getNotificationCenter().postNotificationName(NotificationCenter.dialogsNeedReload);
     }
 
@@ -4204,7 +4273,7 @@ public class MediaDataController extends BaseController {
             drafts.remove(did);
             draftMessages.remove(did);
             preferences.edit().remove("" + did).remove("r_" + did).commit();
-            getMessagesController().sortDialogs(null);
+            getMessagesController().sortDialog(did);
             getNotificationCenter().postNotificationName(NotificationCenter.dialogsNeedReload);
         } else if (draftMessage.reply_to_msg_id != 0) {
             draftMessage.reply_to_msg_id = 0;
@@ -4389,6 +4458,46 @@ public class MediaDataController extends BaseController {
     }
 
     private HashMap<String, Boolean> currentFetchingEmoji = new HashMap<>();
+    private volatile HashMap<String, EmojiKeywordTrie> emojiKeywordTries;
+    private volatile HashMap<String, String> emojiKeywordAliases = new HashMap<>();
+
+    private void loadEmojiKeywordsInternal() {
+        if (emojiKeywordTries != null) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        HashMap<String, String> aliases = new HashMap<>();
+        HashMap<String, EmojiKeywordTrie.Builder> builders = new HashMap<>();
+        try {
+            SQLiteCursor cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT lang, alias FROM emoji_keywords_info_v2 WHERE 1");
+            while (cursor.next()) {
+                aliases.put(cursor.stringValue(0), cursor.stringValue(1));
+            }
+            cursor.dispose();
+            cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT lang, keyword, emoji FROM emoji_keywords_v2 WHERE 1");
+            while (cursor.next()) {
+                String lang = cursor.stringValue(0);
+                EmojiKeywordTrie.Builder builder = builders.get(lang);
+                if (builder == null) {
+                    builder = new EmojiKeywordTrie.Builder();
+                    builders.put(lang, builder);
+                }
+                builder.add(cursor.stringValue(1), cursor.stringValue(2));
+            }
+            cursor.dispose();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        HashMap<String, EmojiKeywordTrie> tries = new HashMap<>();
+        for (Map.Entry<String, EmojiKeywordTrie.Builder> entry : builders.entrySet()) {
+            tries.put(entry.getKey(), entry.getValue().build());
+        }
+        emojiKeywordAliases = aliases;
+        emojiKeywordTries = tries;
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d("loaded emoji keywords for " + tries.size() + " languages in " + (System.currentTimeMillis() - time) + "ms");
+        }
+    }
 
     public void fetchNewEmojiKeywords(String[] langCodes) {
         if (langCodes == null) {
@@ -4404,6 +4513,7 @@ public class MediaDataController extends BaseController {
             }
             currentFetchingEmoji.put(langCode, true);
             getMessagesStorage().getStorageQueue().postRunnable(() -> {
+                loadEmojiKeywordsInternal();
                 int version = -1;
                 String alias = null;
                 long date = 0;
@@ -4446,6 +4556,10 @@ public class MediaDataController extends BaseController {
                                     deleteState.step();
                                     deleteState.dispose();
 
+                                    HashMap<String, String> aliases = new HashMap<>(emojiKeywordAliases);
+                                    aliases.remove(langCode);
+                                    emojiKeywordAliases = aliases;
+
                                     AndroidUtilities.runOnUIThread(() -> {
                                         currentFetchingEmoji.remove(langCode);
                                         fetchNewEmojiKeywords(new String[]{langCode});
@@ -4471,6 +4585,11 @@ public class MediaDataController extends BaseController {
         }
         getMessagesStorage().getStorageQueue().postRunnable(() -> {
             try {
+                HashMap<String, EmojiKeywordTrie> tries = emojiKeywordTries;
+                EmojiKeywordTrie.Builder builder = null;
+                if (tries != null && !res.keywords.isEmpty()) {
+                    builder = new EmojiKeywordTrie.Builder(tries.get(res.lang_code));
+                }
                 if (!res.keywords.isEmpty()) {
                     SQLitePreparedStatement insertState = getMessagesStorage().getDatabase().executeFast("REPLACE INTO emoji_keywords_v2 VALUES(?, ?, ?)");
                     SQLitePreparedStatement deleteState = getMessagesStorage().getDatabase().executeFast("DELETE FROM emoji_keywords_v2 WHERE lang = ? AND keyword = ? AND emoji = ?");
@@ -4486,6 +4605,9 @@ public class MediaDataController extends BaseController {
                                 insertState.bindString(2, key);
                                 insertState.bindString(3, emojiKeyword.emoticons.get(b));
                                 insertState.step();
+                                if (builder != null) {
+                                    builder.add(key, emojiKeyword.emoticons.get(b));
+                                }
                             }
                         } else if (keyword instanceof TLRPC.TL_emojiKeywordDeleted) {
                             TLRPC.TL_emojiKeywordDeleted keywordDeleted = (TLRPC.TL_emojiKeywordDeleted) keyword;
@@ -4496,6 +4618,9 @@ public class MediaDataController extends BaseController {
                                 deleteState.bindString(2, key);
                                 deleteState.bindString(3, keywordDeleted.emoticons.get(b));
                                 deleteState.step();
+                                if (builder != null) {
+                                    builder.remove(key, keywordDeleted.emoticons.get(b));
+                                }
                             }
                         }
                     }
@@ -4512,6 +4637,17 @@ public class MediaDataController extends BaseController {
                 infoState.step();
                 infoState.dispose();
 
+                if (tries != null) {
+                    HashMap<String, String> aliases = new HashMap<>(emojiKeywordAliases);
+                    aliases.put(lang, res.lang_code);
+                    if (builder != null) {
+                        tries = new HashMap<>(tries);
+                        tries.put(res.lang_code, builder.build());
+                    }
+                    emojiKeywordAliases = aliases;
+                    emojiKeywordTries = tries;
+                }
+
                 AndroidUtilities.runOnUIThread(() -> {
                     currentFetchingEmoji.remove(lang);
                     getNotificationCenter().postNotificationName(NotificationCenter.newEmojiSuggestionsAvailable, lang);
@@ -4535,121 +4671,96 @@ public class MediaDataController extends BaseController {
             return;
         }
         ArrayList<String> recentEmoji = new ArrayList<>(Emoji.recentEmoji);
+        if (emojiKeywordTries != null) {
+            searchEmojiKeywords(langCodes, keyword, fullMatch, recentEmoji, callback, sync, true);
+            return;
+        }
         getMessagesStorage().getStorageQueue().postRunnable(() -> {
-            ArrayList<KeywordResult> result = new ArrayList();
-            HashMap<String, Boolean> resultMap = new HashMap<>();
-            String alias = null;
+            loadEmojiKeywordsInternal();
+            searchEmojiKeywords(langCodes, keyword, fullMatch, recentEmoji, callback, sync, false);
+        });
+        if (sync != null) {
             try {
-                SQLiteCursor cursor;
-                boolean hasAny = false;
-                for (int a = 0; a < langCodes.length; a++) {
-                    cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT alias FROM emoji_keywords_info_v2 WHERE lang = ?", langCodes[a]);
-                    if (cursor.next()) {
-                        alias = cursor.stringValue(0);
-                    }
-                    cursor.dispose();
-                    if (alias != null) {
-                        hasAny = true;
-                    }
-                }
-                if (!hasAny) {
-                    AndroidUtilities.runOnUIThread(() -> {
-                        for (int a = 0; a < langCodes.length; a++) {
-                            if (currentFetchingEmoji.get(langCodes[a]) != null) {
-                                return;
-                            }
-                        }
-                        callback.run(result, null);
-                    });
-                    return;
-                }
-
-                String key = keyword.toLowerCase();
-                for (int a = 0; a < 2; a++) {
-                    if (a == 1) {
-                        String translitKey = LocaleController.getInstance().getTranslitString(key, false, false);
-                        if (translitKey.equals(key)) {
-                            continue;
-                        }
-                        key = translitKey;
-                    }
-                    String key2 = null;
-                    StringBuilder nextKey = new StringBuilder(key);
-                    int pos = nextKey.length();
-                    while (pos > 0) {
-                        pos--;
-                        char value = nextKey.charAt(pos);
-                        value++;
-                        nextKey.setCharAt(pos, value);
-                        if (value != 0) {
-                            key2 = nextKey.toString();
-                            break;
-                        }
-                    }
+                sync.await();
+            } catch (Throwable ignore) {
 
-                    if (fullMatch) {
-                        cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT emoji, keyword FROM emoji_keywords_v2 WHERE keyword = ?", key);
-                    } else if (key2 != null) {
-                        cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT emoji, keyword FROM emoji_keywords_v2 WHERE keyword >= ? AND keyword < ?", key, key2);
-                    } else {
-                        key += "%";
-                        cursor = getMessagesStorage().getDatabase().queryFinalized("SELECT emoji, keyword FROM emoji_keywords_v2 WHERE keyword LIKE ?", key);
-                    }
-                    while (cursor.next()) {
-                        String value = cursor.stringValue(0).replace("\ufe0f", "");
-                        if (resultMap.get(value) != null) {
-                            continue;
-                        }
-                        resultMap.put(value, true);
-                        KeywordResult keywordResult = new KeywordResult();
-                        keywordResult.emoji = value;
-                        keywordResult.keyword = cursor.stringValue(1);
-                        result.add(keywordResult);
-                    }
-                    cursor.dispose();
-                }
-            } catch (Exception e) {
-                FileLog.e(e);
             }
-            Collections.sort(result, (o1, o2) -> {
-                int idx1 = recentEmoji.indexOf(o1.emoji);
-                if (idx1 < 0) {
-                    idx1 = Integer.MAX_VALUE;
-                }
-                int idx2 = recentEmoji.indexOf(o2.emoji);
-                if (idx2 < 0) {
-                    idx2 = Integer.MAX_VALUE;
-                }
-                if (idx1 < idx2) {
-                    return -1;
-                } else if (idx1 > idx2) {
-                    return 1;
-                } else {
-                    int len1 = o1.keyword.length();
-                    int len2 = o2.keyword.length();
+        }
+    }
 
-                    if (len1 < len2) {
-                        return -1;
-                    } else if (len1 > len2) {
-                        return 1;
+    private void searchEmojiKeywords(String[] langCodes, String keyword, boolean fullMatch, ArrayList<String> recentEmoji, KeywordResultCallback callback, CountDownLatch sync, boolean direct) {
+        ArrayList<KeywordResult> result = new ArrayList<>();
+        HashMap<String, String> aliases = emojiKeywordAliases;
+        String alias = null;
+        for (int a = 0; a < langCodes.length; a++) {
+            String value = aliases.get(langCodes[a]);
+            if (value != null) {
+                alias = value;
+            }
+        }
+        if (alias == null) {
+            AndroidUtilities.runOnUIThread(() -> {
+                for (int a = 0; a < langCodes.length; a++) {
+                    if (currentFetchingEmoji.get(langCodes[a]) != null) {
+                        return;
                     }
-                    return 0;
                 }
+                callback.run(result, null);
             });
-            String aliasFinal = alias;
             if (sync != null) {
-                callback.run(result, aliasFinal);
                 sync.countDown();
+            }
+            return;
+        }
+
+        HashMap<String, EmojiKeywordTrie> tries = emojiKeywordTries;
+        HashSet<String> added = new HashSet<>();
+        String key = keyword.toLowerCase();
+        for (int a = 0; a < 2; a++) {
+            if (a == 1) {
+                String translitKey = LocaleController.getInstance().getTranslitString(key, false, false);
+                if (translitKey.equals(key)) {
+                    continue;
+                }
+                key = translitKey;
+            }
+            for (EmojiKeywordTrie trie : tries.values()) {
+                trie.search(key, fullMatch, result, added);
+            }
+        }
+        Collections.sort(result, (o1, o2) -> {
+            int idx1 = recentEmoji.indexOf(o1.emoji);
+            if (idx1 < 0) {
+                idx1 = Integer.MAX_VALUE;
+            }
+            int idx2 = recentEmoji.indexOf(o2.emoji);
+            if (idx2 < 0) {
+                idx2 = Integer.MAX_VALUE;
+            }
+            if (idx1 < idx2) {
+                return -1;
+            } else if (idx1 > idx2) {
+                return 1;
             } else {
-                AndroidUtilities.runOnUIThread(() -> callback.run(result, aliasFinal));
+                int len1 = o1.keyword.length();
+                int len2 = o2.keyword.length();
+
+                if (len1 < len2) {
+                    return -1;
+                } else if (len1 > len2) {
+                    return 1;
+                }
+                return 0;
             }
         });
+        String aliasFinal = alias;
         if (sync != null) {
-            try {
-                sync.await();
-            } catch (Throwable ignore) {
-
-            }
+            callback.run(result, aliasFinal);
+            sync.countDown();
+        } else if (direct) {
+            callback.run(result, aliasFinal);
+        } else {
+            AndroidUtilities.runOnUIThread(() -> callback.run(result, aliasFinal));
         }
     }
 
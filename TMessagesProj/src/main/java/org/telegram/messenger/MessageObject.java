@@ -52,8 +52,6 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MessageObject {
 
@@ -142,10 +140,6 @@ public class MessageObject {
     private int generatedWithMinSize;
     private float generatedWithDensity;
 
-    public static Pattern urlPattern;
-    public static Pattern instagramUrlPattern;
-    public static Pattern videoTimeUrlPattern;
-
     public CharSequence vCardData;
 
     static final String[] excludeWords = new String[] {
@@ -2990,22 +2984,13 @@ public class MessageObject {
 
     private static void addUrlsByPattern(boolean isOut, CharSequence charSequence, boolean botCommands, int patternType, int duration) {
         try {
-            Matcher matcher;
+            LinkTokenizer matcher;
             if (patternType == 3) {
-                if (videoTimeUrlPattern == null) {
-                    videoTimeUrlPattern = Pattern.compile("\\b(?:(\\d{1,2}):)?(\\d{1,3}):([0-5][0-9])\\b");
-                }
-                matcher = videoTimeUrlPattern.matcher(charSequence);
+                matcher = new LinkTokenizer(charSequence, LinkTokenizer.MODE_TIMECODE);
             } else if (patternType == 1) {
-                if (instagramUrlPattern == null) {
-                    instagramUrlPattern = Pattern.compile("(^|\\s|\\()@[a-zA-Z\\d_.]{1,32}|(^|\\s|\\()#[\\w.]+");
-                }
-                matcher = instagramUrlPattern.matcher(charSequence);
+                matcher = new LinkTokenizer(charSequence, LinkTokenizer.MODE_INSTAGRAM);
             } else {
-                if (urlPattern == null) {
-                    urlPattern = Pattern.compile("(^|\\s)/[a-zA-Z@\\d_]{1,255}|(^|\\s|\\()@[a-zA-Z\\d_]{1,32}|(^|\\s|\\()#[\\w.]+|(^|\\s)\\$[A-Z]{3,8}([ ,.]|$)");
-                }
-                matcher = urlPattern.matcher(charSequence);
+                matcher = new LinkTokenizer(charSequence, LinkTokenizer.MODE_DEFAULT);
             }
             Spannable spannable = (Spannable) charSequence;
             while (matcher.find()) {
@@ -3017,7 +3002,6 @@ public class MessageObject {
                     if (spans != null && spans.length > 0) {
                         continue;
                     }
-                    int count = matcher.groupCount();
                     int s1 = matcher.start(1);
                     int e1 = matcher.end(1);
                     int s2 = matcher.start(2);
@@ -3466,6 +3450,23 @@ public class MessageObject {
         }
 
         generateLinkDescription();
+
+        int maxWidth = getMaxMessageTextWidth();
+
+        String layoutKey = getTextLayoutKey(maxWidth);
+        TextLayoutCache.Entry cached = TextLayoutCache.getInstance().get(layoutKey);
+        if (cached != null) {
+            messageText = cached.text;
+            textLayoutBlocks = cached.blocks;
+            textWidth = cached.textWidth;
+            textHeight = cached.textHeight;
+            linesCount = cached.linesCount;
+            lastLineWidth = cached.lastLineWidth;
+            textXOffset = cached.textXOffset;
+            hasRtl = cached.hasRtl;
+            return;
+        }
+
         textLayoutBlocks = new ArrayList<>();
         textWidth = 0;
 
@@ -3514,8 +3515,6 @@ public class MessageObject {
 
         boolean hasUrls = addEntitiesToText(messageText, useManualParse);
 
-        int maxWidth = getMaxMessageTextWidth();
-
         StaticLayout textLayout;
 
         TextPaint paint;
@@ -3727,6 +3726,25 @@ public class MessageObject {
 
             linesOffset += currentBlockLinesCount;
         }
+
+        TextLayoutCache.getInstance().put(layoutKey, this);
+    }
+
+    private String getTextLayoutKey(int maxWidth) {
+        int flags = emojiOnlyCount;
+        if (isOutOwner()) {
+            flags |= 4;
+        }
+        if (messageOwner.media instanceof TLRPC.TL_messageMediaGame) {
+            flags |= 8;
+        }
+        if (isYouTubeVideo() || replyMessageObject != null && replyMessageObject.isYouTubeVideo()) {
+            flags |= 16;
+        }
+        int replyDuration = replyMessageObject != null && replyMessageObject.isVideo() ? replyMessageObject.getDuration() : 0;
+        TextPaint paint = messageOwner.media instanceof TLRPC.TL_messageMediaGame ? Theme.chat_msgGameTextPaint : Theme.chat_msgTextPaint;
+        String text = messageText.toString();
+        return getDialogId() + "_" + messageOwner.id + "_" + eventId + "@" + text.hashCode() + "_" + text.length() + "_" + messageOwner.edit_date + "_" + messageOwner.entities.size() + "_" + messageOwner.send_state + "_" + maxWidth + "_" + (int) paint.getTextSize() + "_" + flags + "_" + replyDuration;
     }
 
     public boolean isOut() {
@@ -851,6 +851,7 @@ public class MessagesController extends BaseController implements NotificationCe
         getSecretChatHelper().cleanup();
         getLocationController().cleanup();
         getMediaDataController().cleanup();
+        getDialogsSearchIndex().cleanup();
 
         DialogsActivity.dialogsLoaded[currentAccount] = false;
 
@@ -1098,6 +1099,9 @@ public class MessagesController extends BaseController implements NotificationCe
         if (!TextUtils.isEmpty(user.username)) {
             objectsByUsernames.put(user.username.toLowerCase(), user);
         }
+        if (user.min ? oldUser == null : !fromCache || oldUser == null || oldUser.min) {
+            getDialogsSearchIndex().putUser(user);
+        }
         if (user.min) {
             if (oldUser != null) {
                 if (!fromCache) {
@@ -1117,6 +1121,7 @@ public class MessagesController extends BaseController implements NotificationCe
                         oldUser.flags = oldUser.flags &~ 32;
                         oldUser.photo = null;
                     }
+                    getDialogsSearchIndex().putUser(oldUser);
                 }
             } else {
                 users.put(user.id, user);
@@ -1296,6 +1301,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 chats.put(chat.id, chat);
             }
         }
+        getDialogsSearchIndex().putChat(chats.get(chat.id));
     }
 
     public void putChats(ArrayList<TLRPC.Chat> chats, boolean fromCache) {
@@ -1326,6 +1332,7 @@ public class MessagesController extends BaseController implements NotificationCe
         } else {
             encryptedChats.put(encryptedChat.id, encryptedChat);
         }
+        getDialogsSearchIndex().putEncryptedChat(encryptedChats.get(encryptedChat.id));
     }
 
     public void putEncryptedChats(ArrayList<TLRPC.EncryptedChat> encryptedChats, boolean fromCache) {
@@ -3907,15 +3914,16 @@ public class MessagesController extends BaseController implements NotificationCe
                 }
                 getMessagesStorage().putMessages(messagesRes, dialog_id, load_type, max_id, createDialog);
             }
-            final ArrayList<MessageObject> objects = new ArrayList<>();
+            for (int a = 0; a < size; a++) {
+                messagesRes.messages.get(a).dialog_id = dialog_id;
+            }
+            final ArrayList<MessageObject> objects = TextLayoutCache.createMessageObjects(currentAccount, messagesRes.messages, usersDict, chatsDict);
             final ArrayList<Integer> messagesToReload = new ArrayList<>();
             final HashMap<String, ArrayList<MessageObject>> webpagesToReload = new HashMap<>();
             TLRPC.InputChannel inputChannel = null;
             for (int a = 0; a < size; a++) {
                 TLRPC.Message message = messagesRes.messages.get(a);
-                message.dialog_id = dialog_id;
-                MessageObject messageObject = new MessageObject(currentAccount, message, usersDict, chatsDict, true);
-                objects.add(messageObject);
+                MessageObject messageObject = objects.get(a);
                 if (isCache) {
                     if (message.legacy && message.layer < TLRPC.LAYER) {
                         messagesToReload.add(message.id);
@@ -4899,6 +4907,41 @@ public class MessagesController extends BaseController implements NotificationCe
     private int DIALOGS_LOAD_TYPE_CACHE = 1;
     private int DIALOGS_LOAD_TYPE_CHANNEL = 2;
     private int DIALOGS_LOAD_TYPE_UNKNOWN = 3;
+    private static final int PRELOAD_AVATARS_COUNT = 20;
+
+    private void preloadDialogAvatars(TLRPC.messages_Dialogs dialogsRes, SparseArray<TLRPC.User> usersDict, SparseArray<TLRPC.Chat> chatsDict, SparseArray<TLRPC.EncryptedChat> encChatsDict) {
+        ArrayList<String> keys = new ArrayList<>();
+        for (int a = 0, N = Math.min(PRELOAD_AVATARS_COUNT, dialogsRes.dialogs.size()); a < N; a++) {
+            TLRPC.Dialog dialog = dialogsRes.dialogs.get(a);
+            int lower_id = (int) dialog.id;
+            int high_id = (int) (dialog.id >> 32);
+            ImageLocation location = null;
+            String key = null;
+            if (lower_id == 0) {
+                TLRPC.EncryptedChat encryptedChat = encChatsDict != null ? encChatsDict.get(high_id) : null;
+                if (encryptedChat != null) {
+                    TLRPC.User user = usersDict.get(encryptedChat.user_id);
+                    if (user != null && (location = ImageLocation.getForUser(user, false)) != null) {
+                        key = location.getKey(user, null);
+                    }
+                }
+            } else if (lower_id > 0) {
+                TLRPC.User user = usersDict.get(lower_id);
+                if (user != null && (location = ImageLocation.getForUser(user, false)) != null) {
+                    key = location.getKey(user, null);
+                }
+            } else {
+                TLRPC.Chat chat = chatsDict.get(-lower_id);
+                if (chat != null && (location = ImageLocation.getForChat(chat, false)) != null) {
+                    key = location.getKey(chat, null);
+                }
+            }
+            if (key != null) {
+                keys.add(key + "@50_50");
+            }
+        }
+        ImageLoader.getInstance().preloadThumbnails(keys);
+    }
 
     public void processLoadedDialogs(final TLRPC.messages_Dialogs dialogsRes, final ArrayList<TLRPC.EncryptedChat> encChats, final int folderId, final int offset, final int count, final int loadType, final boolean resetEnd, final boolean migrate, final boolean fromCache) {
         Utilities.stageQueue.postRunnable(() -> {
@@ -4954,6 +4997,9 @@ public class MessagesController extends BaseController implements NotificationCe
             }
             if (loadType == DIALOGS_LOAD_TYPE_CACHE) {
                 nextDialogsCacheOffset.put(folderId, offset + count);
+                if (offset == 0) {
+                    preloadDialogAvatars(dialogsRes, usersDict, chatsDict, enc_chats_dict);
+                }
             }
 
             TLRPC.Message lastMessage = null;
@@ -7764,7 +7810,7 @@ public class MessagesController extends BaseController implements NotificationCe
         } else {
             dialog.pinnedNum = 0;
         }
-        sortDialogs(null);
+        sortDialog(did);
         if (!pin && dialogs.get(dialogs.size() - 1) == dialog && !dialogsEndReached.get(folderId)) {
             dialogs.remove(dialogs.size() - 1);
         }
@@ -8224,6 +8270,122 @@ public class MessagesController extends BaseController implements NotificationCe
         }
     }
 
+    private static final int PEERS_LOAD_TIMEOUT = 500;
+
+    /**
+     * Loads every peer a short message update refers to with one storage round trip. If the storage
+     * queue is busy the update isn't blocked on it: the peers are then looked up in the peer cache
+     * only, and a missing one makes the update go through getDifference like any other update with
+     * unknown peers.
+     */
+    private boolean loadShortUpdatePeers(TLRPC.Updates updates, int user_id) {
+        ArrayList<Integer> usersToLoad = new ArrayList<>();
+        ArrayList<Integer> chatsToLoad = new ArrayList<>();
+        TLRPC.User user = getUser(user_id);
+        if (user == null || user.min) {
+            usersToLoad.add(user_id);
+        }
+        if (updates.fwd_from != null) {
+            if (updates.fwd_from.from_id != 0 && getUser(updates.fwd_from.from_id) == null) {
+                usersToLoad.add(updates.fwd_from.from_id);
+            }
+            if (updates.fwd_from.channel_id != 0 && getChat(updates.fwd_from.channel_id) == null) {
+                chatsToLoad.add(updates.fwd_from.channel_id);
+            }
+        }
+        if (updates.via_bot_id != 0 && getUser(updates.via_bot_id) == null) {
+            usersToLoad.add(updates.via_bot_id);
+        }
+        if (updates instanceof TLRPC.TL_updateShortChatMessage && getChat(updates.chat_id) == null) {
+            chatsToLoad.add(updates.chat_id);
+        }
+        for (int a = 0, N = updates.entities.size(); a < N; a++) {
+            TLRPC.MessageEntity entity = updates.entities.get(a);
+            if (entity instanceof TLRPC.TL_messageEntityMentionName) {
+                int uid = ((TLRPC.TL_messageEntityMentionName) entity).user_id;
+                TLRPC.User entityUser = getUser(uid);
+                if (entityUser == null || entityUser.min) {
+                    usersToLoad.add(uid);
+                }
+            }
+        }
+        return getMessagesStorage().loadPeersSync(usersToLoad, chatsToLoad, PEERS_LOAD_TIMEOUT);
+    }
+
+    /**
+     * Prefetches the senders, forward sources, mentioned users and chats of all new messages in an
+     * updates container that neither came with it nor are in memory, so that processUpdateArray
+     * finds them in the peer cache instead of waiting on the storage queue for each of them.
+     */
+    private void loadUpdatesPeers(TLRPC.Updates updates) {
+        ArrayList<Integer> usersToLoad = null;
+        ArrayList<Integer> chatsToLoad = null;
+        for (int a = 0, N = updates.updates.size(); a < N; a++) {
+            TLRPC.Update update = updates.updates.get(a);
+            TLRPC.Message message;
+            if (update instanceof TLRPC.TL_updateNewMessage) {
+                message = ((TLRPC.TL_updateNewMessage) update).message;
+            } else if (update instanceof TLRPC.TL_updateNewChannelMessage) {
+                message = ((TLRPC.TL_updateNewChannelMessage) update).message;
+            } else {
+                continue;
+            }
+            if (message.to_id != null) {
+                int chatId = message.to_id.channel_id != 0 ? message.to_id.channel_id : message.to_id.chat_id;
+                if (chatId != 0 && getChat(chatId) == null && !containsPeer(updates.chats, null, chatId)) {
+                    if (chatsToLoad == null) {
+                        chatsToLoad = new ArrayList<>();
+                    }
+                    chatsToLoad.add(chatId);
+                }
+            }
+            int count = 2 + message.entities.size();
+            for (int b = 0; b < count; b++) {
+                int userId;
+                if (b == 0) {
+                    userId = message.from_id;
+                } else if (b == 1) {
+                    userId = message.fwd_from != null ? message.fwd_from.from_id : 0;
+                } else {
+                    TLRPC.MessageEntity entity = message.entities.get(b - 2);
+                    userId = entity instanceof TLRPC.TL_messageEntityMentionName ? ((TLRPC.TL_messageEntityMentionName) entity).user_id : 0;
+                }
+                if (userId <= 0) {
+                    continue;
+                }
+                TLRPC.User user = getUser(userId);
+                if ((user == null || user.min) && !containsPeer(null, updates.users, userId)) {
+                    if (usersToLoad == null) {
+                        usersToLoad = new ArrayList<>();
+                    }
+                    usersToLoad.add(userId);
+                }
+            }
+        }
+        if (usersToLoad != null || chatsToLoad != null) {
+            getMessagesStorage().loadPeersSync(usersToLoad, chatsToLoad, PEERS_LOAD_TIMEOUT);
+        }
+    }
+
+    private static boolean containsPeer(ArrayList<TLRPC.Chat> chats, ArrayList<TLRPC.User> users, int id) {
+        if (chats != null) {
+            for (int a = 0, N = chats.size(); a < N; a++) {
+                if (chats.get(a).id == id) {
+                    return true;
+                }
+            }
+        }
+        if (users != null) {
+            for (int a = 0, N = users.size(); a < N; a++) {
+                TLRPC.User user = users.get(a);
+                if (user.id == id && !user.min) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void processUpdates(final TLRPC.Updates updates, boolean fromQueue) {
         ArrayList<Integer> needGetChannelsDiff = null;
         boolean needGetDiff = false;
@@ -8235,13 +8397,16 @@ public class MessagesController extends BaseController implements NotificationCe
             processUpdateArray(arr, null, null, false, updates.date);
         } else if (updates instanceof TLRPC.TL_updateShortChatMessage || updates instanceof TLRPC.TL_updateShortMessage) {
             final int user_id = updates instanceof TLRPC.TL_updateShortChatMessage ? updates.from_id : updates.user_id;
+            if (!loadShortUpdatePeers(updates, user_id) && BuildVars.LOGS_ENABLED) {
+                FileLog.d("storage is busy, peers of short update are not loaded in time");
+            }
             TLRPC.User user = getUser(user_id);
             TLRPC.User user2 = null;
             TLRPC.User user3 = null;
             TLRPC.Chat channel = null;
 
             if (user == null || user.min) {
-                user = getMessagesStorage().getUserSync(user_id);
+                user = getMessagesStorage().getCachedUser(user_id);
                 if (user != null && user.min) {
                     user = null;
                 }
@@ -8253,7 +8418,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 if (updates.fwd_from.from_id != 0) {
                     user2 = getUser(updates.fwd_from.from_id);
                     if (user2 == null) {
-                        user2 = getMessagesStorage().getUserSync(updates.fwd_from.from_id);
+                        user2 = getMessagesStorage().getCachedUser(updates.fwd_from.from_id);
                         putUser(user2, true);
                     }
                     needFwdUser = true;
@@ -8261,7 +8426,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 if (updates.fwd_from.channel_id != 0) {
                     channel = getChat(updates.fwd_from.channel_id);
                     if (channel == null) {
-                        channel = getMessagesStorage().getChatSync(updates.fwd_from.channel_id);
+                        channel = getMessagesStorage().getCachedChat(updates.fwd_from.channel_id);
                         putChat(channel, true);
                     }
                     needFwdUser = true;
@@ -8272,7 +8437,7 @@ public class MessagesController extends BaseController implements NotificationCe
             if (updates.via_bot_id != 0) {
                 user3 = getUser(updates.via_bot_id);
                 if (user3 == null) {
-                    user3 = getMessagesStorage().getUserSync(updates.via_bot_id);
+                    user3 = getMessagesStorage().getCachedUser(updates.via_bot_id);
                     putUser(user3, true);
                 }
                 needBotUser = true;
@@ -8284,7 +8449,7 @@ public class MessagesController extends BaseController implements NotificationCe
             } else {
                 TLRPC.Chat chat = getChat(updates.chat_id);
                 if (chat == null) {
-                    chat = getMessagesStorage().getChatSync(updates.chat_id);
+                    chat = getMessagesStorage().getCachedChat(updates.chat_id);
                     putChat(chat, true);
                 }
                 missingData = chat == null || user == null || needFwdUser && user2 == null && channel == null || needBotUser && user3 == null;
@@ -8296,7 +8461,7 @@ public class MessagesController extends BaseController implements NotificationCe
                         int uid = ((TLRPC.TL_messageEntityMentionName) entity).user_id;
                         TLRPC.User entityUser = getUser(uid);
                         if (entityUser == null || entityUser.min) {
-                            entityUser = getMessagesStorage().getUserSync(uid);
+                            entityUser = getMessagesStorage().getCachedUser(uid);
                             if (entityUser != null && entityUser.min) {
                                 entityUser = null;
                             }
@@ -8466,6 +8631,7 @@ public class MessagesController extends BaseController implements NotificationCe
             }
             if (!needGetDiff) {
                 getMessagesStorage().putUsersAndChats(updates.users, updates.chats, true, true);
+                loadUpdatesPeers(updates);
                 Collections.sort(updates.updates, updatesComparator);
                 for (int a = 0; a < updates.updates.size(); a++) {
                     TLRPC.Update update = updates.updates.get(a);
@@ -10189,7 +10355,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 getNotificationCenter().postNotificationName(NotificationCenter.didUpdatedMessagesViews, channelViewsFinal);
             }
             if (updateMask != 0) {
-                getNotificationCenter().postNotificationName(NotificationCenter.updateInterfaces, updateMask);
+                getNotificationCenter().postNotificationNameCoalesced(NotificationCenter.updateInterfaces, updateMask);
             }
         });
 
@@ -10305,7 +10471,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 getNotificationsController().removeDeletedHisoryFromNotifications(clearHistoryMessagesFinal);
             }
             if (updateMask != 0) {
-                getNotificationCenter().postNotificationName(NotificationCenter.updateInterfaces, updateMask);
+                getNotificationCenter().postNotificationNameCoalesced(NotificationCenter.updateInterfaces, updateMask);
             }
         }));
 
@@ -10481,6 +10647,7 @@ public class MessagesController extends BaseController implements NotificationCe
         }
 
         boolean changed = false;
+        boolean moved = false;
 
         if (dialog == null) {
             if (!isBroadcast) {
@@ -10546,7 +10713,7 @@ public class MessagesController extends BaseController implements NotificationCe
                 dialog.top_message = lastMessage.getId();
                 if (!isBroadcast) {
                     dialog.last_message_date = lastMessage.messageOwner.date;
-                    changed = true;
+                    moved = true;
                 }
                 dialogMessage.put(uid, lastMessage);
                 if (lastMessage.messageOwner.to_id.channel_id == 0) {
@@ -10560,6 +10727,8 @@ public class MessagesController extends BaseController implements NotificationCe
 
         if (changed) {
             sortDialogs(null);
+        } else if (moved) {
+            sortDialog(uid);
         }
 
         if (updateRating) {
@@ -10709,6 +10878,59 @@ public class MessagesController extends BaseController implements NotificationCe
         }
     }
 
+    /**
+     * Moves a single dialog after its date, draft or pin state changed. Every list built by sortDialogs
+     * keeps the order of allDialogs, so the dialog is taken out of the lists that contain it and
+     * binary-searched back in, which avoids sorting and re-bucketing all dialogs on each new message.
+     * Changes that may affect which lists a dialog belongs to still have to go through sortDialogs.
+     */
+    public void sortDialog(long did) {
+        TLRPC.Dialog dialog = dialogs_dict.get(did);
+        if (!(dialog instanceof TLRPC.TL_dialog) || dialog.folder_id != 0 || dialog == proxyDialog || !moveDialog(allDialogs, dialog)) {
+            sortDialogs(null);
+            return;
+        }
+        moveDialog(dialogsServerOnly, dialog);
+        moveDialog(dialogsCanAddUsers, dialog);
+        moveDialog(dialogsChannelsOnly, dialog);
+        moveDialog(dialogsGroupsOnly, dialog);
+        moveDialog(dialogsUsersOnly, dialog);
+        if (dialog.id != getUserConfig().getClientUserId()) {
+            moveDialog(dialogsForward, dialog);
+        }
+        ArrayList<TLRPC.Dialog> dialogs = dialogsByFolder.get(0);
+        if (dialogs != null) {
+            moveDialog(dialogs, dialog);
+        }
+    }
+
+    private boolean moveDialog(ArrayList<TLRPC.Dialog> dialogs, TLRPC.Dialog dialog) {
+        int index = dialogs.indexOf(dialog);
+        if (index < 0) {
+            return false;
+        }
+        dialogs.remove(index);
+        int low = 0;
+        int selfId = getUserConfig().getClientUserId();
+        for (int a = 0, N = Math.min(2, dialogs.size()); a < N; a++) {
+            TLRPC.Dialog d = dialogs.get(a);
+            if (dialogs == dialogsForward && a == 0 && d.id == selfId || isLeftProxyChannel && d == proxyDialog) {
+                low = a + 1;
+            }
+        }
+        int high = dialogs.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dialogComparator.compare(dialogs.get(middle), dialog) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        dialogs.add(low, dialog);
+        return true;
+    }
+
     private void addDialogToItsFolder(int index, TLRPC.Dialog dialog, boolean countMessages) {
         int folderId;
         if (dialog instanceof TLRPC.TL_dialogFolder) {
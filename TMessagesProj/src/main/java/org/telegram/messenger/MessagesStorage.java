@@ -9,6 +9,7 @@
 package org.telegram.messenger;
 
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.LongSparseArray;
 import android.util.SparseArray;
@@ -17,6 +18,7 @@ import android.util.SparseIntArray;
 import org.telegram.PhoneFormat.PhoneFormat;
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLiteException;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.support.SparseLongArray;
 import org.telegram.tgnet.NativeByteBuffer;
@@ -32,6 +34,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class MessagesStorage extends BaseController {
@@ -44,7 +47,11 @@ public class MessagesStorage extends BaseController {
         void run(boolean param);
     }
 
-    private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
+    public interface SearchMessagesCallback {
+        void run(ArrayList<TLRPC.Message> messages, ArrayList<TLRPC.User> users, ArrayList<TLRPC.Chat> chats);
+    }
+
+    private DispatchQueue storageQueue = new DispatchQueue("storageQueue", true);
     private SQLiteDatabase database;
     private File cacheFile;
     private File walCacheFile;
@@ -66,8 +73,10 @@ public class MessagesStorage extends BaseController {
 
     private CountDownLatch openSync = new CountDownLatch(1);
 
+    private final PeerCache peerCache = new PeerCache();
+
     private static volatile MessagesStorage[] Instance = new MessagesStorage[UserConfig.MAX_ACCOUNT_COUNT];
-    private final static int LAST_DB_VERSION = 62;
+    private final static int LAST_DB_VERSION = 64;
 
     public static MessagesStorage getInstance(int num) {
         MessagesStorage localInstance = Instance[num];
@@ -230,7 +239,7 @@ public class MessagesStorage extends BaseController {
                 database.executeFast("CREATE TABLE download_queue(uid INTEGER, type INTEGER, date INTEGER, data BLOB, parent TEXT, PRIMARY KEY (uid, type));").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS type_date_idx_download_queue ON download_queue(type, date);").stepThis().dispose();
 
-                database.executeFast("CREATE TABLE user_contacts_v7(key TEXT PRIMARY KEY, uid INTEGER, fname TEXT, sname TEXT, imported INTEGER)").stepThis().dispose();
+                database.executeFast("CREATE TABLE user_contacts_v7(key TEXT PRIMARY KEY, uid INTEGER, fname TEXT, sname TEXT, imported INTEGER, hash INTEGER default 0)").stepThis().dispose();
                 database.executeFast("CREATE TABLE user_phones_v7(key TEXT, phone TEXT, sphone TEXT, deleted INTEGER, PRIMARY KEY (key, phone))").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS sphone_deleted_idx_user_phones ON user_phones_v7(sphone, deleted);").stepThis().dispose();
 
@@ -312,6 +321,8 @@ public class MessagesStorage extends BaseController {
                 database.executeFast("CREATE TABLE polls(mid INTEGER PRIMARY KEY, id INTEGER);").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS polls_id ON polls(id);").stepThis().dispose();
 
+                createMessagesFtsTables(false);
+
                 //version
                 database.executeFast("PRAGMA user_version = " + LAST_DB_VERSION).stepThis().dispose();
 
@@ -376,6 +387,7 @@ public class MessagesStorage extends BaseController {
         }
         loadUnreadMessages();
         loadPendingTasks();
+        loadMessagesFtsState();
         try {
             openSync.countDown();
         } catch (Throwable ignore) {
@@ -792,6 +804,16 @@ public class MessagesStorage extends BaseController {
                     version = 62;
                 }
                 if (version == 62) {
+                    createMessagesFtsTables(true);
+                    database.executeFast("PRAGMA user_version = 63").stepThis().dispose();
+                    version = 63;
+                }
+                if (version == 63) {
+                    database.executeFast("ALTER TABLE user_contacts_v7 ADD COLUMN hash INTEGER default 0").stepThis().dispose();
+                    database.executeFast("PRAGMA user_version = 64").stepThis().dispose();
+                    version = 64;
+                }
+                if (version == 64) {
 
                 }
             } catch (Exception e) {
@@ -814,6 +836,7 @@ public class MessagesStorage extends BaseController {
 
         secretPBytes = null;
         secretG = 0;
+        peerCache.clear();
         if (database != null) {
             database.close();
             database = null;
@@ -1834,6 +1857,7 @@ public class MessagesStorage extends BaseController {
                     if (lower_id != 0) {
                         if (high_id == 1) {
                             database.executeFast("DELETE FROM chats WHERE uid = " + lower_id).stepThis().dispose();
+                            peerCache.removeChat(lower_id);
                         } else if (lower_id < 0) {
                             //database.executeFast("DELETE FROM chats WHERE uid = " + (-lower_id)).stepThis().dispose();
                         }
@@ -2608,7 +2632,7 @@ public class MessagesStorage extends BaseController {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(() -> updateDialogsWithReadMessagesInternal(null, inbox, outbox, mentions));
+            enqueueReadBatch(false, inbox, outbox, null, mentions);
         } else {
             updateDialogsWithReadMessagesInternal(null, inbox, outbox, mentions);
         }
@@ -3350,9 +3374,11 @@ public class MessagesStorage extends BaseController {
             try {
                 if (adds.length() != 0) {
                     database.executeFast(String.format(Locale.US, "UPDATE user_phones_v7 SET deleted = 0 WHERE sphone IN(%s)", adds)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "UPDATE user_contacts_v7 SET hash = 0 WHERE key IN(SELECT key FROM user_phones_v7 WHERE sphone IN(%s))", adds)).stepThis().dispose();
                 }
                 if (deletes.length() != 0) {
                     database.executeFast(String.format(Locale.US, "UPDATE user_phones_v7 SET deleted = 1 WHERE sphone IN(%s)", deletes)).stepThis().dispose();
+                    database.executeFast(String.format(Locale.US, "UPDATE user_contacts_v7 SET hash = 0 WHERE key IN(SELECT key FROM user_phones_v7 WHERE sphone IN(%s))", deletes)).stepThis().dispose();
                 }
             } catch (Exception e) {
                 FileLog.e(e);
@@ -3360,6 +3386,8 @@ public class MessagesStorage extends BaseController {
         });
     }
 
+    private final static int PHONE_BOOK_BATCH_SIZE = 500;
+
     public void putCachedPhoneBook(final HashMap<String, ContactsController.Contact> contactHashMap, final boolean migrate, final boolean delete) {
         if (contactHashMap == null || contactHashMap.isEmpty() && !migrate && !delete) {
             return;
@@ -3369,36 +3397,19 @@ public class MessagesStorage extends BaseController {
                 if (BuildVars.LOGS_ENABLED) {
                     FileLog.d(currentAccount + " save contacts to db " + contactHashMap.size());
                 }
-                database.executeFast("DELETE FROM user_contacts_v7 WHERE 1").stepThis().dispose();
-                database.executeFast("DELETE FROM user_phones_v7 WHERE 1").stepThis().dispose();
-
-                database.beginTransaction();
-                SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_contacts_v7 VALUES(?, ?, ?, ?, ?)");
-                SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO user_phones_v7 VALUES(?, ?, ?, ?)");
-                for (HashMap.Entry<String, ContactsController.Contact> entry : contactHashMap.entrySet()) {
-                    ContactsController.Contact contact = entry.getValue();
-                    if (contact.phones.isEmpty() || contact.shortPhones.isEmpty()) {
-                        continue;
-                    }
-                    state.requery();
-                    state.bindString(1, contact.key);
-                    state.bindInteger(2, contact.contact_id);
-                    state.bindString(3, contact.first_name);
-                    state.bindString(4, contact.last_name);
-                    state.bindInteger(5, contact.imported);
-                    state.step();
-                    for (int a = 0; a < contact.phones.size(); a++) {
-                        state2.requery();
-                        state2.bindString(1, contact.key);
-                        state2.bindString(2, contact.phones.get(a));
-                        state2.bindString(3, contact.shortPhones.get(a));
-                        state2.bindInteger(4, contact.phoneDeleted.get(a));
-                        state2.step();
+                if (migrate || delete) {
+                    database.executeFast("DELETE FROM user_contacts_v7 WHERE 1").stepThis().dispose();
+                    database.executeFast("DELETE FROM user_phones_v7 WHERE 1").stepThis().dispose();
+                    putCachedPhoneBookInternal(contactHashMap, null);
+                } else {
+                    HashMap<String, Long> savedHashes = new HashMap<>();
+                    SQLiteCursor cursor = database.queryFinalized("SELECT key, hash FROM user_contacts_v7 WHERE 1");
+                    while (cursor.next()) {
+                        savedHashes.put(cursor.stringValue(0), cursor.longValue(1));
                     }
+                    cursor.dispose();
+                    putCachedPhoneBookInternal(contactHashMap, savedHashes);
                 }
-                state.dispose();
-                state2.dispose();
-                database.commitTransaction();
                 if (migrate) {
                     database.executeFast("DROP TABLE IF EXISTS user_contacts_v6;").stepThis().dispose();
                     database.executeFast("DROP TABLE IF EXISTS user_phones_v6;").stepThis().dispose();
@@ -3410,6 +3421,87 @@ public class MessagesStorage extends BaseController {
         });
     }
 
+    /**
+     * Writes the phone book cache. With savedHashes (key to the fingerprint stored with the row)
+     * only contacts whose {@link ContactsController.Contact#getFingerprint} differs are rewritten
+     * and cached contacts missing from contactHashMap are deleted, so a sync of an unchanged phone
+     * book writes nothing. Writes are split into transactions of PHONE_BOOK_BATCH_SIZE contacts.
+     */
+    private void putCachedPhoneBookInternal(HashMap<String, ContactsController.Contact> contactHashMap, HashMap<String, Long> savedHashes) throws Exception {
+        int changed = 0;
+        int deleted = 0;
+        int inBatch = 0;
+        database.beginTransaction();
+        SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_contacts_v7 VALUES(?, ?, ?, ?, ?, ?)");
+        SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO user_phones_v7 VALUES(?, ?, ?, ?)");
+        SQLitePreparedStatement state3 = savedHashes != null ? database.executeFast("DELETE FROM user_contacts_v7 WHERE key = ?") : null;
+        SQLitePreparedStatement state4 = savedHashes != null ? database.executeFast("DELETE FROM user_phones_v7 WHERE key = ?") : null;
+        for (HashMap.Entry<String, ContactsController.Contact> entry : contactHashMap.entrySet()) {
+            ContactsController.Contact contact = entry.getValue();
+            if (contact.phones.isEmpty() || contact.shortPhones.isEmpty()) {
+                continue;
+            }
+            long hash = contact.getFingerprint();
+            if (savedHashes != null) {
+                Long savedHash = savedHashes.remove(contact.key);
+                if (savedHash != null) {
+                    if (savedHash == hash) {
+                        continue;
+                    }
+                    state4.requery();
+                    state4.bindString(1, contact.key);
+                    state4.step();
+                }
+            }
+            state.requery();
+            state.bindString(1, contact.key);
+            state.bindInteger(2, contact.contact_id);
+            state.bindString(3, contact.first_name);
+            state.bindString(4, contact.last_name);
+            state.bindInteger(5, contact.imported);
+            state.bindLong(6, hash);
+            state.step();
+            for (int a = 0; a < contact.phones.size(); a++) {
+                state2.requery();
+                state2.bindString(1, contact.key);
+                state2.bindString(2, contact.phones.get(a));
+                state2.bindString(3, contact.shortPhones.get(a));
+                state2.bindInteger(4, contact.phoneDeleted.get(a));
+                state2.step();
+            }
+            changed++;
+            if (++inBatch >= PHONE_BOOK_BATCH_SIZE) {
+                database.commitTransaction();
+                database.beginTransaction();
+                inBatch = 0;
+            }
+        }
+        if (savedHashes != null) {
+            for (String key : savedHashes.keySet()) {
+                state3.requery();
+                state3.bindString(1, key);
+                state3.step();
+                state4.requery();
+                state4.bindString(1, key);
+                state4.step();
+                deleted++;
+                if (++inBatch >= PHONE_BOOK_BATCH_SIZE) {
+                    database.commitTransaction();
+                    database.beginTransaction();
+                    inBatch = 0;
+                }
+            }
+            state3.dispose();
+            state4.dispose();
+        }
+        state.dispose();
+        state2.dispose();
+        database.commitTransaction();
+        if (BuildVars.LOGS_ENABLED) {
+            FileLog.d(currentAccount + " phone book cache changed = " + changed + " deleted = " + deleted);
+        }
+    }
+
     public void getCachedPhoneBook(final boolean byError) {
         storageQueue.postRunnable(() -> {
             SQLiteCursor cursor = null;
@@ -4786,7 +4878,7 @@ public class MessagesStorage extends BaseController {
         });
     }
 
-    private String formatUserSearchName(TLRPC.User user) {
+    public static String formatUserSearchName(TLRPC.User user) {
         StringBuilder str = new StringBuilder();
         if (user.first_name != null && user.first_name.length() > 0) {
             str.append(user.first_name);
@@ -4863,6 +4955,7 @@ public class MessagesStorage extends BaseController {
             state.bindByteBuffer(4, data);
             state.step();
             data.reuse();
+            peerCache.putUser(user);
         }
         state.dispose();
     }
@@ -4898,6 +4991,7 @@ public class MessagesStorage extends BaseController {
                 state.step();
                 data.reuse();
                 state.dispose();
+                peerCache.putChat(chat);
             } catch (Exception e) {
                 FileLog.e(e);
             }
@@ -4966,6 +5060,7 @@ public class MessagesStorage extends BaseController {
             state.bindByteBuffer(3, data);
             state.step();
             data.reuse();
+            peerCache.putChat(chat);
         }
         state.dispose();
     }
@@ -5387,6 +5482,7 @@ public class MessagesStorage extends BaseController {
             SQLitePreparedStatement state_download = database.executeFast("REPLACE INTO download_queue VALUES(?, ?, ?, ?, ?)");
             SQLitePreparedStatement state_webpage = database.executeFast("REPLACE INTO webpage_pending VALUES(?, ?)");
             SQLitePreparedStatement state_polls = null;
+            MessagesFtsWriter ftsWriter = new MessagesFtsWriter();
 
             for (int a = 0; a < messages.size(); a++) {
                 TLRPC.Message message = messages.get(a);
@@ -5574,6 +5670,7 @@ public class MessagesStorage extends BaseController {
                 state_messages.bindInteger(10, 0);
                 state_messages.bindInteger(11, message.mentioned ? 1 : 0);
                 state_messages.step();
+                ftsWriter.index(messageId, message.dialog_id, message.message, true);
 
                 if (message.random_id != 0) {
                     state_randoms.requery();
@@ -5687,6 +5784,7 @@ public class MessagesStorage extends BaseController {
             state_randoms.dispose();
             state_download.dispose();
             state_webpage.dispose();
+            ftsWriter.dispose();
 
             SQLitePreparedStatement state_dialogs_replace = database.executeFast("REPLACE INTO dialogs VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
             SQLitePreparedStatement state_dialogs_update = database.executeFast("UPDATE dialogs SET date = ?, unread_count = ?, last_mid = ?, unread_count_i = ? WHERE did = ?");
@@ -5824,12 +5922,486 @@ public class MessagesStorage extends BaseController {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(() -> putMessagesInternal(messages, withTransaction, doNotUpdateDialogDate, downloadMask, ifNoLastMessage));
+            if (withTransaction && !ifNoLastMessage) {
+                enqueuePutMessages(messages, doNotUpdateDialogDate, downloadMask);
+            } else {
+                storageQueue.postRunnable(() -> putMessagesInternal(messages, withTransaction, doNotUpdateDialogDate, downloadMask, ifNoLastMessage));
+            }
         } else {
             putMessagesInternal(messages, withTransaction, doNotUpdateDialogDate, downloadMask, ifNoLastMessage);
         }
     }
 
+    private static class WriteBatch {
+        private long sequence;
+        private int callsCount;
+        private int itemsCount;
+        private long enqueueTime;
+
+        private ArrayList<TLRPC.Message> messages;
+        private boolean doNotUpdateDialogDate;
+        private int downloadMask;
+
+        private boolean markAsRead;
+        private SparseLongArray inbox;
+        private SparseLongArray outbox;
+        private SparseIntArray encryptedMessages;
+        private ArrayList<Long> mentions;
+    }
+
+    private final static int MAX_WRITE_BATCH_SIZE = 2000;
+
+    private final Object writeBatchLock = new Object();
+    private WriteBatch pendingMessagesBatch;
+    private WriteBatch pendingReadBatch;
+
+    private volatile long writeBatchesCount;
+    private volatile long writeBatchCallsCount;
+    private volatile long writeBatchItemsCount;
+    private volatile int writeBatchMaxSize;
+    private volatile long writeBatchTotalCommitTime;
+    private volatile long writeBatchMaxCommitTime;
+    private volatile long writeBatchMaxDelay;
+
+    /*
+     * Consecutive storage writes are merged into the batch that is already waiting in the queue, but only
+     * while nothing else has been posted to storageQueue after it. That way the merged writes are still
+     * executed exactly where the first of them was queued and every later task (getMessages and friends)
+     * observes all of them.
+     */
+    private boolean canMergeIntoBatch(WriteBatch batch, int itemsCount) {
+        return batch != null && batch.sequence == storageQueue.getPostedCount() && batch.itemsCount + itemsCount <= MAX_WRITE_BATCH_SIZE;
+    }
+
+    private void enqueuePutMessages(ArrayList<TLRPC.Message> messages, boolean doNotUpdateDialogDate, int downloadMask) {
+        synchronized (writeBatchLock) {
+            WriteBatch batch = pendingMessagesBatch;
+            if (canMergeIntoBatch(batch, messages.size()) && batch.doNotUpdateDialogDate == doNotUpdateDialogDate && batch.downloadMask == downloadMask) {
+                batch.messages.addAll(messages);
+                batch.itemsCount += messages.size();
+                batch.callsCount++;
+                return;
+            }
+            final WriteBatch newBatch = new WriteBatch();
+            newBatch.messages = new ArrayList<>(messages);
+            newBatch.doNotUpdateDialogDate = doNotUpdateDialogDate;
+            newBatch.downloadMask = downloadMask;
+            newBatch.itemsCount = messages.size();
+            newBatch.callsCount = 1;
+            newBatch.enqueueTime = SystemClock.elapsedRealtime();
+            pendingMessagesBatch = newBatch;
+            newBatch.sequence = storageQueue.postRunnable(() -> {
+                synchronized (writeBatchLock) {
+                    if (pendingMessagesBatch == newBatch) {
+                        pendingMessagesBatch = null;
+                    }
+                }
+                long start = SystemClock.elapsedRealtime();
+                putMessagesInternal(newBatch.messages, true, newBatch.doNotUpdateDialogDate, newBatch.downloadMask, false);
+                onWriteBatchCommitted(newBatch, start);
+            }, 0, DispatchQueue.PRIORITY_NORMAL);
+        }
+    }
+
+    private static SparseLongArray mergeMax(SparseLongArray to, SparseLongArray from) {
+        if (from == null || from.size() == 0) {
+            return to;
+        }
+        if (to == null) {
+            to = new SparseLongArray(from.size());
+        }
+        for (int a = 0, N = from.size(); a < N; a++) {
+            int key = from.keyAt(a);
+            long value = from.valueAt(a);
+            int index = to.indexOfKey(key);
+            if (index < 0 || to.valueAt(index) < value) {
+                to.put(key, value);
+            }
+        }
+        return to;
+    }
+
+    private static SparseIntArray mergeMax(SparseIntArray to, SparseIntArray from) {
+        if (from == null || from.size() == 0) {
+            return to;
+        }
+        if (to == null) {
+            to = new SparseIntArray(from.size());
+        }
+        for (int a = 0, N = from.size(); a < N; a++) {
+            int key = from.keyAt(a);
+            int value = from.valueAt(a);
+            int index = to.indexOfKey(key);
+            if (index < 0 || to.valueAt(index) < value) {
+                to.put(key, value);
+            }
+        }
+        return to;
+    }
+
+    private void enqueueReadBatch(boolean markAsRead, SparseLongArray inbox, SparseLongArray outbox, SparseIntArray encryptedMessages, ArrayList<Long> mentions) {
+        int itemsCount = (inbox != null ? inbox.size() : 0) + (outbox != null ? outbox.size() : 0) + (encryptedMessages != null ? encryptedMessages.size() : 0) + (mentions != null ? mentions.size() : 0);
+        synchronized (writeBatchLock) {
+            WriteBatch batch = pendingReadBatch;
+            if (canMergeIntoBatch(batch, itemsCount) && batch.markAsRead == markAsRead) {
+                batch.inbox = mergeMax(batch.inbox, inbox);
+                batch.outbox = mergeMax(batch.outbox, outbox);
+                batch.encryptedMessages = mergeMax(batch.encryptedMessages, encryptedMessages);
+                if (mentions != null) {
+                    if (batch.mentions == null) {
+                        batch.mentions = new ArrayList<>();
+                    }
+                    for (int a = 0, N = mentions.size(); a < N; a++) {
+                        Long mid = mentions.get(a);
+                        if (!batch.mentions.contains(mid)) {
+                            batch.mentions.add(mid);
+                        }
+                    }
+                }
+                batch.itemsCount += itemsCount;
+                batch.callsCount++;
+                return;
+            }
+            final WriteBatch newBatch = new WriteBatch();
+            newBatch.markAsRead = markAsRead;
+            newBatch.inbox = mergeMax((SparseLongArray) null, inbox);
+            newBatch.outbox = mergeMax((SparseLongArray) null, outbox);
+            newBatch.encryptedMessages = mergeMax((SparseIntArray) null, encryptedMessages);
+            newBatch.mentions = mentions != null ? new ArrayList<>(mentions) : null;
+            newBatch.itemsCount = itemsCount;
+            newBatch.callsCount = 1;
+            newBatch.enqueueTime = SystemClock.elapsedRealtime();
+            pendingReadBatch = newBatch;
+            newBatch.sequence = storageQueue.postRunnable(() -> {
+                synchronized (writeBatchLock) {
+                    if (pendingReadBatch == newBatch) {
+                        pendingReadBatch = null;
+                    }
+                }
+                long start = SystemClock.elapsedRealtime();
+                if (newBatch.markAsRead) {
+                    try {
+                        database.beginTransaction();
+                        markMessagesAsReadInternal(newBatch.inbox, newBatch.outbox, newBatch.encryptedMessages);
+                        database.commitTransaction();
+                    } catch (Exception e) {
+                        FileLog.e(e);
+                    }
+                } else {
+                    updateDialogsWithReadMessagesInternal(null, newBatch.inbox, newBatch.outbox, newBatch.mentions);
+                }
+                onWriteBatchCommitted(newBatch, start);
+            }, 0, DispatchQueue.PRIORITY_NORMAL);
+        }
+    }
+
+    private void onWriteBatchCommitted(WriteBatch batch, long start) {
+        long now = SystemClock.elapsedRealtime();
+        long commitTime = now - start;
+        writeBatchesCount++;
+        writeBatchCallsCount += batch.callsCount;
+        writeBatchItemsCount += batch.itemsCount;
+        writeBatchTotalCommitTime += commitTime;
+        writeBatchMaxSize = Math.max(writeBatchMaxSize, batch.itemsCount);
+        writeBatchMaxCommitTime = Math.max(writeBatchMaxCommitTime, commitTime);
+        writeBatchMaxDelay = Math.max(writeBatchMaxDelay, start - batch.enqueueTime);
+    }
+
+    public String getWriteBatchStats() {
+        long batches = Math.max(1, writeBatchesCount);
+        return "storage write batches=" + writeBatchesCount + " calls=" + writeBatchCallsCount + " items=" + writeBatchItemsCount +
+                " avgSize=" + (writeBatchItemsCount / batches) + " maxSize=" + writeBatchMaxSize +
+                " avgCommit=" + (writeBatchTotalCommitTime / batches) + "ms maxCommit=" + writeBatchMaxCommitTime + "ms maxDelay=" + writeBatchMaxDelay + "ms";
+    }
+
+    private final static int FTS_BACKFILL_BATCH_SIZE = 500;
+    private final static int FTS_BACKFILL_DELAY = 300;
+    private final static int FTS_MAX_QUERY_WORDS = 8;
+
+    private volatile boolean ftsAvailable;
+    private long ftsBackfillMid;
+
+    /*
+     * messages_fts keeps the text of every message keyed by its mid (rowid), so it stays in sync with the
+     * messages table through the triggers below. The dialog id is stored as a single "d<id>" token, which
+     * lets a per-dialog search intersect doclists inside FTS instead of filtering every match afterwards.
+     * translit holds the transliterated text, it's only filled for messages with non-ASCII characters.
+     */
+    private void createMessagesFtsTables(boolean needBackfill) {
+        try {
+            database.executeFast("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(did, text, translit, tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3', columnsize = 0);").stepThis().dispose();
+            database.executeFast("CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE rowid = old.mid; END;").stepThis().dispose();
+            database.executeFast("CREATE TRIGGER IF NOT EXISTS messages_fts_update_mid AFTER UPDATE OF mid ON messages BEGIN DELETE FROM messages_fts WHERE rowid = new.mid; UPDATE messages_fts SET rowid = new.mid WHERE rowid = old.mid; END;").stepThis().dispose();
+            database.executeFast("CREATE TABLE IF NOT EXISTS messages_fts_state(id INTEGER PRIMARY KEY, last_mid INTEGER, done INTEGER);").stepThis().dispose();
+            database.executeFast("REPLACE INTO messages_fts_state VALUES(1, " + Long.MAX_VALUE + ", " + (needBackfill ? 0 : 1) + ");").stepThis().dispose();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+    }
+
+    private void loadMessagesFtsState() {
+        storageQueue.postRunnable(() -> {
+            ftsAvailable = false;
+            try {
+                if (!database.tableExists("messages_fts_state")) {
+                    return;
+                }
+                SQLiteCursor cursor = database.queryFinalized("SELECT last_mid, done FROM messages_fts_state WHERE id = 1");
+                if (cursor.next()) {
+                    ftsAvailable = true;
+                    ftsBackfillMid = cursor.longValue(0);
+                    if (cursor.intValue(1) == 0) {
+                        scheduleMessagesFtsBackfill();
+                    }
+                }
+                cursor.dispose();
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+        });
+    }
+
+    /*
+     * Batches wait FTS_BACKFILL_DELAY and then go through the background lane of storageQueue, so every
+     * task that is already queued when a batch becomes due runs before it.
+     */
+    private void scheduleMessagesFtsBackfill() {
+        storageQueue.postRunnable(() -> storageQueue.postRunnable(this::backfillMessagesFts, 0, DispatchQueue.PRIORITY_BACKGROUND), FTS_BACKFILL_DELAY);
+    }
+
+    /*
+     * Indexes messages that were stored before messages_fts existed, newest first. Every run handles one
+     * batch and reschedules itself, so regular storage tasks are never blocked for long.
+     */
+    private void backfillMessagesFts() {
+        if (!ftsAvailable || database == null) {
+            return;
+        }
+        try {
+            long lastMid = ftsBackfillMid;
+            int count = 0;
+            ArrayList<TLRPC.Message> messages = new ArrayList<>();
+            ArrayList<Long> mids = new ArrayList<>();
+            SQLiteCursor cursor = database.queryFinalized("SELECT mid, uid, data FROM messages WHERE mid < ? ORDER BY mid DESC LIMIT " + FTS_BACKFILL_BATCH_SIZE, lastMid);
+            while (cursor.next()) {
+                lastMid = cursor.longValue(0);
+                count++;
+                NativeByteBuffer data = cursor.byteBufferValue(2);
+                if (data != null) {
+                    TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                    data.reuse();
+                    if (message != null && !TextUtils.isEmpty(message.message)) {
+                        message.dialog_id = cursor.longValue(1);
+                        messages.add(message);
+                        mids.add(lastMid);
+                    }
+                }
+            }
+            cursor.dispose();
+
+            boolean done = count < FTS_BACKFILL_BATCH_SIZE;
+            database.beginTransaction();
+            try {
+                MessagesFtsWriter ftsWriter = new MessagesFtsWriter();
+                for (int a = 0, N = messages.size(); a < N; a++) {
+                    TLRPC.Message message = messages.get(a);
+                    ftsWriter.index(mids.get(a), message.dialog_id, message.message, false);
+                }
+                ftsWriter.dispose();
+                SQLitePreparedStatement state = database.executeFast("UPDATE messages_fts_state SET last_mid = ?, done = ? WHERE id = 1");
+                state.bindLong(1, lastMid);
+                state.bindInteger(2, done ? 1 : 0);
+                state.step();
+                state.dispose();
+            } finally {
+                database.commitTransaction();
+            }
+            ftsBackfillMid = lastMid;
+            if (done) {
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("messages_fts backfill finished");
+                }
+            } else {
+                scheduleMessagesFtsBackfill();
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+    }
+
+    private class MessagesFtsWriter {
+
+        private SQLitePreparedStatement replaceState;
+        private SQLitePreparedStatement deleteState;
+
+        private void index(long mid, long did, String text, boolean mayExist) throws SQLiteException {
+            if (!ftsAvailable) {
+                return;
+            }
+            if (TextUtils.isEmpty(text)) {
+                if (mayExist) {
+                    if (deleteState == null) {
+                        deleteState = database.executeFast("DELETE FROM messages_fts WHERE rowid = ?");
+                    }
+                    deleteState.requery();
+                    deleteState.bindLong(1, mid);
+                    deleteState.step();
+                }
+                return;
+            }
+            if (replaceState == null) {
+                replaceState = database.executeFast("REPLACE INTO messages_fts(rowid, did, text, translit) VALUES(?, ?, ?, ?)");
+            }
+            replaceState.requery();
+            replaceState.bindLong(1, mid);
+            replaceState.bindString(2, getMessagesFtsDialogToken(did));
+            replaceState.bindString(3, text);
+            String translit = getMessagesFtsTranslit(text);
+            if (translit != null) {
+                replaceState.bindString(4, translit);
+            } else {
+                replaceState.bindNull(4);
+            }
+            replaceState.step();
+        }
+
+        private void dispose() {
+            if (replaceState != null) {
+                replaceState.dispose();
+                replaceState = null;
+            }
+            if (deleteState != null) {
+                deleteState.dispose();
+                deleteState = null;
+            }
+        }
+    }
+
+    private static String getMessagesFtsDialogToken(long did) {
+        return did < 0 ? "dn" + (-did) : "d" + did;
+    }
+
+    private static String getMessagesFtsTranslit(String text) {
+        for (int a = 0, N = text.length(); a < N; a++) {
+            if (text.charAt(a) >= 0x80) {
+                String translit = LocaleController.getInstance().getTranslitString(text);
+                return translit == null || translit.equals(text) ? null : translit;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Turns user input into an FTS5 expression: every word becomes a prefix query that matches either the
+     * text or its transliteration, and all words have to be present.
+     */
+    private static String buildMessagesFtsQuery(long did, String query) {
+        if (query == null) {
+            return null;
+        }
+        String[] words = query.toLowerCase().split("[^\\p{L}\\p{N}]+");
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        for (int a = 0; a < words.length && count < FTS_MAX_QUERY_WORDS; a++) {
+            String word = words[a];
+            if (word.length() == 0) {
+                continue;
+            }
+            if (count++ != 0) {
+                builder.append(" AND ");
+            }
+            String translit = getMessagesFtsTranslit(word);
+            if (translit != null) {
+                translit = translit.replace("\"", "");
+            }
+            if (!TextUtils.isEmpty(translit)) {
+                builder.append("(\"").append(word).append("\"* OR \"").append(translit).append("\"*)");
+            } else {
+                builder.append("\"").append(word).append("\"*");
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        if (did != 0) {
+            return "did : " + getMessagesFtsDialogToken(did) + " AND {text translit} : (" + builder + ")";
+        }
+        return "{text translit} : (" + builder + ")";
+    }
+
+    public boolean isMessagesSearchIndexAvailable() {
+        return ftsAvailable;
+    }
+
+    /**
+     * Searches the local message index. Results go from the newest message to the oldest, ordered by
+     * date and then by mid, and offsetDate and offsetMid are taken from the last message of the previous
+     * page. Mids of secret chats are negative and decrease as messages get newer, so inside a secret chat
+     * the mid order is reversed.
+     */
+    public void searchMessagesByText(final long did, final String query, final long offsetMid, final int offsetDate, final int limit, final SearchMessagesCallback callback) {
+        storageQueue.postRunnable(() -> {
+            ArrayList<TLRPC.Message> messages = new ArrayList<>();
+            ArrayList<TLRPC.User> users = new ArrayList<>();
+            ArrayList<TLRPC.Chat> chats = new ArrayList<>();
+            try {
+                String match = buildMessagesFtsQuery(did, query);
+                if (ftsAvailable && match != null) {
+                    ArrayList<Integer> usersToLoad = new ArrayList<>();
+                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
+                    SQLiteCursor cursor;
+                    if (did != 0 && (int) did == 0) {
+                        if (offsetDate != 0) {
+                            cursor = database.queryFinalized("SELECT m.data, m.send_state, m.mid, m.date, m.uid, m.read_state FROM messages_fts INNER JOIN messages as m ON m.mid = messages_fts.rowid WHERE messages_fts MATCH ? AND (m.date < ? OR m.date = ? AND m.mid > ?) ORDER BY m.date DESC, m.mid ASC LIMIT " + limit, match, offsetDate, offsetDate, offsetMid);
+                        } else {
+                            cursor = database.queryFinalized("SELECT m.data, m.send_state, m.mid, m.date, m.uid, m.read_state FROM messages_fts INNER JOIN messages as m ON m.mid = messages_fts.rowid WHERE messages_fts MATCH ? ORDER BY m.date DESC, m.mid ASC LIMIT " + limit, match);
+                        }
+                    } else if (offsetDate != 0) {
+                        cursor = database.queryFinalized("SELECT m.data, m.send_state, m.mid, m.date, m.uid, m.read_state FROM messages_fts INNER JOIN messages as m ON m.mid = messages_fts.rowid WHERE messages_fts MATCH ? AND (m.date < ? OR m.date = ? AND m.mid < ?) ORDER BY m.date DESC, m.mid DESC LIMIT " + limit, match, offsetDate, offsetDate, offsetMid);
+                    } else {
+                        cursor = database.queryFinalized("SELECT m.data, m.send_state, m.mid, m.date, m.uid, m.read_state FROM messages_fts INNER JOIN messages as m ON m.mid = messages_fts.rowid WHERE messages_fts MATCH ? ORDER BY m.date DESC, m.mid DESC LIMIT " + limit, match);
+                    }
+                    while (cursor.next()) {
+                        NativeByteBuffer data = cursor.byteBufferValue(0);
+                        if (data != null) {
+                            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                            message.send_state = cursor.intValue(1);
+                            message.readAttachPath(data, getUserConfig().clientUserId);
+                            data.reuse();
+                            message.id = cursor.intValue(2);
+                            message.date = cursor.intValue(3);
+                            message.dialog_id = cursor.longValue(4);
+                            MessageObject.setUnreadFlags(message, cursor.intValue(5));
+                            messages.add(message);
+
+                            int lower_id = (int) message.dialog_id;
+                            if (lower_id > 0) {
+                                if (!usersToLoad.contains(lower_id)) {
+                                    usersToLoad.add(lower_id);
+                                }
+                            } else if (lower_id < 0) {
+                                if (!chatsToLoad.contains(-lower_id)) {
+                                    chatsToLoad.add(-lower_id);
+                                }
+                            }
+                            addUsersAndChatsFromMessage(message, usersToLoad, chatsToLoad);
+                        }
+                    }
+                    cursor.dispose();
+                    if (!usersToLoad.isEmpty()) {
+                        getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                    }
+                    if (!chatsToLoad.isEmpty()) {
+                        getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                    }
+                }
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+            AndroidUtilities.runOnUIThread(() -> callback.run(messages, users, chats));
+        });
+    }
+
     public void markMessageAsSendError(final TLRPC.Message message) {
         storageQueue.postRunnable(() -> {
             try {
@@ -6057,6 +6629,7 @@ public class MessagesStorage extends BaseController {
                     }
                     state.bindInteger(2, user.id);
                     state.step();
+                    peerCache.removeUser(user.id);
                 }
                 state.dispose();
                 if (withTransaction) {
@@ -6189,7 +6762,7 @@ public class MessagesStorage extends BaseController {
 
     public void markMessagesAsRead(final SparseLongArray inbox, final SparseLongArray outbox, final SparseIntArray encryptedMessages, boolean useQueue) {
         if (useQueue) {
-            storageQueue.postRunnable(() -> markMessagesAsReadInternal(inbox, outbox, encryptedMessages));
+            enqueueReadBatch(true, inbox, outbox, encryptedMessages, null);
         } else {
             markMessagesAsReadInternal(inbox, outbox, encryptedMessages);
         }
@@ -6939,6 +7512,10 @@ public class MessagesStorage extends BaseController {
                 state.dispose();
                 state2.dispose();
 
+                MessagesFtsWriter ftsWriter = new MessagesFtsWriter();
+                ftsWriter.index(messageId, message.dialog_id, message.message, true);
+                ftsWriter.dispose();
+
                 database.commitTransaction();
                 if (broadcast) {
                     HashMap<Integer, TLRPC.User> userHashMap = new HashMap<>();
@@ -7001,6 +7578,7 @@ public class MessagesStorage extends BaseController {
                 SQLitePreparedStatement state_media = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
                 SQLitePreparedStatement state_polls = null;
                 SQLitePreparedStatement state_webpage = null;
+                MessagesFtsWriter ftsWriter = new MessagesFtsWriter();
                 TLRPC.Message botKeyboard = null;
                 int minChannelMessageId = Integer.MAX_VALUE;
                 int maxChannelMessageId = 0;
@@ -7132,6 +7710,7 @@ public class MessagesStorage extends BaseController {
                     state_messages.bindInteger(10, 0);
                     state_messages.bindInteger(11, message.mentioned ? 1 : 0);
                     state_messages.step();
+                    ftsWriter.index(messageId, dialog_id, message.message, true);
 
                     if (MediaDataController.canAddMessageToMedia(message)) {
                         state_media.requery();
@@ -7171,6 +7750,7 @@ public class MessagesStorage extends BaseController {
                 }
                 state_messages.dispose();
                 state_media.dispose();
+                ftsWriter.dispose();
                 if (state_webpage != null) {
                     state_webpage.dispose();
                 }
@@ -7522,6 +8102,7 @@ public class MessagesStorage extends BaseController {
                 SQLitePreparedStatement state_holes = database.executeFast("REPLACE INTO messages_holes VALUES(?, ?, ?)");
                 SQLitePreparedStatement state_media_holes = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
                 SQLitePreparedStatement state_polls = null;
+                MessagesFtsWriter ftsWriter = new MessagesFtsWriter();
 
                 for (int a = 0; a < dialogs.dialogs.size(); a++) {
                     TLRPC.Dialog dialog = dialogs.dialogs.get(a);
@@ -7573,6 +8154,7 @@ public class MessagesStorage extends BaseController {
                         state_messages.bindInteger(10, 0);
                         state_messages.bindInteger(11, message.mentioned ? 1 : 0);
                         state_messages.step();
+                        ftsWriter.index(messageId, dialog.id, message.message, true);
 
                         if (MediaDataController.canAddMessageToMedia(message)) {
                             state_media.requery();
@@ -7647,6 +8229,7 @@ public class MessagesStorage extends BaseController {
                 state_messages.dispose();
                 state_dialogs.dispose();
                 state_media.dispose();
+                ftsWriter.dispose();
                 state_settings.dispose();
                 state_holes.dispose();
                 state_media_holes.dispose();
@@ -7898,10 +8481,19 @@ public class MessagesStorage extends BaseController {
     }
 
     public TLRPC.User getUserSync(final int user_id) {
+        TLRPC.User cached = peerCache.getUser(user_id);
+        if (cached != null || peerCache.isMissingUser(user_id)) {
+            return cached;
+        }
         final CountDownLatch countDownLatch = new CountDownLatch(1);
         final TLRPC.User[] user = new TLRPC.User[1];
         storageQueue.postRunnable(() -> {
             user[0] = getUser(user_id);
+            if (user[0] != null) {
+                peerCache.putUser(user[0]);
+            } else {
+                peerCache.putMissingUser(user_id);
+            }
             countDownLatch.countDown();
         });
         try {
@@ -7913,10 +8505,19 @@ public class MessagesStorage extends BaseController {
     }
 
     public TLRPC.Chat getChatSync(final int chat_id) {
+        TLRPC.Chat cached = peerCache.getChat(chat_id);
+        if (cached != null || peerCache.isMissingChat(chat_id)) {
+            return cached;
+        }
         final CountDownLatch countDownLatch = new CountDownLatch(1);
         final TLRPC.Chat[] chat = new TLRPC.Chat[1];
         storageQueue.postRunnable(() -> {
             chat[0] = getChat(chat_id);
+            if (chat[0] != null) {
+                peerCache.putChat(chat[0]);
+            } else {
+                peerCache.putMissingChat(chat_id);
+            }
             countDownLatch.countDown();
         });
         try {
@@ -7927,6 +8528,83 @@ public class MessagesStorage extends BaseController {
         return chat[0];
     }
 
+    /**
+     * Returns the user from the peer cache without going to the database.
+     */
+    public TLRPC.User getCachedUser(int user_id) {
+        return peerCache.getUser(user_id);
+    }
+
+    public TLRPC.Chat getCachedChat(int chat_id) {
+        return peerCache.getChat(chat_id);
+    }
+
+    /**
+     * Loads all users and chats that are not in the peer cache yet with one query per table and
+     * waits at most timeout milliseconds for it, so callers can fall back to {@link #getCachedUser}
+     * and {@link #getCachedChat} instead of blocking on a busy storage queue.
+     *
+     * @return false if the storage queue didn't get to the query in time; it still fills the cache
+     *     when it runs.
+     */
+    public boolean loadPeersSync(ArrayList<Integer> usersToLoad, ArrayList<Integer> chatsToLoad, long timeout) {
+        final ArrayList<Integer> users = new ArrayList<>();
+        final ArrayList<Integer> chats = new ArrayList<>();
+        if (usersToLoad != null) {
+            for (int a = 0, N = usersToLoad.size(); a < N; a++) {
+                int id = usersToLoad.get(a);
+                if (id > 0 && !users.contains(id) && !peerCache.containsUser(id)) {
+                    users.add(id);
+                }
+            }
+        }
+        if (chatsToLoad != null) {
+            for (int a = 0, N = chatsToLoad.size(); a < N; a++) {
+                int id = chatsToLoad.get(a);
+                if (id > 0 && !chats.contains(id) && !peerCache.containsChat(id)) {
+                    chats.add(id);
+                }
+            }
+        }
+        if (users.isEmpty() && chats.isEmpty()) {
+            return true;
+        }
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        storageQueue.postRunnable(() -> {
+            try {
+                if (!users.isEmpty()) {
+                    ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
+                    getUsersInternal(TextUtils.join(",", users), loadedUsers);
+                    for (int a = 0, N = loadedUsers.size(); a < N; a++) {
+                        peerCache.putUser(loadedUsers.get(a));
+                    }
+                    for (int a = 0, N = users.size(); a < N; a++) {
+                        peerCache.putMissingUser(users.get(a));
+                    }
+                }
+                if (!chats.isEmpty()) {
+                    ArrayList<TLRPC.Chat> loadedChats = new ArrayList<>();
+                    getChatsInternal(TextUtils.join(",", chats), loadedChats);
+                    for (int a = 0, N = loadedChats.size(); a < N; a++) {
+                        peerCache.putChat(loadedChats.get(a));
+                    }
+                    for (int a = 0, N = chats.size(); a < N; a++) {
+                        peerCache.putMissingChat(chats.get(a));
+                    }
+                }
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+            countDownLatch.countDown();
+        });
+        try {
+            return countDownLatch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return false;
+    }
+
     public TLRPC.User getUser(final int user_id) {
         TLRPC.User user = null;
         try {
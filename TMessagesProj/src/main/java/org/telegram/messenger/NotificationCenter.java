@@ -10,8 +10,11 @@ package org.telegram.messenger;
 
 import androidx.annotation.UiThread;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class NotificationCenter {
 
@@ -167,12 +170,25 @@ public class NotificationCenter {
     public static final int playerDidStartPlaying = totalEvents++;
     public static final int closeSearchByActiveAction = totalEvents++;
 
-    private SparseArray<ArrayList<Object>> observers = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> removeAfterBroadcast = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> addAfterBroadcast = new SparseArray<>();
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    private SparseArray<Object[]> observers = new SparseArray<>();
     private ArrayList<DelayedPost> delayedPosts = new ArrayList<>(10);
 
-    private int broadcasting = 0;
+    private SparseIntArray pendingMasks = new SparseIntArray();
+    private SparseIntArray flushingMasks = new SparseIntArray();
+    private boolean pendingMasksScheduled;
+    private final Choreographer.FrameCallback flushPendingMasks = frameTimeNanos -> {
+        pendingMasksScheduled = false;
+        SparseIntArray masks = pendingMasks;
+        pendingMasks = flushingMasks;
+        flushingMasks = masks;
+        for (int a = 0, N = masks.size(); a < N; a++) {
+            postNotificationName(masks.keyAt(a), masks.valueAt(a));
+        }
+        masks.clear();
+    };
+
     private boolean animationInProgress;
 
     private int[] allowedNotifications;
@@ -257,7 +273,63 @@ public class NotificationCenter {
         return currentHeavyOperationFlags;
     }
 
+    /**
+     * The fixed-arity overloads only skip the array when nobody listens; with an observer the
+     * arguments still have to be packed for the varargs NotificationCenterDelegate callback.
+     */
+    private boolean needPost(int id) {
+        if (BuildVars.DEBUG_VERSION) {
+            if (Thread.currentThread() != ApplicationLoader.applicationHandler.getLooper().getThread()) {
+                throw new RuntimeException("postNotificationName allowed only from MAIN thread");
+            }
+        }
+        return animationInProgress || id == startAllHeavyOperations || id == stopAllHeavyOperations || observers.indexOfKey(id) >= 0;
+    }
+
+    public void postNotificationName(int id) {
+        if (needPost(id)) {
+            postNotificationNameArgs(id, EMPTY_ARGS);
+        }
+    }
+
+    public void postNotificationName(int id, Object arg1) {
+        if (needPost(id)) {
+            postNotificationNameArgs(id, new Object[]{arg1});
+        }
+    }
+
+    public void postNotificationName(int id, Object arg1, Object arg2) {
+        if (needPost(id)) {
+            postNotificationNameArgs(id, new Object[]{arg1, arg2});
+        }
+    }
+
+    public void postNotificationName(int id, Object arg1, Object arg2, Object arg3) {
+        if (needPost(id)) {
+            postNotificationNameArgs(id, new Object[]{arg1, arg2, arg3});
+        }
+    }
+
     public void postNotificationName(int id, Object... args) {
+        if (needPost(id)) {
+            postNotificationNameArgs(id, args);
+        }
+    }
+
+    /**
+     * Merges the mask into a single notification with an Integer argument that is posted
+     * on the next frame, so bursts of updateInterfaces posts reach observers once.
+     */
+    @UiThread
+    public void postNotificationNameCoalesced(int id, int mask) {
+        pendingMasks.put(id, pendingMasks.get(id) | mask);
+        if (!pendingMasksScheduled) {
+            pendingMasksScheduled = true;
+            Choreographer.getInstance().postFrameCallback(flushPendingMasks);
+        }
+    }
+
+    private void postNotificationNameArgs(int id, Object[] args) {
         boolean allowDuringAnimation = id == startAllHeavyOperations || id == stopAllHeavyOperations;
         if (!allowDuringAnimation && allowedNotifications != null) {
             for (int a = 0; a < allowedNotifications.length; a++) {
@@ -292,35 +364,10 @@ public class NotificationCenter {
             }
             return;
         }
-        broadcasting++;
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null && !objects.isEmpty()) {
-            for (int a = 0; a < objects.size(); a++) {
-                Object obj = objects.get(a);
-                ((NotificationCenterDelegate) obj).didReceivedNotification(id, currentAccount, args);
-            }
-        }
-        broadcasting--;
-        if (broadcasting == 0) {
-            if (removeAfterBroadcast.size() != 0) {
-                for (int a = 0; a < removeAfterBroadcast.size(); a++) {
-                    int key = removeAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = removeAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        removeObserver(arrayList.get(b), key);
-                    }
-                }
-                removeAfterBroadcast.clear();
-            }
-            if (addAfterBroadcast.size() != 0) {
-                for (int a = 0; a < addAfterBroadcast.size(); a++) {
-                    int key = addAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = addAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        addObserver(arrayList.get(b), key);
-                    }
-                }
-                addAfterBroadcast.clear();
+        Object[] objects = observers.get(id);
+        if (objects != null) {
+            for (int a = 0; a < objects.length; a++) {
+                ((NotificationCenterDelegate) objects[a]).didReceivedNotification(id, currentAccount, args);
             }
         }
     }
@@ -331,23 +378,19 @@ public class NotificationCenter {
                 throw new RuntimeException("addObserver allowed only from MAIN thread");
             }
         }
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = addAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                addAfterBroadcast.put(id, arrayList);
-            }
-            arrayList.add(observer);
-            return;
-        }
-        ArrayList<Object> objects = observers.get(id);
+        Object[] objects = observers.get(id);
         if (objects == null) {
-            observers.put(id, (objects = new ArrayList<>()));
-        }
-        if (objects.contains(observer)) {
+            observers.put(id, new Object[]{observer});
             return;
         }
-        objects.add(observer);
+        for (int a = 0; a < objects.length; a++) {
+            if (objects[a] == observer) {
+                return;
+            }
+        }
+        Object[] newObjects = Arrays.copyOf(objects, objects.length + 1);
+        newObjects[objects.length] = observer;
+        observers.put(id, newObjects);
     }
 
     public void removeObserver(Object observer, int id) {
@@ -356,18 +399,22 @@ public class NotificationCenter {
                 throw new RuntimeException("removeObserver allowed only from MAIN thread");
             }
         }
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = removeAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                removeAfterBroadcast.put(id, arrayList);
-            }
-            arrayList.add(observer);
+        Object[] objects = observers.get(id);
+        if (objects == null) {
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null) {
-            objects.remove(observer);
+        for (int a = 0; a < objects.length; a++) {
+            if (objects[a] == observer) {
+                if (objects.length == 1) {
+                    observers.remove(id);
+                } else {
+                    Object[] newObjects = new Object[objects.length - 1];
+                    System.arraycopy(objects, 0, newObjects, 0, a);
+                    System.arraycopy(objects, a + 1, newObjects, a, objects.length - a - 1);
+                    observers.put(id, newObjects);
+                }
+                return;
+            }
         }
     }
 
@@ -0,0 +1,130 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of users and chats read from or written to the users/chats tables of
+ * {@link MessagesStorage}. Ids that were looked up and are not in the database are kept as
+ * negative entries, so repeated lookups of unknown peers don't go to the storage queue either.
+ * Storage writes go through {@link #putUser}/{@link #putChat} and replace negative entries; writes
+ * that only touch some columns must {@link #removeUser}/{@link #removeChat} the entry.
+ */
+public class PeerCache {
+
+    private static final int MAX_USERS_COUNT = 2000;
+    private static final int MAX_CHATS_COUNT = 500;
+
+    private static final TLRPC.User MISSING_USER = new TLRPC.TL_userEmpty();
+    private static final TLRPC.Chat MISSING_CHAT = new TLRPC.TL_chatEmpty();
+
+    private final LinkedHashMap<Integer, TLRPC.User> users = new LinkedHashMap<Integer, TLRPC.User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TLRPC.User> eldest) {
+            return size() > MAX_USERS_COUNT;
+        }
+    };
+
+    private final LinkedHashMap<Integer, TLRPC.Chat> chats = new LinkedHashMap<Integer, TLRPC.Chat>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TLRPC.Chat> eldest) {
+            return size() > MAX_CHATS_COUNT;
+        }
+    };
+
+    private int hits;
+    private int misses;
+
+    /**
+     * @return the cached user, or null if it is unknown or known to be missing from the database.
+     */
+    public synchronized TLRPC.User getUser(int id) {
+        TLRPC.User user = users.get(id);
+        if (user == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return user == MISSING_USER ? null : user;
+    }
+
+    public synchronized TLRPC.Chat getChat(int id) {
+        TLRPC.Chat chat = chats.get(id);
+        if (chat == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return chat == MISSING_CHAT ? null : chat;
+    }
+
+    public synchronized boolean containsUser(int id) {
+        return users.containsKey(id);
+    }
+
+    public synchronized boolean containsChat(int id) {
+        return chats.containsKey(id);
+    }
+
+    public synchronized boolean isMissingUser(int id) {
+        return users.get(id) == MISSING_USER;
+    }
+
+    public synchronized boolean isMissingChat(int id) {
+        return chats.get(id) == MISSING_CHAT;
+    }
+
+    public synchronized void putUser(TLRPC.User user) {
+        if (user != null) {
+            users.put(user.id, user);
+        }
+    }
+
+    public synchronized void putChat(TLRPC.Chat chat) {
+        if (chat != null) {
+            chats.put(chat.id, chat);
+        }
+    }
+
+    /**
+     * Remembers that the user is not in the database, unless it was put in the meantime.
+     */
+    public synchronized void putMissingUser(int id) {
+        if (!users.containsKey(id)) {
+            users.put(id, MISSING_USER);
+        }
+    }
+
+    public synchronized void putMissingChat(int id) {
+        if (!chats.containsKey(id)) {
+            chats.put(id, MISSING_CHAT);
+        }
+    }
+
+    public synchronized void removeUser(int id) {
+        users.remove(id);
+    }
+
+    public synchronized void removeChat(int id) {
+        chats.remove(id);
+    }
+
+    public synchronized void clear() {
+        users.clear();
+        chats.clear();
+    }
+
+    public synchronized String getStats() {
+        return "users=" + users.size() + " chats=" + chats.size() + " hits=" + hits + " misses=" + misses;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Set of disjoint half-open int ranges kept as one sorted array of bounds (start0, end0, start1,
+ * end1, ...). Lookups are binary searches. Every change publishes a new array through a volatile
+ * field, so any thread can read without locking while a single owner thread modifies the set.
+ */
+public class RangeSet {
+
+    private static final int[] EMPTY = new int[0];
+
+    private volatile int[] bounds = EMPTY;
+
+    /**
+     * Index of the first range whose end is greater than offset (or touches it when inclusive is set).
+     */
+    private static int findRange(int[] b, int offset, boolean inclusive) {
+        int low = 0;
+        int high = b.length / 2;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int end = b[mid * 2 + 1];
+            if (end < offset || !inclusive && end == offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public boolean isEmpty() {
+        return bounds.length == 0;
+    }
+
+    public int getCount() {
+        return bounds.length / 2;
+    }
+
+    public long getTotalLength() {
+        int[] b = bounds;
+        long length = 0;
+        for (int a = 0; a < b.length; a += 2) {
+            length += b[a + 1] - b[a];
+        }
+        return length;
+    }
+
+    public int getFirstStart() {
+        int[] b = bounds;
+        return b.length != 0 ? b[0] : -1;
+    }
+
+    public boolean contains(int offset) {
+        int[] b = bounds;
+        int index = findRange(b, offset, false);
+        return index < b.length / 2 && b[index * 2] <= offset;
+    }
+
+    /**
+     * @return offset itself if it is inside a range, otherwise the start of the first range after it,
+     *     or -1 if there is none.
+     */
+    public int findOffset(int offset) {
+        int[] b = bounds;
+        int index = findRange(b, offset, false);
+        if (index >= b.length / 2) {
+            return -1;
+        }
+        return Math.max(offset, b[index * 2]);
+    }
+
+    /**
+     * Unions [start, end) into the set, merging touching ranges.
+     *
+     * @return index of the first range that changed, or -1 if the set already covered it.
+     */
+    public int add(int start, int end) {
+        if (end <= start) {
+            return -1;
+        }
+        int[] b = bounds;
+        int count = b.length / 2;
+        int first = findRange(b, start, true);
+        int last = first;
+        while (last < count && b[last * 2] <= end) {
+            last++;
+        }
+        if (first < last) {
+            if (last - first == 1 && b[first * 2] <= start && b[first * 2 + 1] >= end) {
+                return -1;
+            }
+            start = Math.min(start, b[first * 2]);
+            end = Math.max(end, b[(last - 1) * 2 + 1]);
+        }
+        int[] result = new int[(count - (last - first) + 1) * 2];
+        System.arraycopy(b, 0, result, 0, first * 2);
+        result[first * 2] = start;
+        result[first * 2 + 1] = end;
+        System.arraycopy(b, last * 2, result, first * 2 + 2, (count - last) * 2);
+        bounds = result;
+        return first;
+    }
+
+    /**
+     * Removes [start, end) from the set.
+     *
+     * @return index of the first range that changed, or -1 if nothing of it was in the set.
+     */
+    public int subtract(int start, int end) {
+        if (end <= start) {
+            return -1;
+        }
+        int[] b = bounds;
+        int count = b.length / 2;
+        int first = findRange(b, start, false);
+        if (first >= count || b[first * 2] >= end) {
+            return -1;
+        }
+        int last = first;
+        while (last < count && b[last * 2] < end) {
+            last++;
+        }
+        boolean keepLeft = b[first * 2] < start;
+        boolean keepRight = b[(last - 1) * 2 + 1] > end;
+        int newCount = count - (last - first) + (keepLeft ? 1 : 0) + (keepRight ? 1 : 0);
+        int[] result = new int[newCount * 2];
+        System.arraycopy(b, 0, result, 0, first * 2);
+        int index = first * 2;
+        if (keepLeft) {
+            result[index++] = b[first * 2];
+            result[index++] = start;
+        }
+        if (keepRight) {
+            result[index++] = end;
+            result[index++] = b[(last - 1) * 2 + 1];
+        }
+        System.arraycopy(b, last * 2, result, index, (count - last) * 2);
+        bounds = result;
+        return first;
+    }
+
+    /**
+     * Writes the ranges from fromIndex on in the .pt layout (int count, then start/end pairs) at
+     * absolute positions, so a mapped sidecar file is only touched where the set changed.
+     */
+    public void writeTo(ByteBuffer buffer, int fromIndex) {
+        int[] b = bounds;
+        for (int a = Math.max(0, fromIndex) * 2; a < b.length; a++) {
+            buffer.putInt(4 + a * 4, b[a]);
+        }
+        buffer.putInt(0, b.length / 2);
+    }
+}
@@ -40,6 +40,8 @@ import org.telegram.messenger.support.SparseLongArray;
 import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.NativeByteBuffer;
 import org.telegram.tgnet.RequestDelegate;
+import org.telegram.tgnet.AbstractSerializedData;
+import org.telegram.tgnet.PooledSerializedData;
 import org.telegram.tgnet.SerializedData;
 import org.telegram.tgnet.TLObject;
 import org.telegram.tgnet.TLRPC;
@@ -1534,7 +1536,7 @@ public class SendMessagesHelper extends BaseController implements NotificationCe
         return sendResult;
     }
 
-    private void writePreviousMessageData(TLRPC.Message message, SerializedData data) {
+    private void writePreviousMessageData(TLRPC.Message message, AbstractSerializedData data) {
         message.media.serializeToStream(data);
         data.writeString(message.message != null ? message.message : "");
         data.writeString(message.attachPath != null ? message.attachPath : "");
@@ -1581,15 +1583,13 @@ public class SendMessagesHelper extends BaseController implements NotificationCe
                 messageObject.previousCaptionEntities = newMsg.entities;
                 messageObject.previousAttachPath = newMsg.attachPath;
 
-                SerializedData serializedDataCalc = new SerializedData(true);
-                writePreviousMessageData(newMsg, serializedDataCalc);
-                SerializedData prevMessageData = new SerializedData(serializedDataCalc.length());
+                PooledSerializedData prevMessageData = PooledSerializedData.obtain();
                 writePreviousMessageData(newMsg, prevMessageData);
                 if (params == null) {
                     params = new HashMap<>();
                 }
-                params.put("prevMedia", Base64.encodeToString(prevMessageData.toByteArray(), Base64.DEFAULT));
-                prevMessageData.cleanup();
+                params.put("prevMedia", Base64.encodeToString(prevMessageData.getBuffer(), 0, prevMessageData.length(), Base64.DEFAULT));
+                prevMessageData.recycle();
 
                 if (photo != null) {
                     newMsg.media = new TLRPC.TL_messageMediaPhoto();
@@ -0,0 +1,155 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import android.util.SparseArray;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps the spanned text and the {@link MessageObject.TextLayoutBlock}s built by
+ * {@link MessageObject#generateLayout} for recently shown messages, so that reopening a chat,
+ * reloading a page or recreating a message object for an update does not run link detection,
+ * entity spans and StaticLayout again. Entries are keyed by the message, a hash of its text, the
+ * layout width and the text size, and the whole cache is dropped when the theme changes.
+ *
+ * Pages of history are built on a small pool of layout queues so that the layouts of one page are
+ * prepared in parallel before they are handed to the UI thread.
+ */
+public class TextLayoutCache {
+
+    private static final int MAX_CACHED_CHARACTERS = 256 * 1024;
+    private static final int LAYOUT_QUEUES_COUNT = 2;
+    private static final int MIN_PARALLEL_PAGE_SIZE = 8;
+
+    public static class Entry {
+        CharSequence text;
+        ArrayList<MessageObject.TextLayoutBlock> blocks;
+        int textWidth;
+        int textHeight;
+        int linesCount;
+        int lastLineWidth;
+        float textXOffset;
+        boolean hasRtl;
+    }
+
+    private static final DispatchQueue[] layoutQueues = new DispatchQueue[LAYOUT_QUEUES_COUNT];
+
+    private static volatile TextLayoutCache Instance = null;
+
+    public static TextLayoutCache getInstance() {
+        TextLayoutCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (TextLayoutCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new TextLayoutCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final LruCache<Entry> cache = new LruCache<Entry>(MAX_CACHED_CHARACTERS) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return Math.max(1, value.text.length());
+        }
+    };
+
+    public Entry get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, MessageObject messageObject) {
+        if (messageObject.textLayoutBlocks == null || messageObject.textLayoutBlocks.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.text = messageObject.messageText;
+        entry.blocks = messageObject.textLayoutBlocks;
+        entry.textWidth = messageObject.textWidth;
+        entry.textHeight = messageObject.textHeight;
+        entry.linesCount = messageObject.linesCount;
+        entry.lastLineWidth = messageObject.lastLineWidth;
+        entry.textXOffset = messageObject.textXOffset;
+        entry.hasRtl = messageObject.hasRtl;
+        cache.put(key, entry);
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+
+    public String getStats() {
+        return cache.toString();
+    }
+
+    private static DispatchQueue getLayoutQueue(int index) {
+        synchronized (layoutQueues) {
+            if (layoutQueues[index] == null) {
+                layoutQueues[index] = new DispatchQueue("textLayoutQueue" + index);
+            }
+            return layoutQueues[index];
+        }
+    }
+
+    /**
+     * Creates message objects with generated layouts for a loaded page of history. The page is
+     * split between the calling thread and the layout queues; the result keeps the order of
+     * messages.
+     */
+    public static ArrayList<MessageObject> createMessageObjects(int account, ArrayList<TLRPC.Message> messages, SparseArray<TLRPC.User> users, SparseArray<TLRPC.Chat> chats) {
+        int size = messages.size();
+        MessageObject[] objects = new MessageObject[size];
+        if (size < MIN_PARALLEL_PAGE_SIZE) {
+            for (int a = 0; a < size; a++) {
+                objects[a] = new MessageObject(account, messages.get(a), users, chats, true);
+            }
+        } else {
+            int threadsCount = LAYOUT_QUEUES_COUNT + 1;
+            CountDownLatch countDownLatch = new CountDownLatch(LAYOUT_QUEUES_COUNT);
+            for (int b = 0; b < LAYOUT_QUEUES_COUNT; b++) {
+                final int start = b + 1;
+                getLayoutQueue(b).postRunnable(() -> {
+                    try {
+                        for (int a = start; a < size; a += threadsCount) {
+                            objects[a] = new MessageObject(account, messages.get(a), users, chats, true);
+                        }
+                    } catch (Throwable e) {
+                        FileLog.e(e);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+            for (int a = 0; a < size; a += threadsCount) {
+                objects[a] = new MessageObject(account, messages.get(a), users, chats, true);
+            }
+            try {
+                countDownLatch.await();
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+            for (int a = 0; a < size; a++) {
+                if (objects[a] == null) {
+                    objects[a] = new MessageObject(account, messages.get(a), users, chats, true);
+                }
+            }
+        }
+        ArrayList<MessageObject> result = new ArrayList<>(size);
+        for (int a = 0; a < size; a++) {
+            result.add(objects[a]);
+        }
+        return result;
+    }
+}
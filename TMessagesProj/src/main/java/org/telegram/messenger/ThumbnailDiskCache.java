@@ -0,0 +1,472 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second level cache for small, already downscaled bitmaps keyed by the {@link ImageLoader}
+ * key@filter. Pixels are appended to one pack file and read back through a memory mapping, so a
+ * hit costs a single copy into a new bitmap instead of a file open and a jpeg/webp decode. The
+ * index lives in memory and is rebuilt from the record headers when the pack is opened; once the
+ * pack grows past {@link #MAX_PACK_SIZE} it is rewritten with the most recently used entries only.
+ */
+public class ThumbnailDiskCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int PACK_MAGIC = 0x4b505454;
+    private static final int RECORD_MAGIC = 0x52505454;
+    private static final int PACK_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 2 + 2 + 2 + 2 + 4;
+    private static final int VERSION = 1;
+
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+
+    public static final int MAX_BITMAP_SIZE = 200;
+    private static final long MAX_PACK_SIZE = 24 * 1024 * 1024;
+    private static final long COMPACT_PACK_SIZE = 12 * 1024 * 1024;
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private static class Entry {
+        long offset;
+        int dataOffset;
+        int length;
+        int width;
+        int height;
+        int config;
+        int dataLength;
+    }
+
+    private static volatile ThumbnailDiskCache Instance = null;
+
+    public static ThumbnailDiskCache getInstance() {
+        ThumbnailDiskCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ThumbnailDiskCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ThumbnailDiskCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final Object sync = new Object();
+    private final DispatchQueue writeQueue = new DispatchQueue("thumbnailDiskCacheQueue");
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private File packFile;
+    private RandomAccessFile pack;
+    private MappedByteBuffer mappedPack;
+    private long mappedSize;
+    private long packSize;
+    private boolean opened;
+    private int pendingWrites;
+
+    private volatile int hitsCount;
+    private volatile int missesCount;
+    private volatile int writesCount;
+    private volatile int compactionsCount;
+
+    private ThumbnailDiskCache() {
+        writeQueue.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public static boolean canCache(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() > MAX_BITMAP_SIZE || bitmap.getHeight() > MAX_BITMAP_SIZE) {
+            return false;
+        }
+        Bitmap.Config config = bitmap.getConfig();
+        return config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * Returns a new bitmap with the cached pixels or null; safe to call from any image loading thread.
+     */
+    public Bitmap get(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry;
+        ByteBuffer buffer;
+        int start;
+        synchronized (sync) {
+            ensureOpen();
+            entry = entries.get(key);
+            if (entry == null) {
+                missesCount++;
+                return null;
+            }
+            if (entry.offset + entry.length > mappedSize && !remap()) {
+                return null;
+            }
+            buffer = mappedPack.duplicate();
+            start = (int) entry.offset + entry.dataOffset;
+        }
+        try {
+            buffer.position(start);
+            buffer.limit(start + entry.dataLength);
+            Bitmap bitmap = Bitmap.createBitmap(entry.width, entry.height, entry.config == CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            if (bitmap.getByteCount() != entry.dataLength) {
+                bitmap.recycle();
+                remove(key);
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            hitsCount++;
+            return bitmap;
+        } catch (Throwable e) {
+            FileLog.e(e);
+            remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * Copies the pixels right away, so the caller is free to recycle the bitmap once this returns;
+     * the append itself happens on a background queue.
+     */
+    public void put(String key, Bitmap bitmap) {
+        if (key == null || !canCache(bitmap)) {
+            return;
+        }
+        synchronized (sync) {
+            ensureOpen();
+            if (pack == null || entries.containsKey(key) || pendingWrites >= MAX_PENDING_WRITES) {
+                return;
+            }
+            pendingWrites++;
+        }
+        final byte[] data;
+        try {
+            data = new byte[bitmap.getByteCount()];
+            bitmap.copyPixelsToBuffer(ByteBuffer.wrap(data));
+        } catch (Throwable e) {
+            FileLog.e(e);
+            synchronized (sync) {
+                pendingWrites--;
+            }
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int config = bitmap.getConfig() == Bitmap.Config.RGB_565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888;
+        writeQueue.postRunnable(() -> {
+            if (append(key, width, height, config, data)) {
+                compact();
+            }
+        });
+    }
+
+    public void remove(String key) {
+        synchronized (sync) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        writeQueue.postRunnable(() -> {
+            synchronized (sync) {
+                close();
+                if (packFile != null) {
+                    packFile.delete();
+                }
+                entries.clear();
+                opened = false;
+            }
+        });
+    }
+
+    public String getStats() {
+        synchronized (sync) {
+            return "thumbnail disk cache: entries=" + entries.size() + " size=" + packSize + " hits=" + hitsCount + " misses=" + missesCount +
+                    " writes=" + writesCount + " compactions=" + compactionsCount;
+        }
+    }
+
+    private void ensureOpen() {
+        if (opened && (pack == null || packFile.exists())) {
+            return;
+        }
+        close();
+        entries.clear();
+        opened = true;
+        try {
+            packFile = new File(FileLoader.getDirectory(FileLoader.MEDIA_DIR_CACHE), "thumbs.pack");
+            pack = new RandomAccessFile(packFile, "rw");
+            if (pack.length() < PACK_HEADER_SIZE || pack.readInt() != PACK_MAGIC || pack.readInt() != VERSION) {
+                pack.setLength(0);
+                pack.writeInt(PACK_MAGIC);
+                pack.writeInt(VERSION);
+            }
+            packSize = pack.length();
+            if (!remap()) {
+                close();
+                return;
+            }
+            long offset = PACK_HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= packSize) {
+                int length = readRecord(offset);
+                if (length <= 0) {
+                    break;
+                }
+                offset += length;
+            }
+            if (offset != packSize) {
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("thumbnail pack truncated from " + packSize + " to " + offset);
+                }
+                packSize = offset;
+                pack.setLength(packSize);
+                remap();
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            close();
+        }
+    }
+
+    private int readRecord(long offset) {
+        ByteBuffer buffer = mappedPack;
+        int position = (int) offset;
+        if (buffer.getInt(position) != RECORD_MAGIC) {
+            return -1;
+        }
+        int keyLength = buffer.getShort(position + 4) & 0xffff;
+        Entry entry = new Entry();
+        entry.offset = offset;
+        entry.width = buffer.getShort(position + 6);
+        entry.height = buffer.getShort(position + 8);
+        entry.config = buffer.getShort(position + 10);
+        entry.dataLength = buffer.getInt(position + 12);
+        entry.dataOffset = RECORD_HEADER_SIZE + keyLength;
+        entry.length = entry.dataOffset + entry.dataLength;
+        if (entry.width <= 0 || entry.height <= 0 || entry.dataLength <= 0 || offset + entry.length > packSize) {
+            return -1;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        ByteBuffer keyBuffer = buffer.duplicate();
+        keyBuffer.position(position + RECORD_HEADER_SIZE);
+        keyBuffer.get(keyBytes);
+        entries.put(new String(keyBytes, UTF8), entry);
+        return entry.length;
+    }
+
+    private boolean remap() {
+        try {
+            mappedPack = (MappedByteBuffer) pack.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, packSize).order(ByteOrder.BIG_ENDIAN);
+            mappedSize = packSize;
+            return true;
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return false;
+    }
+
+    /**
+     * Runs on the write queue, which is the only writer of the pack, so the record is written
+     * without holding {@link #sync}; readers can't see it before its entry is published. Returns
+     * whether the pack has grown past {@link #MAX_PACK_SIZE}.
+     */
+    private boolean append(String key, int width, int height, int config, byte[] data) {
+        RandomAccessFile file;
+        long offset;
+        synchronized (sync) {
+            pendingWrites--;
+            ensureOpen();
+            if (pack == null || entries.containsKey(key)) {
+                return false;
+            }
+            file = pack;
+            offset = packSize;
+        }
+        byte[] keyBytes = key.getBytes(UTF8);
+        if (keyBytes.length > 0xffff) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC);
+        header.putShort((short) keyBytes.length);
+        header.putShort((short) width);
+        header.putShort((short) height);
+        header.putShort((short) config);
+        header.putInt(data.length);
+        try {
+            file.seek(offset);
+            file.write(header.array());
+            file.write(keyBytes);
+            file.write(data);
+        } catch (Exception e) {
+            FileLog.e(e);
+            synchronized (sync) {
+                if (pack == file) {
+                    try {
+                        pack.setLength(packSize);
+                    } catch (Exception ignore) {
+
+                    }
+                }
+            }
+            return false;
+        }
+        Entry entry = new Entry();
+        entry.offset = offset;
+        entry.width = width;
+        entry.height = height;
+        entry.config = config;
+        entry.dataLength = data.length;
+        entry.dataOffset = RECORD_HEADER_SIZE + keyBytes.length;
+        entry.length = entry.dataOffset + entry.dataLength;
+        synchronized (sync) {
+            if (pack != file || packSize != offset) {
+                return false;
+            }
+            entries.put(key, entry);
+            packSize += entry.length;
+            writesCount++;
+            return packSize > MAX_PACK_SIZE;
+        }
+    }
+
+    /**
+     * Runs on the write queue. The most recently used entries are copied into a new pack and synced
+     * to disk without holding {@link #sync}; the lock is only taken to snapshot the index and to swap
+     * in the new file, index and mapping, so {@link #get} is never blocked by the copy.
+     */
+    private void compact() {
+        RandomAccessFile file;
+        ByteBuffer source;
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<Entry> live = new ArrayList<>();
+        synchronized (sync) {
+            if (pack == null || (packSize > mappedSize && !remap())) {
+                return;
+            }
+            file = pack;
+            source = mappedPack.duplicate();
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                keys.add(item.getKey());
+                live.add(item.getValue());
+            }
+        }
+        long size = PACK_HEADER_SIZE;
+        int first = live.size();
+        while (first > 0 && size + live.get(first - 1).length <= COMPACT_PACK_SIZE) {
+            first--;
+            size += live.get(first).length;
+        }
+        File tempFile = new File(packFile.getParentFile(), "thumbs.pack.tmp");
+        RandomAccessFile temp = null;
+        HashMap<String, Entry> newEntries = new HashMap<>();
+        long offset = PACK_HEADER_SIZE;
+        try {
+            temp = new RandomAccessFile(tempFile, "rw");
+            temp.setLength(0);
+            temp.writeInt(PACK_MAGIC);
+            temp.writeInt(VERSION);
+            byte[] buffer = new byte[32 * 1024];
+            for (int a = first, N = live.size(); a < N; a++) {
+                Entry entry = live.get(a);
+                source.limit((int) (entry.offset + entry.length));
+                source.position((int) entry.offset);
+                while (source.hasRemaining()) {
+                    int count = Math.min(buffer.length, source.remaining());
+                    source.get(buffer, 0, count);
+                    temp.write(buffer, 0, count);
+                }
+                source.limit(source.capacity());
+                Entry newEntry = new Entry();
+                newEntry.offset = offset;
+                newEntry.dataOffset = entry.dataOffset;
+                newEntry.length = entry.length;
+                newEntry.width = entry.width;
+                newEntry.height = entry.height;
+                newEntry.config = entry.config;
+                newEntry.dataLength = entry.dataLength;
+                offset += entry.length;
+                newEntries.put(keys.get(a), newEntry);
+            }
+            temp.getFD().sync();
+            temp.close();
+            temp = null;
+        } catch (Exception e) {
+            FileLog.e(e);
+            if (temp != null) {
+                try {
+                    temp.close();
+                } catch (Exception ignore) {
+
+                }
+            }
+            tempFile.delete();
+            return;
+        }
+        synchronized (sync) {
+            if (pack != file) {
+                tempFile.delete();
+                return;
+            }
+            try {
+                close();
+                if (!tempFile.renameTo(packFile)) {
+                    throw new RuntimeException("can't replace thumbnail pack");
+                }
+                ArrayList<String> order = new ArrayList<>(entries.keySet());
+                entries.clear();
+                for (int a = 0, N = order.size(); a < N; a++) {
+                    Entry entry = newEntries.get(order.get(a));
+                    if (entry != null) {
+                        entries.put(order.get(a), entry);
+                    }
+                }
+                pack = new RandomAccessFile(packFile, "rw");
+                packSize = offset;
+                remap();
+                compactionsCount++;
+                if (BuildVars.LOGS_ENABLED) {
+                    FileLog.d("thumbnail pack compacted to " + entries.size() + " entries, " + packSize + " bytes");
+                }
+            } catch (Exception e) {
+                FileLog.e(e);
+                tempFile.delete();
+                close();
+                entries.clear();
+                opened = false;
+            }
+        }
+    }
+
+    private void close() {
+        if (pack != null) {
+            try {
+                pack.close();
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+            pack = null;
+        }
+        mappedPack = null;
+        mappedSize = 0;
+        packSize = 0;
+    }
+}
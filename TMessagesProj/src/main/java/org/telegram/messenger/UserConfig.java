@@ -14,7 +14,7 @@ import android.content.pm.PackageInfo;
 import android.os.SystemClock;
 import android.util.Base64;
 
-import org.telegram.tgnet.SerializedData;
+import org.telegram.tgnet.PooledSerializedData;
 import org.telegram.tgnet.TLRPC;
 
 import java.io.File;
@@ -144,11 +144,10 @@ public class UserConfig extends BaseController {
 
                 if (unacceptedTermsOfService != null) {
                     try {
-                        SerializedData data = new SerializedData(unacceptedTermsOfService.getObjectSize());
-                        unacceptedTermsOfService.serializeToStream(data);
-                        String str = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                        PooledSerializedData data = PooledSerializedData.serialize(unacceptedTermsOfService);
+                        String str = Base64.encodeToString(data.getBuffer(), 0, data.length(), Base64.DEFAULT);
                         editor.putString("terms", str);
-                        data.cleanup();
+                        data.recycle();
                     } catch (Exception ignore) {
 
                     }
@@ -159,14 +158,13 @@ public class UserConfig extends BaseController {
                 if (currentAccount == 0) {
                     if (pendingAppUpdate != null) {
                         try {
-                            SerializedData data = new SerializedData(pendingAppUpdate.getObjectSize());
-                            pendingAppUpdate.serializeToStream(data);
-                            String str = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                            PooledSerializedData data = PooledSerializedData.serialize(pendingAppUpdate);
+                            String str = Base64.encodeToString(data.getBuffer(), 0, data.length(), Base64.DEFAULT);
                             editor.putString("appUpdate", str);
                             editor.putInt("appUpdateBuild", pendingAppUpdateBuildVersion);
                             editor.putLong("appUpdateTime", pendingAppUpdateInstallTime);
                             editor.putLong("appUpdateCheckTime", lastUpdateCheckTime);
-                            data.cleanup();
+                            data.recycle();
                         } catch (Exception ignore) {
 
                         }
@@ -178,22 +176,20 @@ public class UserConfig extends BaseController {
                 SharedConfig.saveConfig();
 
                 if (tmpPassword != null) {
-                    SerializedData data = new SerializedData();
-                    tmpPassword.serializeToStream(data);
-                    String string = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                    PooledSerializedData data = PooledSerializedData.serialize(tmpPassword);
+                    String string = Base64.encodeToString(data.getBuffer(), 0, data.length(), Base64.DEFAULT);
                     editor.putString("tmpPassword", string);
-                    data.cleanup();
+                    data.recycle();
                 } else {
                     editor.remove("tmpPassword");
                 }
 
                 if (currentUser != null) {
                     if (withFile) {
-                        SerializedData data = new SerializedData();
-                        currentUser.serializeToStream(data);
-                        String string = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                        PooledSerializedData data = PooledSerializedData.serialize(currentUser);
+                        String string = Base64.encodeToString(data.getBuffer(), 0, data.length(), Base64.DEFAULT);
                         editor.putString("user", string);
-                        data.cleanup();
+                        data.recycle();
                     }
                 } else {
                     editor.remove("user");
@@ -274,9 +270,9 @@ public class UserConfig extends BaseController {
                 if (terms != null) {
                     byte[] arr = Base64.decode(terms, Base64.DEFAULT);
                     if (arr != null) {
-                        SerializedData data = new SerializedData(arr);
+                        PooledSerializedData data = PooledSerializedData.obtain(arr);
                         unacceptedTermsOfService = TLRPC.TL_help_termsOfService.TLdeserialize(data, data.readInt32(false), false);
-                        data.cleanup();
+                        data.recycle();
                     }
                 }
             } catch (Exception e) {
@@ -292,9 +288,9 @@ public class UserConfig extends BaseController {
                         pendingAppUpdateInstallTime = preferences.getLong("appUpdateTime", System.currentTimeMillis());
                         byte[] arr = Base64.decode(update, Base64.DEFAULT);
                         if (arr != null) {
-                            SerializedData data = new SerializedData(arr);
+                            PooledSerializedData data = PooledSerializedData.obtain(arr);
                             pendingAppUpdate = (TLRPC.TL_help_appUpdate) TLRPC.help_AppUpdate.TLdeserialize(data, data.readInt32(false), false);
-                            data.cleanup();
+                            data.recycle();
                         }
                     }
                     if (pendingAppUpdate != null) {
@@ -328,9 +324,9 @@ public class UserConfig extends BaseController {
             if (string != null) {
                 byte[] bytes = Base64.decode(string, Base64.DEFAULT);
                 if (bytes != null) {
-                    SerializedData data = new SerializedData(bytes);
+                    PooledSerializedData data = PooledSerializedData.obtain(bytes);
                     tmpPassword = TLRPC.TL_account_tmpPassword.TLdeserialize(data, data.readInt32(false), false);
-                    data.cleanup();
+                    data.recycle();
                 }
             }
 
@@ -338,9 +334,9 @@ public class UserConfig extends BaseController {
             if (string != null) {
                 byte[] bytes = Base64.decode(string, Base64.DEFAULT);
                 if (bytes != null) {
-                    SerializedData data = new SerializedData(bytes);
+                    PooledSerializedData data = PooledSerializedData.obtain(bytes);
                     currentUser = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
-                    data.cleanup();
+                    data.recycle();
                 }
             }
             if (currentUser != null) {
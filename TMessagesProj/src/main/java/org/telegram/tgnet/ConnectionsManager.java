@@ -9,6 +9,7 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.SparseArray;
 
 import com.google.firebase.remoteconfig.FirebaseRemoteConfig;
 import com.google.firebase.remoteconfig.FirebaseRemoteConfigSettings;
@@ -53,6 +54,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionsManager extends BaseController {
 
@@ -235,9 +237,12 @@ public class ConnectionsManager extends BaseController {
                 FileLog.d("send request " + object + " with token = " + requestToken);
             }
             try {
-                NativeByteBuffer buffer = new NativeByteBuffer(object.getObjectSize());
+                int length = object.getObjectSize();
+                NativeByteBuffer buffer = new NativeByteBuffer(length);
                 object.serializeToStream(buffer);
                 object.freeResources();
+                serializedRequests.incrementAndGet();
+                serializedBytes.addAndGet(length);
 
                 native_sendRequest(currentAccount, buffer.address, (response, errorCode, errorText, networkType) -> {
                     try {
@@ -246,7 +251,10 @@ public class ConnectionsManager extends BaseController {
                         if (response != 0) {
                             NativeByteBuffer buff = NativeByteBuffer.wrap(response);
                             buff.reused = true;
-                            resp = object.deserializeResponse(buff, buff.readInt32(true), true);
+                            int constructor = buff.readInt32(true);
+                            long start = System.nanoTime();
+                            resp = object.deserializeResponse(buff, constructor, true);
+                            onResponseDeserialized(constructor, System.nanoTime() - start);
                         } else if (errorText != null) {
                             error = new TLRPC.TL_error();
                             error.code = errorCode;
@@ -261,14 +269,7 @@ public class ConnectionsManager extends BaseController {
                         if (BuildVars.LOGS_ENABLED) {
                             FileLog.d("java received " + resp + " error = " + error);
                         }
-                        final TLObject finalResponse = resp;
-                        final TLRPC.TL_error finalError = error;
-                        Utilities.stageQueue.postRunnable(() -> {
-                            onComplete.run(finalResponse, finalError);
-                            if (finalResponse != null) {
-                                finalResponse.freeResources();
-                            }
-                        });
+                        postResponse(onComplete, resp, error);
                     } catch (Exception e) {
                         FileLog.e(e);
                     }
@@ -280,6 +281,114 @@ public class ConnectionsManager extends BaseController {
         return requestToken;
     }
 
+    private static class PendingResponse {
+        RequestDelegate onComplete;
+        TLObject response;
+        TLRPC.TL_error error;
+        long time;
+    }
+
+    /**
+     * Responses are collected here by the network thread and delivered by a single stageQueue task,
+     * so a burst of responses costs one wakeup instead of one posted runnable each.
+     */
+    private static final Object responsesLock = new Object();
+    private static ArrayList<PendingResponse> pendingResponses = new ArrayList<>();
+    private static ArrayList<PendingResponse> deliveringResponses = new ArrayList<>();
+
+    private static final AtomicLong serializedRequests = new AtomicLong();
+    private static final AtomicLong serializedBytes = new AtomicLong();
+    private static final SparseArray<long[]> deserializeStats = new SparseArray<>();
+    private static volatile long deliveredResponses;
+    private static volatile long deliveryBatches;
+    private static volatile long totalCallbackDelay;
+    private static volatile long maxCallbackDelay;
+
+    private static final Runnable deliverResponsesRunnable = () -> {
+        ArrayList<PendingResponse> responses;
+        synchronized (responsesLock) {
+            responses = pendingResponses;
+            pendingResponses = deliveringResponses;
+            deliveringResponses = responses;
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (int a = 0, N = responses.size(); a < N; a++) {
+            PendingResponse pendingResponse = responses.get(a);
+            long delay = now - pendingResponse.time;
+            totalCallbackDelay += delay;
+            if (delay > maxCallbackDelay) {
+                maxCallbackDelay = delay;
+            }
+            pendingResponse.onComplete.run(pendingResponse.response, pendingResponse.error);
+            if (pendingResponse.response != null) {
+                pendingResponse.response.freeResources();
+            }
+        }
+        deliveredResponses += responses.size();
+        deliveryBatches++;
+        responses.clear();
+    };
+
+    private static void postResponse(RequestDelegate onComplete, TLObject response, TLRPC.TL_error error) {
+        PendingResponse pendingResponse = new PendingResponse();
+        pendingResponse.onComplete = onComplete;
+        pendingResponse.response = response;
+        pendingResponse.error = error;
+        pendingResponse.time = SystemClock.elapsedRealtime();
+        synchronized (responsesLock) {
+            pendingResponses.add(pendingResponse);
+        }
+        Utilities.stageQueue.postCoalescedRunnable(deliverResponsesRunnable, deliverResponsesRunnable, 0);
+    }
+
+    private static void onResponseDeserialized(int constructor, long time) {
+        synchronized (deserializeStats) {
+            long[] stats = deserializeStats.get(constructor);
+            if (stats == null) {
+                stats = new long[3];
+                deserializeStats.put(constructor, stats);
+            }
+            stats[0]++;
+            stats[1] += time;
+            if (time > stats[2]) {
+                stats[2] = time;
+            }
+        }
+    }
+
+    public static String getRequestStats() {
+        StringBuilder builder = new StringBuilder();
+        long requests = serializedRequests.get();
+        long bytes = serializedBytes.get();
+        builder.append("requests: serialized=").append(requests).append(" bytes=").append(bytes);
+        long responses = deliveredResponses;
+        long batches = deliveryBatches;
+        builder.append(" responses=").append(responses).append(" batches=").append(batches);
+        if (responses > 0) {
+            builder.append(" avgDelay=").append(totalCallbackDelay / responses).append("ms maxDelay=").append(maxCallbackDelay).append("ms");
+        }
+        synchronized (deserializeStats) {
+            for (int a = 0, N = deserializeStats.size(); a < N; a++) {
+                long[] stats = deserializeStats.valueAt(a);
+                builder.append("\n0x").append(Integer.toHexString(deserializeStats.keyAt(a)));
+                builder.append(": count=").append(stats[0]).append(" avg=").append(stats[1] / stats[0] / 1000).append("us max=").append(stats[2] / 1000).append("us");
+            }
+        }
+        return builder.toString();
+    }
+
+    public static void resetRequestStats() {
+        serializedRequests.set(0);
+        serializedBytes.set(0);
+        deliveredResponses = 0;
+        deliveryBatches = 0;
+        totalCallbackDelay = 0;
+        maxCallbackDelay = 0;
+        synchronized (deserializeStats) {
+            deserializeStats.clear();
+        }
+    }
+
     public void cancelRequest(int token, boolean notifyServer) {
         native_cancelRequest(currentAccount, token, notifyServer);
     }
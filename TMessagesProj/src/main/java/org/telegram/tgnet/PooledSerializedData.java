@@ -0,0 +1,337 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.tgnet;
+
+import org.telegram.messenger.BuildVars;
+import org.telegram.messenger.FileLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Drop-in replacement for {@link SerializedData} that writes straight into a reusable growable
+ * array and reads from a {@link ByteBuffer} or a wrapped array without copying the source.
+ * Instances are taken with one of the obtain methods and must be returned with {@link #recycle()}.
+ */
+public class PooledSerializedData extends AbstractSerializedData {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_POOL_SIZE = 8;
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+    private static final ArrayList<PooledSerializedData> pool = new ArrayList<>();
+
+    private byte[] outbuf = new byte[256];
+    private int outLength;
+    private ByteBuffer in;
+    private int position;
+
+    private PooledSerializedData() {
+
+    }
+
+    public static PooledSerializedData obtain() {
+        PooledSerializedData data = null;
+        synchronized (pool) {
+            if (!pool.isEmpty()) {
+                data = pool.remove(pool.size() - 1);
+            }
+        }
+        if (data == null) {
+            data = new PooledSerializedData();
+        }
+        return data;
+    }
+
+    public static PooledSerializedData obtain(byte[] data) {
+        return obtain(ByteBuffer.wrap(data));
+    }
+
+    public static PooledSerializedData obtain(ByteBuffer buffer) {
+        PooledSerializedData data = obtain();
+        data.in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return data;
+    }
+
+    /**
+     * Serializes the object once; the returned buffer already knows its size, so callers
+     * don't need a separate {@link TLObject#getObjectSize()} pass.
+     */
+    public static PooledSerializedData serialize(TLObject object) {
+        PooledSerializedData data = obtain();
+        object.serializeToStream(data);
+        return data;
+    }
+
+    public void recycle() {
+        in = null;
+        position = 0;
+        outLength = 0;
+        if (outbuf.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOL_SIZE) {
+                pool.add(this);
+            }
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        int required = outLength + count;
+        if (required > outbuf.length) {
+            byte[] newBuf = new byte[Math.max(required, outbuf.length * 2)];
+            System.arraycopy(outbuf, 0, newBuf, 0, outLength);
+            outbuf = newBuf;
+        }
+    }
+
+    public byte[] getBuffer() {
+        return outbuf;
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[outLength];
+        System.arraycopy(outbuf, 0, result, 0, outLength);
+        return result;
+    }
+
+    public void writeInt32(int x) {
+        ensureCapacity(4);
+        outbuf[outLength++] = (byte) x;
+        outbuf[outLength++] = (byte) (x >> 8);
+        outbuf[outLength++] = (byte) (x >> 16);
+        outbuf[outLength++] = (byte) (x >> 24);
+    }
+
+    public void writeInt64(long x) {
+        writeInt32((int) x);
+        writeInt32((int) (x >> 32));
+    }
+
+    public void writeBool(boolean value) {
+        if (value) {
+            writeInt32(0x997275b5);
+        } else {
+            writeInt32(0xbc799737);
+        }
+    }
+
+    public void writeBytes(byte[] b) {
+        writeBytes(b, 0, b.length);
+    }
+
+    public void writeBytes(byte[] b, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(b, offset, outbuf, outLength, count);
+        outLength += count;
+    }
+
+    public void writeByte(int i) {
+        writeByte((byte) i);
+    }
+
+    public void writeByte(byte b) {
+        ensureCapacity(1);
+        outbuf[outLength++] = b;
+    }
+
+    public void writeByteArray(byte[] b) {
+        writeByteArray(b, 0, b.length);
+    }
+
+    public void writeByteArray(byte[] b, int offset, int count) {
+        int i = writeByteArrayLength(count);
+        System.arraycopy(b, offset, outbuf, outLength, count);
+        outLength += count;
+        writeByteArrayPadding(count, i);
+    }
+
+    private int writeByteArrayLength(int count) {
+        ensureCapacity(count + 7);
+        if (count <= 253) {
+            outbuf[outLength++] = (byte) count;
+            return 1;
+        } else {
+            outbuf[outLength++] = (byte) 254;
+            outbuf[outLength++] = (byte) count;
+            outbuf[outLength++] = (byte) (count >> 8);
+            outbuf[outLength++] = (byte) (count >> 16);
+            return 4;
+        }
+    }
+
+    private void writeByteArrayPadding(int count, int i) {
+        while ((count + i) % 4 != 0) {
+            outbuf[outLength++] = 0;
+            i++;
+        }
+    }
+
+    public void writeString(String s) {
+        writeByteArray(s.getBytes(UTF8));
+    }
+
+    public void writeDouble(double d) {
+        writeInt64(Double.doubleToRawLongBits(d));
+    }
+
+    @Override
+    public void writeByteBuffer(NativeByteBuffer buffer) {
+        int count = buffer.limit();
+        int i = writeByteArrayLength(count);
+        buffer.rewind();
+        buffer.buffer.get(outbuf, outLength, count);
+        outLength += count;
+        writeByteArrayPadding(count, i);
+    }
+
+    public int length() {
+        return in != null ? in.limit() : outLength;
+    }
+
+    public void skip(int count) {
+        if (in != null) {
+            in.position(Math.min(in.limit(), in.position() + count));
+        }
+        position += count;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int remaining() {
+        return in != null ? in.remaining() : 0;
+    }
+
+    private boolean checkRemaining(int count, boolean exception, String error) {
+        if (in == null || in.remaining() < count) {
+            if (exception) {
+                throw new RuntimeException(error);
+            } else if (BuildVars.LOGS_ENABLED) {
+                FileLog.e(error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public int readInt32(boolean exception) {
+        if (!checkRemaining(4, exception, "read int32 error")) {
+            return 0;
+        }
+        position += 4;
+        return in.getInt();
+    }
+
+    public long readInt64(boolean exception) {
+        if (!checkRemaining(8, exception, "read int64 error")) {
+            return 0;
+        }
+        position += 8;
+        return in.getLong();
+    }
+
+    public boolean readBool(boolean exception) {
+        int consructor = readInt32(exception);
+        if (consructor == 0x997275b5) {
+            return true;
+        } else if (consructor == 0xbc799737) {
+            return false;
+        }
+        if (exception) {
+            throw new RuntimeException("Not bool value!");
+        } else {
+            if (BuildVars.LOGS_ENABLED) {
+                FileLog.e("Not bool value!");
+            }
+        }
+        return false;
+    }
+
+    public double readDouble(boolean exception) {
+        return Double.longBitsToDouble(readInt64(exception));
+    }
+
+    public void readBytes(byte[] b, boolean exception) {
+        if (!checkRemaining(b.length, exception, "read bytes error")) {
+            return;
+        }
+        in.get(b);
+        position += b.length;
+    }
+
+    public byte[] readData(int count, boolean exception) {
+        byte[] arr = new byte[count];
+        readBytes(arr, exception);
+        return arr;
+    }
+
+    private int readByteArrayLength(boolean exception, String error) {
+        if (!checkRemaining(1, exception, error)) {
+            return -1;
+        }
+        int sl = 1;
+        int l = in.get() & 0xff;
+        if (l >= 254) {
+            if (!checkRemaining(3, exception, error)) {
+                return -1;
+            }
+            l = (in.get() & 0xff) | ((in.get() & 0xff) << 8) | ((in.get() & 0xff) << 16);
+            sl = 4;
+        }
+        int padding = 0;
+        while ((l + sl + padding) % 4 != 0) {
+            padding++;
+        }
+        if (!checkRemaining(l + padding, exception, error)) {
+            return -1;
+        }
+        position += sl + l + padding;
+        return l | (padding << 24);
+    }
+
+    public String readString(boolean exception) {
+        int lengthAndPadding = readByteArrayLength(exception, "read string error");
+        if (lengthAndPadding < 0) {
+            return null;
+        }
+        int l = lengthAndPadding & 0xffffff;
+        int padding = lengthAndPadding >>> 24;
+        String result;
+        if (in.hasArray()) {
+            result = new String(in.array(), in.arrayOffset() + in.position(), l, UTF8);
+            in.position(in.position() + l);
+        } else {
+            byte[] b = new byte[l];
+            in.get(b);
+            result = new String(b, UTF8);
+        }
+        in.position(in.position() + padding);
+        return result;
+    }
+
+    public byte[] readByteArray(boolean exception) {
+        int lengthAndPadding = readByteArrayLength(exception, "read byte array error");
+        if (lengthAndPadding < 0) {
+            return null;
+        }
+        byte[] b = new byte[lengthAndPadding & 0xffffff];
+        in.get(b);
+        in.position(in.position() + (lengthAndPadding >>> 24));
+        return b;
+    }
+
+    @Override
+    public NativeByteBuffer readByteBuffer(boolean exception) {
+        return null;
+    }
+}
@@ -8,38 +8,82 @@
 
 package org.telegram.tgnet;
 
-import android.util.SparseArray;
+public class TLClassStore {
 
-import org.telegram.messenger.FileLog;
+    public interface Factory {
+        TLObject create();
+    }
 
-public class TLClassStore {
-    private SparseArray<Class> classStore;
+    private int[] constructors = new int[64];
+    private Factory[] factories = new Factory[64];
+    private int count;
 
     public TLClassStore() {
-        classStore = new SparseArray<>();
+        put(TLRPC.TL_error.constructor, TLRPC.TL_error::new);
+        put(TLRPC.TL_decryptedMessageService.constructor, TLRPC.TL_decryptedMessageService::new);
+        put(TLRPC.TL_decryptedMessage.constructor, TLRPC.TL_decryptedMessage::new);
+        put(TLRPC.TL_config.constructor, TLRPC.TL_config::new);
+        put(TLRPC.TL_decryptedMessageLayer.constructor, TLRPC.TL_decryptedMessageLayer::new);
+        put(TLRPC.TL_decryptedMessage_layer17.constructor, TLRPC.TL_decryptedMessage::new);
+        put(TLRPC.TL_decryptedMessage_layer45.constructor, TLRPC.TL_decryptedMessage_layer45::new);
+        put(TLRPC.TL_decryptedMessageService_layer8.constructor, TLRPC.TL_decryptedMessageService_layer8::new);
+        put(TLRPC.TL_decryptedMessage_layer8.constructor, TLRPC.TL_decryptedMessage_layer8::new);
+        put(TLRPC.TL_message_secret.constructor, TLRPC.TL_message_secret::new);
+        put(TLRPC.TL_message_secret_layer72.constructor, TLRPC.TL_message_secret_layer72::new);
+        put(TLRPC.TL_message_secret_old.constructor, TLRPC.TL_message_secret_old::new);
+        put(TLRPC.TL_messageEncryptedAction.constructor, TLRPC.TL_messageEncryptedAction::new);
+        put(TLRPC.TL_null.constructor, TLRPC.TL_null::new);
+
+        put(TLRPC.TL_updateShortChatMessage.constructor, TLRPC.TL_updateShortChatMessage::new);
+        put(TLRPC.TL_updates.constructor, TLRPC.TL_updates::new);
+        put(TLRPC.TL_updateShortMessage.constructor, TLRPC.TL_updateShortMessage::new);
+        put(TLRPC.TL_updateShort.constructor, TLRPC.TL_updateShort::new);
+        put(TLRPC.TL_updatesCombined.constructor, TLRPC.TL_updatesCombined::new);
+        put(TLRPC.TL_updateShortSentMessage.constructor, TLRPC.TL_updateShortSentMessage::new);
+        put(TLRPC.TL_updatesTooLong.constructor, TLRPC.TL_updatesTooLong::new);
+    }
+
+    private static int slot(int constructor, int mask) {
+        int h = constructor * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
 
-        classStore.put(TLRPC.TL_error.constructor, TLRPC.TL_error.class);
-        classStore.put(TLRPC.TL_decryptedMessageService.constructor, TLRPC.TL_decryptedMessageService.class);
-        classStore.put(TLRPC.TL_decryptedMessage.constructor, TLRPC.TL_decryptedMessage.class);
-        classStore.put(TLRPC.TL_config.constructor, TLRPC.TL_config.class);
-        classStore.put(TLRPC.TL_decryptedMessageLayer.constructor, TLRPC.TL_decryptedMessageLayer.class);
-        classStore.put(TLRPC.TL_decryptedMessage_layer17.constructor, TLRPC.TL_decryptedMessage.class);
-        classStore.put(TLRPC.TL_decryptedMessage_layer45.constructor, TLRPC.TL_decryptedMessage_layer45.class);
-        classStore.put(TLRPC.TL_decryptedMessageService_layer8.constructor, TLRPC.TL_decryptedMessageService_layer8.class);
-        classStore.put(TLRPC.TL_decryptedMessage_layer8.constructor, TLRPC.TL_decryptedMessage_layer8.class);
-        classStore.put(TLRPC.TL_message_secret.constructor, TLRPC.TL_message_secret.class);
-        classStore.put(TLRPC.TL_message_secret_layer72.constructor, TLRPC.TL_message_secret_layer72.class);
-        classStore.put(TLRPC.TL_message_secret_old.constructor, TLRPC.TL_message_secret_old.class);
-        classStore.put(TLRPC.TL_messageEncryptedAction.constructor, TLRPC.TL_messageEncryptedAction.class);
-        classStore.put(TLRPC.TL_null.constructor, TLRPC.TL_null.class);
+    private void put(int constructor, Factory factory) {
+        if ((count + 1) * 2 > constructors.length) {
+            int[] oldConstructors = constructors;
+            Factory[] oldFactories = factories;
+            constructors = new int[oldConstructors.length * 2];
+            factories = new Factory[oldConstructors.length * 2];
+            count = 0;
+            for (int a = 0; a < oldConstructors.length; a++) {
+                if (oldFactories[a] != null) {
+                    put(oldConstructors[a], oldFactories[a]);
+                }
+            }
+        }
+        int mask = constructors.length - 1;
+        int index = slot(constructor, mask);
+        while (factories[index] != null && constructors[index] != constructor) {
+            index = (index + 1) & mask;
+        }
+        if (factories[index] == null) {
+            count++;
+        }
+        constructors[index] = constructor;
+        factories[index] = factory;
+    }
 
-        classStore.put(TLRPC.TL_updateShortChatMessage.constructor, TLRPC.TL_updateShortChatMessage.class);
-        classStore.put(TLRPC.TL_updates.constructor, TLRPC.TL_updates.class);
-        classStore.put(TLRPC.TL_updateShortMessage.constructor, TLRPC.TL_updateShortMessage.class);
-        classStore.put(TLRPC.TL_updateShort.constructor, TLRPC.TL_updateShort.class);
-        classStore.put(TLRPC.TL_updatesCombined.constructor, TLRPC.TL_updatesCombined.class);
-        classStore.put(TLRPC.TL_updateShortSentMessage.constructor, TLRPC.TL_updateShortSentMessage.class);
-        classStore.put(TLRPC.TL_updatesTooLong.constructor, TLRPC.TL_updatesTooLong.class);
+    private Factory getFactory(int constructor) {
+        int mask = constructors.length - 1;
+        int index = slot(constructor, mask);
+        Factory factory;
+        while ((factory = factories[index]) != null) {
+            if (constructors[index] == constructor) {
+                return factory;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
     }
 
     static TLClassStore store = null;
@@ -51,16 +95,10 @@ public class TLClassStore {
         return store;
     }
 
-    public TLObject TLdeserialize(NativeByteBuffer stream, int constructor, boolean exception) {
-        Class objClass = classStore.get(constructor);
-        if (objClass != null) {
-            TLObject response;
-            try {
-                response = (TLObject) objClass.newInstance();
-            } catch (Throwable e) {
-                FileLog.e(e);
-                return null;
-            }
+    public TLObject TLdeserialize(AbstractSerializedData stream, int constructor, boolean exception) {
+        Factory factory = getFactory(constructor);
+        if (factory != null) {
+            TLObject response = factory.create();
             response.readParams(stream, exception);
             return response;
         }
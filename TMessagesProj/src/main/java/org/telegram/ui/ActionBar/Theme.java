@@ -56,6 +56,7 @@ import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SharedConfig;
+import org.telegram.messenger.TextLayoutCache;
 import org.telegram.messenger.Utilities;
 import org.telegram.messenger.time.SunDate;
 import org.telegram.ui.Components.CombinedDrawable;
@@ -67,9 +68,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
@@ -1073,9 +1081,98 @@ public class Theme {
 
     private static HashMap<String, Integer> defaultColors = new HashMap<>();
     private static HashMap<String, String> fallbackKeys = new HashMap<>();
-    private static HashMap<String, Integer> currentColors;
+    private static ThemeColors currentColors;
     private static HashMap<String, Integer> animatingColors;
 
+    private static final int COLOR_FLAG_DEFAULT = 1;
+    private static final int COLOR_FLAG_SERVICE = 2;
+
+    private static class ColorTable {
+        int[] colors;
+        byte[] flags;
+    }
+
+    /**
+     * Colors set by a theme. Keys that have an id are kept in arrays indexed by it, so a theme read
+     * from the cache is applied without building a map; other keys are kept by name.
+     */
+    private static class ThemeColors {
+        final int[] values = new int[colorKeys.length];
+        final boolean[] present = new boolean[colorKeys.length];
+        final HashMap<String, Integer> other = new HashMap<>();
+
+        Integer get(String key) {
+            Integer id = colorIds.get(key);
+            if (id != null) {
+                return present[id] ? values[id] : null;
+            }
+            return other.get(key);
+        }
+
+        boolean containsKey(String key) {
+            Integer id = colorIds.get(key);
+            if (id != null) {
+                return present[id];
+            }
+            return other.containsKey(key);
+        }
+
+        void put(String key, int color) {
+            Integer id = colorIds.get(key);
+            if (id != null) {
+                set(id, color);
+            } else {
+                other.put(key, color);
+            }
+        }
+
+        void set(int id, int color) {
+            values[id] = color;
+            present[id] = true;
+        }
+
+        void remove(String key) {
+            Integer id = colorIds.get(key);
+            if (id != null) {
+                present[id] = false;
+            } else {
+                other.remove(key);
+            }
+        }
+
+        void clear() {
+            Arrays.fill(present, false);
+            other.clear();
+        }
+
+        ThemeColors copy() {
+            ThemeColors colors = new ThemeColors();
+            System.arraycopy(values, 0, colors.values, 0, values.length);
+            System.arraycopy(present, 0, colors.present, 0, present.length);
+            colors.other.putAll(other);
+            return colors;
+        }
+
+        HashMap<String, Integer> toMap() {
+            HashMap<String, Integer> map = new HashMap<>(other);
+            for (int a = 0; a < present.length; a++) {
+                if (present[a]) {
+                    map.put(colorKeys[a], values[a]);
+                }
+            }
+            return map;
+        }
+    }
+
+    private static final HashMap<String, Integer> colorIds = new HashMap<>();
+    private static String[] colorKeys;
+    private static int serviceBackgroundId;
+    private static int serviceBackgroundSelectedId;
+    private static volatile ColorTable colorTable;
+    private static int colorKeysHash;
+    private static int[] animatingColorsTable;
+    private static boolean[] animatingColorsSet;
+
     static {
         defaultColors.put(key_dialogBackground, 0xffffffff);
         defaultColors.put(key_dialogBackgroundGray, 0xfff0f0f0);
@@ -1794,10 +1891,32 @@ public class Theme {
         fallbackKeys.put(key_chat_attachPermissionText, key_dialogTextBlack);
         fallbackKeys.put(key_chat_attachEmptyImage, key_emptyListPlaceholder);
 
+        ArrayList<String> keys = new ArrayList<>(defaultColors.keySet());
+        keys.add(key_chat_serviceBackground);
+        keys.add(key_chat_serviceBackgroundSelected);
+        for (HashMap.Entry<String, String> entry : fallbackKeys.entrySet()) {
+            keys.add(entry.getKey());
+            keys.add(entry.getValue());
+        }
+        for (int a = 0, N = keys.size(); a < N; a++) {
+            String key = keys.get(a);
+            if (!colorIds.containsKey(key)) {
+                colorIds.put(key, colorIds.size());
+            }
+        }
+        colorKeys = new String[colorIds.size()];
+        for (HashMap.Entry<String, Integer> entry : colorIds.entrySet()) {
+            colorKeys[entry.getValue()] = entry.getKey();
+        }
+        colorKeysHash = Arrays.hashCode(colorKeys);
+        serviceBackgroundId = getColorId(key_chat_serviceBackground);
+        serviceBackgroundSelectedId = getColorId(key_chat_serviceBackgroundSelected);
+
         themes = new ArrayList<>();
         otherThemes = new ArrayList<>();
         themesDict = new HashMap<>();
-        currentColors = new HashMap<>();
+        currentColors = new ThemeColors();
+        compileColors();
 
         ThemeInfo themeInfo = new ThemeInfo();
         themeInfo.name = "Default";
@@ -2495,6 +2614,7 @@ public class Theme {
                 themedWallpaper = null;
             }
             currentTheme = themeInfo;
+            compileColors();
             if (!nightTheme) {
                 currentDayTheme = currentTheme;
             }
@@ -2503,6 +2623,7 @@ public class Theme {
             applyDialogsTheme();
             applyProfileTheme();
             applyChatTheme(false);
+            TextLayoutCache.getInstance().clear();
             AndroidUtilities.runOnUIThread(() -> NotificationCenter.getGlobalInstance().postNotificationName(NotificationCenter.didSetNewTheme, nightTheme));
         } catch (Exception e) {
             FileLog.e(e);
@@ -2761,10 +2882,11 @@ public class Theme {
 
     public static void saveCurrentTheme(String name, boolean finalSave) {
         StringBuilder result = new StringBuilder();
-        for (HashMap.Entry<String, Integer> entry : currentColors.entrySet()) {
+        for (HashMap.Entry<String, Integer> entry : currentColors.toMap().entrySet()) {
             result.append(entry.getKey()).append("=").append(entry.getValue()).append("\n");
         }
         File file = new File(ApplicationLoader.getFilesDirFixed(), name);
+        getThemeCacheFile(file).delete();
         FileOutputStream stream = null;
         try {
             stream = new FileOutputStream(file);
@@ -2793,6 +2915,7 @@ public class Theme {
                 sortThemes();
             }
             currentTheme = newTheme;
+            compileColors();
             if (currentTheme != currentNightTheme) {
                 currentDayTheme = currentTheme;
             }
@@ -2834,15 +2957,203 @@ public class Theme {
         return file;
     }
 
-    private static HashMap<String, Integer> getThemeFileValues(File file, String assetName) {
+    private static final int THEME_CACHE_MAGIC = 0x43485441;
+    private static final int THEME_CACHE_VERSION = 3;
+    private static final int THEME_CACHE_HASH_SIZE = 16;
+    private static final int THEME_CACHE_STAMP_OFFSET = 4 + 4 + 4;
+    private static final int THEME_CACHE_HEADER_SIZE = THEME_CACHE_STAMP_OFFSET + 8 + 8 + 8 + THEME_CACHE_HASH_SIZE + 4 + 4 + 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static File getThemeCacheFile(File file) {
+        File dir = new File(ApplicationLoader.applicationContext.getCacheDir(), "themes");
+        dir.mkdirs();
+        return new File(dir, Utilities.MD5(file.getAbsolutePath()) + ".bin");
+    }
+
+    /**
+     * MD5 of the first length bytes of the theme file, i.e. of the colors part when the file has a
+     * wallpaper, or null if the file is shorter or can't be read.
+     */
+    private static byte[] getThemeFileHash(File file, long length) {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] bytes = new byte[8 * 1024];
+            long left = length;
+            while (left > 0) {
+                int read = stream.read(bytes, 0, (int) Math.min(bytes.length, left));
+                if (read < 0) {
+                    return null;
+                }
+                md.update(bytes, 0, read);
+                left -= read;
+            }
+            return md.digest();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the compiled form of a theme file written by {@link #saveThemeCache} straight into an id
+     * indexed table. While the theme file keeps the length and modification time stored in the cache
+     * nothing but the cache is read; otherwise the content hash of the theme file decides, and a match
+     * only refreshes the stored stamp. Returns null if the cache is missing or stale, or if the color
+     * ids were assigned differently.
+     */
+    private static ThemeColors loadThemeCache(File file) {
+        File cacheFile = getThemeCacheFile(file);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < THEME_CACHE_HEADER_SIZE || buffer.getInt() != THEME_CACHE_MAGIC || buffer.getInt() != THEME_CACHE_VERSION || buffer.getInt() != colorKeysHash) {
+                return null;
+            }
+            long length = file.length();
+            long lastModified = file.lastModified();
+            long cachedLength = buffer.getLong();
+            long cachedLastModified = buffer.getLong();
+            long hashedLength = buffer.getLong();
+            byte[] hash = new byte[THEME_CACHE_HASH_SIZE];
+            buffer.get(hash);
+            int wallpaperOffset = buffer.getInt();
+            if (cachedLength != length || cachedLastModified != lastModified) {
+                if (wallpaperOffset < 0 ? length != hashedLength : length < hashedLength) {
+                    return null;
+                }
+                if (!Arrays.equals(hash, getThemeFileHash(file, hashedLength))) {
+                    return null;
+                }
+                updateThemeCacheStamp(cacheFile, length, lastModified);
+            }
+            int knownCount = buffer.getInt();
+            int otherCount = buffer.getInt();
+            ThemeColors colors = new ThemeColors();
+            for (int a = 0; a < knownCount; a++) {
+                int id = buffer.getInt();
+                int color = buffer.getInt();
+                if (id < 0 || id >= colorKeys.length) {
+                    return null;
+                }
+                colors.set(id, color);
+            }
+            for (int a = 0; a < otherCount; a++) {
+                byte[] key = new byte[buffer.getShort() & 0xffff];
+                buffer.get(key);
+                colors.other.put(new String(key, UTF8), buffer.getInt());
+            }
+            themedWallpaperFileOffset = wallpaperOffset;
+            return colors;
+        } catch (Throwable e) {
+            FileLog.e(e);
+        }
+        return null;
+    }
+
+    private static void updateThemeCacheStamp(File cacheFile, long length, long lastModified) {
+        Utilities.globalQueue.postRunnable(() -> {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "rw")) {
+                ByteBuffer stamp = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                stamp.putLong(length);
+                stamp.putLong(lastModified);
+                randomAccessFile.seek(THEME_CACHE_STAMP_OFFSET);
+                randomAccessFile.write(stamp.array());
+            } catch (Throwable e) {
+                FileLog.e(e);
+            }
+        });
+    }
+
+    /**
+     * Writes the parsed theme as an id to color table, keys without an id are stored by name. The
+     * wallpaper stays in the theme file and is decoded from there only when it is needed.
+     */
+    private static void saveThemeCache(File file, ThemeColors colors, int wallpaperOffset) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        long hashedLength = wallpaperOffset >= 0 ? wallpaperOffset : length;
+        byte[] hash = getThemeFileHash(file, hashedLength);
+        if (hash == null) {
+            return;
+        }
+        ThemeColors values = colors.copy();
+        Utilities.globalQueue.postRunnable(() -> {
+            File cacheFile = getThemeCacheFile(file);
+            File tempFile = new File(cacheFile.getAbsolutePath() + ".temp");
+            try {
+                int size = THEME_CACHE_HEADER_SIZE;
+                int knownCount = 0;
+                for (int a = 0; a < values.present.length; a++) {
+                    if (values.present[a]) {
+                        knownCount++;
+                        size += 8;
+                    }
+                }
+                ArrayList<byte[]> otherKeys = new ArrayList<>();
+                ArrayList<Integer> otherColors = new ArrayList<>();
+                for (HashMap.Entry<String, Integer> entry : values.other.entrySet()) {
+                    byte[] key = entry.getKey().getBytes(UTF8);
+                    if (key.length > 0xffff) {
+                        continue;
+                    }
+                    otherKeys.add(key);
+                    otherColors.add(entry.getValue());
+                    size += 2 + key.length + 4;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(THEME_CACHE_MAGIC);
+                buffer.putInt(THEME_CACHE_VERSION);
+                buffer.putInt(colorKeysHash);
+                buffer.putLong(length);
+                buffer.putLong(lastModified);
+                buffer.putLong(hashedLength);
+                buffer.put(hash);
+                buffer.putInt(wallpaperOffset);
+                buffer.putInt(knownCount);
+                buffer.putInt(otherKeys.size());
+                for (int a = 0; a < values.present.length; a++) {
+                    if (values.present[a]) {
+                        buffer.putInt(a);
+                        buffer.putInt(values.values[a]);
+                    }
+                }
+                for (int a = 0, N = otherKeys.size(); a < N; a++) {
+                    byte[] key = otherKeys.get(a);
+                    buffer.putShort((short) key.length);
+                    buffer.put(key);
+                    buffer.putInt(otherColors.get(a));
+                }
+                try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+                    stream.write(buffer.array(), 0, buffer.position());
+                }
+                if (!tempFile.renameTo(cacheFile)) {
+                    tempFile.delete();
+                }
+            } catch (Throwable e) {
+                FileLog.e(e);
+                tempFile.delete();
+            }
+        });
+    }
+
+    private static ThemeColors getThemeFileValues(File file, String assetName) {
         FileInputStream stream = null;
-        HashMap<String, Integer> stringMap = new HashMap<>();
+        ThemeColors colors = new ThemeColors();
+        boolean parsed = false;
         try {
             byte[] bytes = new byte[1024];
             int currentPosition = 0;
             if (assetName != null) {
                 file = getAssetFile(assetName);
             }
+            ThemeColors cached = loadThemeCache(file);
+            if (cached != null) {
+                return cached;
+            }
             stream = new FileInputStream(file);
             int idx;
             int read;
@@ -2873,7 +3184,7 @@ public class Theme {
                                 } else {
                                     value = Utilities.parseInt(param);
                                 }
-                                stringMap.put(key, value);
+                                colors.put(key, value);
                             }
                         }
                         start += len;
@@ -2888,6 +3199,7 @@ public class Theme {
                     break;
                 }
             }
+            parsed = true;
         } catch (Throwable e) {
             FileLog.e(e);
         } finally {
@@ -2899,7 +3211,10 @@ public class Theme {
                 FileLog.e(e);
             }
         }
-        return stringMap;
+        if (parsed) {
+            saveThemeCache(file, colors, themedWallpaperFileOffset);
+        }
+        return colors;
     }
 
     public static void createCommonResources(Context context) {
@@ -3739,7 +4054,15 @@ public class Theme {
     }
 
     public static void setAnimatingColor(boolean animating) {
-        animatingColors = animating ? new HashMap<>() : null;
+        if (animating) {
+            animatingColorsTable = new int[colorKeys.length];
+            animatingColorsSet = new boolean[colorKeys.length];
+            animatingColors = new HashMap<>();
+        } else {
+            animatingColors = null;
+            animatingColorsSet = null;
+            animatingColorsTable = null;
+        }
     }
 
     public static boolean isAnimatingColor() {
@@ -3747,10 +4070,54 @@ public class Theme {
     }
 
     public static void setAnimatedColor(String key, int value) {
-        if (animatingColors == null) {
+        int id = getColorId(key);
+        if (id >= 0) {
+            setAnimatedColor(id, value);
+        } else if (animatingColors != null) {
+            animatingColors.put(key, value);
+        }
+    }
+
+    public static void setAnimatedColor(int id, int value) {
+        int[] table = animatingColorsTable;
+        boolean[] set = animatingColorsSet;
+        if (table == null || set == null) {
             return;
         }
-        animatingColors.put(key, value);
+        table[id] = value;
+        set[id] = true;
+    }
+
+    /**
+     * Dense index of a color key, or -1 for keys that have neither a default color nor a fallback.
+     * Draw paths can resolve the id once and then use {@link #getColor(int)}.
+     */
+    public static int getColorId(String key) {
+        Integer id = colorIds.get(key);
+        return id != null ? id : -1;
+    }
+
+    public static int getColor(int id) {
+        return getColor(id, null);
+    }
+
+    public static int getColor(int id, boolean[] isDefault) {
+        boolean[] set = animatingColorsSet;
+        if (set != null && set[id]) {
+            int[] table = animatingColorsTable;
+            if (table != null) {
+                return table[id];
+            }
+        }
+        ColorTable table = colorTable;
+        int flags = table.flags[id];
+        if ((flags & COLOR_FLAG_DEFAULT) != 0 && isDefault != null) {
+            isDefault[0] = true;
+        }
+        if ((flags & COLOR_FLAG_SERVICE) != 0) {
+            return id == serviceBackgroundId ? serviceMessageColor : serviceSelectedMessageColor;
+        }
+        return table.colors[id];
     }
 
     public static int getColor(String key) {
@@ -3758,12 +4125,20 @@ public class Theme {
     }
 
     public static int getColor(String key, boolean[] isDefault) {
+        Integer id = colorIds.get(key);
+        if (id != null) {
+            return getColor(id, isDefault);
+        }
         if (animatingColors != null) {
             Integer color = animatingColors.get(key);
             if (color != null) {
                 return color;
             }
         }
+        return resolveColor(key, isDefault);
+    }
+
+    private static int resolveColor(String key, boolean[] isDefault) {
         if (isCurrentThemeDefault()) {
             if (key.equals(key_chat_serviceBackground)) {
                 return serviceMessageColor;
@@ -3793,6 +4168,38 @@ public class Theme {
         return color;
     }
 
+    /**
+     * Resolves every known key against the current theme, its fallbacks and the defaults once, so
+     * that {@link #getColor(int)} is a plain array read. Must be called whenever currentColors or
+     * currentTheme change. The service background keys are only flagged, since their colors follow
+     * the wallpaper and change without a theme change.
+     */
+    private static void compileColors() {
+        ColorTable table = new ColorTable();
+        table.colors = new int[colorKeys.length];
+        table.flags = new byte[colorKeys.length];
+        boolean[] isDefault = new boolean[1];
+        boolean themeDefault = isCurrentThemeDefault();
+        ThemeColors themeColors = currentColors;
+        for (int a = 0; a < colorKeys.length; a++) {
+            isDefault[0] = false;
+            int color;
+            if (!themeDefault && themeColors.present[a]) {
+                color = themeColors.values[a];
+            } else {
+                color = resolveColor(colorKeys[a], isDefault);
+            }
+            if (isDefault[0]) {
+                table.flags[a] |= COLOR_FLAG_DEFAULT;
+            }
+            if ((a == serviceBackgroundId || a == serviceBackgroundSelectedId) && (isDefault[0] || isCurrentThemeDefault())) {
+                table.flags[a] |= COLOR_FLAG_SERVICE;
+            }
+            table.colors[a] = color;
+        }
+        colorTable = table;
+    }
+
     public static void setColor(String key, int color, boolean useDefault) {
         if (key.equals(key_chat_wallpaper)) {
             color = 0xff000000 | color;
@@ -3803,6 +4210,7 @@ public class Theme {
         } else {
             currentColors.put(key, color);
         }
+        compileColors();
 
         if (key.equals(key_chat_serviceBackground) || key.equals(key_chat_serviceBackgroundSelected)) {
             applyChatServiceMessageColor();
@@ -3813,6 +4221,7 @@ public class Theme {
 
     public static void setThemeWallpaper(String themeName, Bitmap bitmap, File path) {
         currentColors.remove(key_chat_wallpaper);
+        compileColors();
         MessagesController.getGlobalMainSettings().edit().remove("overrideThemeWallpaper").commit();
         if (bitmap != null) {
             themedWallpaper = new BitmapDrawable(bitmap);
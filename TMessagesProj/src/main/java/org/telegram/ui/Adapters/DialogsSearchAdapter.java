@@ -24,6 +24,7 @@ import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.ContactsController;
+import org.telegram.messenger.DialogsSearchIndex;
 import org.telegram.messenger.MediaDataController;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.MessageObject;
@@ -89,6 +90,7 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
     private class DialogSearchResult {
         public TLObject object;
         public int date;
+        public int rank;
         public CharSequence name;
     }
 
@@ -504,48 +506,68 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
                 ArrayList<TLRPC.User> encUsers = new ArrayList<>();
                 int resultCount = 0;
 
-                LongSparseArray<DialogSearchResult> dialogsResult = new LongSparseArray<>();
-                SQLiteCursor cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 600");
-                while (cursor.next()) {
-                    long id = cursor.longValue(0);
-                    DialogSearchResult dialogSearchResult = new DialogSearchResult();
-                    dialogSearchResult.date = cursor.intValue(1);
-                    dialogsResult.put(id, dialogSearchResult);
+                ArrayList<DialogsSearchIndex.Result> matches = DialogsSearchIndex.getInstance(currentAccount).search(search);
+                LongSparseArray<DialogsSearchIndex.Result> matchesByDid = new LongSparseArray<>(matches.size());
+                StringBuilder dids = new StringBuilder();
+                for (int a = 0, N = matches.size(); a < N; a++) {
+                    DialogsSearchIndex.Result match = matches.get(a);
+                    matchesByDid.put(match.did, match);
+                    if (dids.length() != 0) {
+                        dids.append(",");
+                    }
+                    dids.append(match.did);
+                }
 
-                    int lower_id = (int) id;
-                    int high_id = (int) (id >> 32);
-                    if (lower_id != 0) {
-                        if (high_id == 1) {
-                            if (dialogsType == 4) {
-                                continue;
-                            }
-                            if (dialogsType == 0 && !chatsToLoad.contains(lower_id)) {
-                                chatsToLoad.add(lower_id);
-                            }
-                        } else {
-                            if (lower_id > 0) {
-                                if (dialogsType == 4 && lower_id == selfUserId) {
+                LongSparseArray<DialogSearchResult> dialogsResult = new LongSparseArray<>();
+                SQLiteCursor cursor;
+                if (dids.length() != 0) {
+                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT did, date FROM dialogs WHERE did IN(%s)", dids));
+                    while (cursor.next()) {
+                        long id = cursor.longValue(0);
+                        DialogsSearchIndex.Result match = matchesByDid.get(id);
+                        if (match == null) {
+                            continue;
+                        }
+                        DialogSearchResult dialogSearchResult = new DialogSearchResult();
+                        dialogSearchResult.date = cursor.intValue(1);
+                        dialogSearchResult.rank = match.rank;
+                        dialogsResult.put(id, dialogSearchResult);
+
+                        int lower_id = (int) id;
+                        int high_id = (int) (id >> 32);
+                        if (lower_id != 0) {
+                            if (high_id == 1) {
+                                if (dialogsType == 4) {
                                     continue;
                                 }
-                                if (dialogsType != 2 && !usersToLoad.contains(lower_id)) {
-                                    usersToLoad.add(lower_id);
+                                if (dialogsType == 0 && !chatsToLoad.contains(lower_id)) {
+                                    chatsToLoad.add(lower_id);
                                 }
                             } else {
-                                if (dialogsType == 4) {
-                                    continue;
-                                }
-                                if (!chatsToLoad.contains(-lower_id)) {
-                                    chatsToLoad.add(-lower_id);
+                                if (lower_id > 0) {
+                                    if (dialogsType == 4 && lower_id == selfUserId) {
+                                        continue;
+                                    }
+                                    if (dialogsType != 2 && !usersToLoad.contains(lower_id)) {
+                                        usersToLoad.add(lower_id);
+                                    }
+                                } else {
+                                    if (dialogsType == 4) {
+                                        continue;
+                                    }
+                                    if (!chatsToLoad.contains(-lower_id)) {
+                                        chatsToLoad.add(-lower_id);
+                                    }
                                 }
                             }
-                        }
-                    } else if (dialogsType == 0 || dialogsType == 3) {
-                        if (!encryptedToLoad.contains(high_id)) {
-                            encryptedToLoad.add(high_id);
+                        } else if (dialogsType == 0 || dialogsType == 3) {
+                            if (!encryptedToLoad.contains(high_id)) {
+                                encryptedToLoad.add(high_id);
+                            }
                         }
                     }
+                    cursor.dispose();
                 }
-                cursor.dispose();
 
                 if (savedMessages.startsWith(search1)) {
                     TLRPC.User user = UserConfig.getInstance(currentAccount).getCurrentUser();
@@ -558,77 +580,54 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
                 }
 
                 if (!usersToLoad.isEmpty()) {
-                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status, name FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
+                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
                     while (cursor.next()) {
-                        String name = cursor.stringValue(2);
-                        String tName = LocaleController.getInstance().getTranslitString(name);
-                        if (name.equals(tName)) {
-                            tName = null;
-                        }
-                        String username = null;
-                        int usernamePos = name.lastIndexOf(";;;");
-                        if (usernamePos != -1) {
-                            username = name.substring(usernamePos + 3);
-                        }
-                        int found = 0;
-                        for (String q : search) {
-                            if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                found = 1;
-                            } else if (username != null && username.startsWith(q)) {
-                                found = 2;
+                        NativeByteBuffer data = cursor.byteBufferValue(0);
+                        if (data != null) {
+                            TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                            data.reuse();
+                            DialogSearchResult dialogSearchResult = dialogsResult.get((long) user.id);
+                            DialogsSearchIndex.Result match = matchesByDid.get((long) user.id);
+                            if (dialogSearchResult == null || match == null) {
+                                continue;
                             }
-                            if (found != 0) {
-                                NativeByteBuffer data = cursor.byteBufferValue(0);
-                                if (data != null) {
-                                    TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
-                                    data.reuse();
-                                    DialogSearchResult dialogSearchResult = dialogsResult.get((long) user.id);
-                                    if (user.status != null) {
-                                        user.status.expires = cursor.intValue(1);
-                                    }
-                                    if (found == 1) {
-                                        dialogSearchResult.name = AndroidUtilities.generateSearchName(user.first_name, user.last_name, q);
-                                    } else {
-                                        dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q);
-                                    }
-                                    dialogSearchResult.object = user;
-                                    resultCount++;
-                                }
-                                break;
+                            if (user.status != null) {
+                                user.status.expires = cursor.intValue(1);
                             }
+                            dialogSearchResult.name = generateUserSearchName(user, match);
+                            dialogSearchResult.object = user;
+                            resultCount++;
                         }
                     }
                     cursor.dispose();
                 }
 
                 if (!chatsToLoad.isEmpty()) {
-                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, name FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
+                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
                     while (cursor.next()) {
-                        String name = cursor.stringValue(1);
-                        String tName = LocaleController.getInstance().getTranslitString(name);
-                        if (name.equals(tName)) {
-                            tName = null;
-                        }
-                        for (String q : search) {
-                            if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                NativeByteBuffer data = cursor.byteBufferValue(0);
-                                if (data != null) {
-                                    TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
-                                    data.reuse();
-                                    if (!(chat == null || chat.deactivated || ChatObject.isChannel(chat) && ChatObject.isNotInChat(chat))) {
-                                        long dialog_id;
-                                        if (chat.id > 0) {
-                                            dialog_id = -chat.id;
-                                        } else {
-                                            dialog_id = AndroidUtilities.makeBroadcastId(chat.id);
-                                        }
-                                        DialogSearchResult dialogSearchResult = dialogsResult.get(dialog_id);
-                                        dialogSearchResult.name = AndroidUtilities.generateSearchName(chat.title, null, q);
-                                        dialogSearchResult.object = chat;
-                                        resultCount++;
-                                    }
+                        NativeByteBuffer data = cursor.byteBufferValue(0);
+                        if (data != null) {
+                            TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
+                            data.reuse();
+                            if (!(chat == null || chat.deactivated || ChatObject.isChannel(chat) && ChatObject.isNotInChat(chat))) {
+                                long dialog_id;
+                                if (chat.id > 0) {
+                                    dialog_id = -chat.id;
+                                } else {
+                                    dialog_id = AndroidUtilities.makeBroadcastId(chat.id);
+                                }
+                                DialogSearchResult dialogSearchResult = dialogsResult.get(dialog_id);
+                                DialogsSearchIndex.Result match = matchesByDid.get(dialog_id);
+                                if (dialogSearchResult == null || match == null) {
+                                    continue;
                                 }
-                                break;
+                                if (match.rank == DialogsSearchIndex.RANK_USERNAME && !TextUtils.isEmpty(chat.username)) {
+                                    dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + chat.username, null, "@" + match.query);
+                                } else {
+                                    dialogSearchResult.name = AndroidUtilities.generateSearchName(chat.title, null, match.query);
+                                }
+                                dialogSearchResult.object = chat;
+                                resultCount++;
                             }
                         }
                     }
@@ -636,80 +635,60 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
                 }
 
                 if (!encryptedToLoad.isEmpty()) {
-                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT q.data, u.name, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash, q.in_seq_no, q.admin_id, q.mtproto_seq FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", TextUtils.join(",", encryptedToLoad)));
+                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT q.data, q.uid, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash, q.in_seq_no, q.admin_id, q.mtproto_seq FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", TextUtils.join(",", encryptedToLoad)));
                     while (cursor.next()) {
-                        String name = cursor.stringValue(1);
-                        String tName = LocaleController.getInstance().getTranslitString(name);
-                        if (name.equals(tName)) {
-                            tName = null;
+                        TLRPC.EncryptedChat chat = null;
+                        TLRPC.User user = null;
+                        NativeByteBuffer data = cursor.byteBufferValue(0);
+                        if (data != null) {
+                            chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
+                            data.reuse();
                         }
-
-                        String username = null;
-                        int usernamePos = name.lastIndexOf(";;;");
-                        if (usernamePos != -1) {
-                            username = name.substring(usernamePos + 2);
+                        data = cursor.byteBufferValue(6);
+                        if (data != null) {
+                            user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                            data.reuse();
                         }
-                        int found = 0;
-                        for (int a = 0; a < search.length; a++) {
-                            String q = search[a];
-                            if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                found = 1;
-                            } else if (username != null && username.startsWith(q)) {
-                                found = 2;
+                        if (chat != null && user != null) {
+                            DialogSearchResult dialogSearchResult = dialogsResult.get((long) chat.id << 32);
+                            DialogsSearchIndex.Result match = matchesByDid.get((long) chat.id << 32);
+                            if (dialogSearchResult == null || match == null) {
+                                continue;
                             }
+                            chat.user_id = cursor.intValue(2);
+                            chat.a_or_b = cursor.byteArrayValue(3);
+                            chat.auth_key = cursor.byteArrayValue(4);
+                            chat.ttl = cursor.intValue(5);
+                            chat.layer = cursor.intValue(8);
+                            chat.seq_in = cursor.intValue(9);
+                            chat.seq_out = cursor.intValue(10);
+                            int use_count = cursor.intValue(11);
+                            chat.key_use_count_in = (short) (use_count >> 16);
+                            chat.key_use_count_out = (short) (use_count);
+                            chat.exchange_id = cursor.longValue(12);
+                            chat.key_create_date = cursor.intValue(13);
+                            chat.future_key_fingerprint = cursor.longValue(14);
+                            chat.future_auth_key = cursor.byteArrayValue(15);
+                            chat.key_hash = cursor.byteArrayValue(16);
+                            chat.in_seq_no = cursor.intValue(17);
+                            int admin_id = cursor.intValue(18);
+                            if (admin_id != 0) {
+                                chat.admin_id = admin_id;
+                            }
+                            chat.mtproto_seq = cursor.intValue(19);
 
-                            if (found != 0) {
-                                TLRPC.EncryptedChat chat = null;
-                                TLRPC.User user = null;
-                                NativeByteBuffer data = cursor.byteBufferValue(0);
-                                if (data != null) {
-                                    chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
-                                    data.reuse();
-                                }
-                                data = cursor.byteBufferValue(6);
-                                if (data != null) {
-                                    user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
-                                    data.reuse();
-                                }
-                                if (chat != null && user != null) {
-                                    DialogSearchResult dialogSearchResult = dialogsResult.get((long) chat.id << 32);
-                                    chat.user_id = cursor.intValue(2);
-                                    chat.a_or_b = cursor.byteArrayValue(3);
-                                    chat.auth_key = cursor.byteArrayValue(4);
-                                    chat.ttl = cursor.intValue(5);
-                                    chat.layer = cursor.intValue(8);
-                                    chat.seq_in = cursor.intValue(9);
-                                    chat.seq_out = cursor.intValue(10);
-                                    int use_count = cursor.intValue(11);
-                                    chat.key_use_count_in = (short) (use_count >> 16);
-                                    chat.key_use_count_out = (short) (use_count);
-                                    chat.exchange_id = cursor.longValue(12);
-                                    chat.key_create_date = cursor.intValue(13);
-                                    chat.future_key_fingerprint = cursor.longValue(14);
-                                    chat.future_auth_key = cursor.byteArrayValue(15);
-                                    chat.key_hash = cursor.byteArrayValue(16);
-                                    chat.in_seq_no = cursor.intValue(17);
-                                    int admin_id = cursor.intValue(18);
-                                    if (admin_id != 0) {
-                                        chat.admin_id = admin_id;
-                                    }
-                                    chat.mtproto_seq = cursor.intValue(19);
-
-                                    if (user.status != null) {
-                                        user.status.expires = cursor.intValue(7);
-                                    }
-                                    if (found == 1) {
-                                        dialogSearchResult.name = new SpannableStringBuilder(ContactsController.formatName(user.first_name, user.last_name));
-                                        ((SpannableStringBuilder) dialogSearchResult.name).setSpan(new ForegroundColorSpan(Theme.getColor(Theme.key_chats_secretName)), 0, dialogSearchResult.name.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                                    } else {
-                                        dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q);
-                                    }
-                                    dialogSearchResult.object = chat;
-                                    encUsers.add(user);
-                                    resultCount++;
-                                }
-                                break;
+                            if (user.status != null) {
+                                user.status.expires = cursor.intValue(7);
+                            }
+                            if (match.rank != DialogsSearchIndex.RANK_USERNAME || TextUtils.isEmpty(user.username)) {
+                                dialogSearchResult.name = new SpannableStringBuilder(ContactsController.formatName(user.first_name, user.last_name));
+                                ((SpannableStringBuilder) dialogSearchResult.name).setSpan(new ForegroundColorSpan(Theme.getColor(Theme.key_chats_secretName)), 0, dialogSearchResult.name.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                            } else {
+                                dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + match.query);
                             }
+                            dialogSearchResult.object = chat;
+                            encUsers.add(user);
+                            resultCount++;
                         }
                     }
                     cursor.dispose();
@@ -724,6 +703,9 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
                 }
 
                 Collections.sort(searchResults, (lhs, rhs) -> {
+                    if (lhs.rank != rhs.rank) {
+                        return lhs.rank - rhs.rank;
+                    }
                     if (lhs.date < rhs.date) {
                         return 1;
                     } else if (lhs.date > rhs.date) {
@@ -742,49 +724,43 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
                 }
 
                 if (dialogsType != 2) {
-                    cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized("SELECT u.data, u.status, u.name, u.uid FROM users as u INNER JOIN contacts as c ON u.uid = c.uid");
-                    while (cursor.next()) {
-                        int uid = cursor.intValue(3);
-                        if (dialogsResult.indexOfKey((long) uid) >= 0) {
-                            continue;
-                        }
-                        String name = cursor.stringValue(2);
-                        String tName = LocaleController.getInstance().getTranslitString(name);
-                        if (name.equals(tName)) {
-                            tName = null;
-                        }
-                        String username = null;
-                        int usernamePos = name.lastIndexOf(";;;");
-                        if (usernamePos != -1) {
-                            username = name.substring(usernamePos + 3);
+                    ArrayList<Integer> contactsToLoad = new ArrayList<>();
+                    for (int a = 0, N = matches.size(); a < N; a++) {
+                        long did = matches.get(a).did;
+                        if (did > 0 && did <= Integer.MAX_VALUE && dialogsResult.indexOfKey(did) < 0) {
+                            contactsToLoad.add((int) did);
                         }
-                        int found = 0;
-                        for (String q : search) {
-                            if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                found = 1;
-                            } else if (username != null && username.startsWith(q)) {
-                                found = 2;
-                            }
-                            if (found != 0) {
-                                NativeByteBuffer data = cursor.byteBufferValue(0);
-                                if (data != null) {
-                                    TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
-                                    data.reuse();
-                                    if (user.status != null) {
-                                        user.status.expires = cursor.intValue(1);
-                                    }
-                                    if (found == 1) {
-                                        resultArrayNames.add(AndroidUtilities.generateSearchName(user.first_name, user.last_name, q));
-                                    } else {
-                                        resultArrayNames.add(AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q));
-                                    }
-                                    resultArray.add(user);
+                    }
+                    if (!contactsToLoad.isEmpty()) {
+                        ArrayList<DialogSearchResult> contactsResults = new ArrayList<>();
+                        cursor = MessagesStorage.getInstance(currentAccount).getDatabase().queryFinalized(String.format(Locale.US, "SELECT u.data, u.status FROM users as u INNER JOIN contacts as c ON u.uid = c.uid WHERE u.uid IN(%s)", TextUtils.join(",", contactsToLoad)));
+                        while (cursor.next()) {
+                            NativeByteBuffer data = cursor.byteBufferValue(0);
+                            if (data != null) {
+                                TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                                data.reuse();
+                                DialogsSearchIndex.Result match = matchesByDid.get((long) user.id);
+                                if (match == null) {
+                                    continue;
                                 }
-                                break;
+                                if (user.status != null) {
+                                    user.status.expires = cursor.intValue(1);
+                                }
+                                DialogSearchResult dialogSearchResult = new DialogSearchResult();
+                                dialogSearchResult.rank = match.rank;
+                                dialogSearchResult.name = generateUserSearchName(user, match);
+                                dialogSearchResult.object = user;
+                                contactsResults.add(dialogSearchResult);
                             }
                         }
+                        cursor.dispose();
+                        Collections.sort(contactsResults, (lhs, rhs) -> lhs.rank - rhs.rank);
+                        for (int a = 0; a < contactsResults.size(); a++) {
+                            DialogSearchResult dialogSearchResult = contactsResults.get(a);
+                            resultArray.add(dialogSearchResult.object);
+                            resultArrayNames.add(dialogSearchResult.name);
+                        }
                     }
-                    cursor.dispose();
                 }
 
                 updateSearchResults(resultArray, resultArrayNames, encUsers, searchId);
@@ -794,6 +770,13 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
         });
     }
 
+    private CharSequence generateUserSearchName(TLRPC.User user, DialogsSearchIndex.Result match) {
+        if (match.rank == DialogsSearchIndex.RANK_USERNAME && !TextUtils.isEmpty(user.username)) {
+            return AndroidUtilities.generateSearchName("@" + user.username, null, "@" + match.query);
+        }
+        return AndroidUtilities.generateSearchName(user.first_name, user.last_name, match.query);
+    }
+
     private void updateSearchResults(final ArrayList<TLObject> result, final ArrayList<CharSequence> names, final ArrayList<TLRPC.User> encUsers, final int searchId) {
         AndroidUtilities.runOnUIThread(() -> {
             if (searchId != lastSearchId) {
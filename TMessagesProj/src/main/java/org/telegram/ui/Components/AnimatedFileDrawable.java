@@ -21,6 +21,7 @@ import android.graphics.drawable.Animatable;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.view.View;
 
 import org.telegram.messenger.AndroidUtilities;
@@ -31,9 +32,8 @@ import org.telegram.messenger.FileLog;
 import org.telegram.tgnet.TLRPC;
 
 import java.io.File;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
 
@@ -109,7 +109,83 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
 
     private boolean useSharedQueue;
 
-    private static ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadPoolExecutor.DiscardPolicy());
+    private static final int OFFSCREEN_TIMEOUT = 500;
+
+    private long lastDrawTime;
+    private volatile int decodedFramesCount;
+    private volatile int skippedFramesCount;
+    private volatile int deadlineMissesCount;
+
+    private static final DecodeScheduler scheduler = new DecodeScheduler(Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)));
+    private static final AtomicLong totalDecodedFrames = new AtomicLong();
+    private static final AtomicLong totalSkippedFrames = new AtomicLong();
+    private static final AtomicLong totalDeadlineMisses = new AtomicLong();
+
+    /**
+     * Runs the frame decoding of all drawables that don't need a thread of their own on a fixed set of
+     * threads. A task becomes ready at the time its frame may be decoded and ready tasks are taken in order
+     * of the time their frame is due, so short-interval animations are not starved by long ones.
+     */
+    private static class DecodeScheduler {
+
+        private final PriorityQueue<DecodeTask> waitingTasks = new PriorityQueue<>(16, (t1, t2) -> Long.compare(t1.runAt, t2.runAt));
+        private final PriorityQueue<DecodeTask> readyTasks = new PriorityQueue<>(16, (t1, t2) -> Long.compare(t1.deadline, t2.deadline));
+
+        private DecodeScheduler(int threadsCount) {
+            for (int a = 0; a < threadsCount; a++) {
+                Thread thread = new Thread(this::runLoop, "animatedFileDecoder" + a);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void schedule(DecodeTask task) {
+            synchronized (this) {
+                waitingTasks.add(task);
+                notify();
+            }
+        }
+
+        private void runLoop() {
+            while (true) {
+                DecodeTask task;
+                synchronized (this) {
+                    while (true) {
+                        long now = SystemClock.uptimeMillis();
+                        DecodeTask waitingTask;
+                        while ((waitingTask = waitingTasks.peek()) != null && waitingTask.runAt <= now) {
+                            readyTasks.add(waitingTasks.poll());
+                        }
+                        task = readyTasks.poll();
+                        if (task != null) {
+                            if (!readyTasks.isEmpty()) {
+                                notify();
+                            }
+                            break;
+                        }
+                        try {
+                            if (waitingTask == null) {
+                                wait();
+                            } else {
+                                wait(waitingTask.runAt - now);
+                            }
+                        } catch (InterruptedException ignore) {
+
+                        }
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    FileLog.e(e);
+                }
+            }
+        }
+    }
+
+    public static String getDecodeStats() {
+        return "animated files: decoded=" + totalDecodedFrames.get() + " skipped=" + totalSkippedFrames.get() + " deadlineMisses=" + totalDeadlineMisses.get();
+    }
 
     protected final Runnable mInvalidateTask = () -> {
         if (secondParentView != null) {
@@ -201,7 +277,11 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
     };
 
-    private Runnable loadFrameRunnable = new Runnable() {
+    private class DecodeTask implements Runnable {
+
+        private long runAt;
+        private long deadline;
+
         @Override
         public void run() {
             if (!isRecycled) {
@@ -244,6 +324,12 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                                 lastTimeStamp = metaData[3];
                             }
                             backgroundBitmapTime = metaData[3];
+                            decodedFramesCount++;
+                            totalDecodedFrames.incrementAndGet();
+                            if (SystemClock.uptimeMillis() > deadline) {
+                                deadlineMissesCount++;
+                                totalDeadlineMisses.incrementAndGet();
+                            }
                         }
                     } else {
                         AndroidUtilities.runOnUIThread(uiRunnableNoFrame);
@@ -255,7 +341,9 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             }
             AndroidUtilities.runOnUIThread(uiRunnable);
         }
-    };
+    }
+
+    private final DecodeTask loadFrameRunnable = new DecodeTask();
 
     private final Runnable mStartTask = () -> {
         if (secondParentView != null) {
@@ -435,12 +523,20 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         if (loadFrameTask != null || nativePtr == 0 && decoderCreated || destroyWhenDone || !isRunning && (!decodeSingleFrame || decodeSingleFrame && singleFrameDecoded)) {
             return;
         }
+        if (isRunning && renderingBitmap != null && nextRenderingBitmap != null && SystemClock.uptimeMillis() - lastDrawTime > OFFSCREEN_TIMEOUT) {
+            skippedFramesCount++;
+            totalSkippedFrames.incrementAndGet();
+            return;
+        }
         long ms = 0;
         if (lastFrameDecodeTime != 0) {
             ms = Math.min(invalidateAfter, Math.max(0, invalidateAfter - (System.currentTimeMillis() - lastFrameDecodeTime)));
         }
-        if (useSharedQueue) {
-            executor.schedule(loadFrameTask = loadFrameRunnable, ms, TimeUnit.MILLISECONDS);
+        loadFrameRunnable.runAt = SystemClock.uptimeMillis() + ms;
+        loadFrameRunnable.deadline = loadFrameRunnable.runAt + invalidateAfter;
+        if (useSharedQueue || stream == null) {
+            loadFrameTask = loadFrameRunnable;
+            scheduler.schedule(loadFrameRunnable);
         } else {
             if (decodeQueue == null) {
                 decodeQueue = new DispatchQueue("decodeQueue" + this);
@@ -493,6 +589,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             return;
         }
         long now = System.currentTimeMillis();
+        lastDrawTime = SystemClock.uptimeMillis();
         if (isRunning) {
             if (renderingBitmap == null && nextRenderingBitmap == null) {
                 scheduleNextGetFrame();
@@ -504,6 +601,9 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 nextRenderingBitmapTime = 0;
                 nextRenderingShader = null;
                 lastFrameTime = now;
+                scheduleNextGetFrame();
+            } else {
+                scheduleNextGetFrame();
             }
         } else if (!isRunning && decodeSingleFrame && Math.abs(now - lastFrameTime) >= invalidateAfter && nextRenderingBitmap != null) {
             renderingBitmap = nextRenderingBitmap;
@@ -632,6 +732,18 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         return metaData[2];
     }
 
+    public int getDecodedFramesCount() {
+        return decodedFramesCount;
+    }
+
+    public int getSkippedFramesCount() {
+        return skippedFramesCount;
+    }
+
+    public int getDeadlineMissesCount() {
+        return deadlineMissesCount;
+    }
+
     public AnimatedFileDrawable makeCopy() {
         AnimatedFileDrawable drawable;
         if (stream != null) {
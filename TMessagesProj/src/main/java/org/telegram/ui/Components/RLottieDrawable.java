@@ -29,11 +29,12 @@ import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RLottieDrawable extends BitmapDrawable implements Animatable {
 
@@ -67,8 +68,8 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
     private volatile Bitmap backgroundBitmap;
 
     private boolean destroyWhenDone;
-    private boolean decodeSingleFrame;
-    private boolean singleFrameDecoded;
+    private volatile boolean decodeSingleFrame;
+    private volatile boolean singleFrameDecoded;
     private boolean forceFrameRedraw;
     private boolean applyingLayerColors;
     private int currentFrame;
@@ -88,8 +89,40 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
     private static byte[] buffer = new byte[4096];
 
     private ArrayList<WeakReference<View>> parentViews = new ArrayList<>();
-    private static ExecutorService loadFrameRunnableQueue = Executors.newCachedThreadPool();
-    private static ThreadPoolExecutor lottieCacheGenerateQueue;
+
+    private static final int PRIORITY_HIDDEN = 0;
+    private static final int PRIORITY_SINGLE_FRAME = 1;
+    private static final int PRIORITY_VISIBLE = 2;
+
+    private static final int DECODE_THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final int CACHE_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, 2));
+    private static final AtomicLong frameTasksCount = new AtomicLong();
+    private static final ThreadPoolExecutor loadFrameRunnableQueue = createQueue(DECODE_THREADS, new PriorityBlockingQueue<>());
+    private static final ThreadPoolExecutor lottieCacheGenerateQueue = createQueue(CACHE_THREADS, new LinkedBlockingQueue<>());
+
+    private static final AtomicLong framesDecoded = new AtomicLong();
+    private static final AtomicLong framesDropped = new AtomicLong();
+    private static final AtomicLong totalDecodeTime = new AtomicLong();
+    private static final AtomicLong totalWaitTime = new AtomicLong();
+    private static volatile long maxDecodeTime;
+
+    private static ThreadPoolExecutor createQueue(int threads, BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static String getDecodeStats() {
+        long decoded = framesDecoded.get();
+        StringBuilder builder = new StringBuilder();
+        builder.append("lottie: threads=").append(DECODE_THREADS).append(" queued=").append(loadFrameRunnableQueue.getQueue().size());
+        builder.append(" decoded=").append(decoded).append(" dropped=").append(framesDropped.get());
+        if (decoded > 0) {
+            builder.append(" avgDecode=").append(totalDecodeTime.get() / decoded / 1000).append("us maxDecode=").append(maxDecodeTime / 1000).append("us");
+            builder.append(" avgWait=").append(totalWaitTime.get() / decoded / 1000).append("us");
+        }
+        return builder.toString();
+    }
 
     private Runnable uiRunnableNoFrame = new Runnable() {
         @Override
@@ -184,7 +217,20 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
         }
     }
 
-    private Runnable loadFrameRunnable = new Runnable() {
+    private class LoadFrameTask implements Runnable, Comparable<LoadFrameTask> {
+
+        private int priority;
+        private long sequence;
+        private long scheduleTime;
+
+        @Override
+        public int compareTo(LoadFrameTask task) {
+            if (priority != task.priority) {
+                return task.priority - priority;
+            }
+            return Long.compare(sequence, task.sequence);
+        }
+
         @Override
         public void run() {
             if (isRecycled) {
@@ -194,6 +240,11 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
                 uiHandler.post(uiRunnableNoFrame);
                 return;
             }
+            if (!isRunning && (!decodeSingleFrame || singleFrameDecoded)) {
+                framesDropped.incrementAndGet();
+                uiHandler.post(uiRunnableNoFrame);
+                return;
+            }
             if (backgroundBitmap == null) {
                 try {
                     backgroundBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
@@ -218,7 +269,15 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
                 } catch (Exception ignore) {
 
                 }
+                long start = System.nanoTime();
                 getFrame(nativePtr, currentFrame, backgroundBitmap, width, height, backgroundBitmap.getRowBytes());
+                long decodeTime = System.nanoTime() - start;
+                framesDecoded.incrementAndGet();
+                totalDecodeTime.addAndGet(decodeTime);
+                totalWaitTime.addAndGet(start - scheduleTime);
+                if (decodeTime > maxDecodeTime) {
+                    maxDecodeTime = decodeTime;
+                }
                 if (metaData[2] != 0) {
                     needGenerateCache = true;
                     metaData[2] = 0;
@@ -247,7 +306,9 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
             //FileLog.d("frame time = " + (SystemClock.uptimeMillis() - time));
             uiHandler.post(uiRunnable);
         }
-    };
+    }
+
+    private final LoadFrameTask loadFrameRunnable = new LoadFrameTask();
 
     public RLottieDrawable(File file, int w, int h, boolean precache, boolean limitFps) {
         this(file, w, h, precache, limitFps, null);
@@ -260,9 +321,6 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
         getPaint().setFlags(Paint.FILTER_BITMAP_FLAG);
 
         nativePtr = create(file.getAbsolutePath(), metaData, precache, colorReplacement);
-        if (precache && lottieCacheGenerateQueue == null) {
-            lottieCacheGenerateQueue = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
-        }
         if (nativePtr == 0) {
             file.delete();
         }
@@ -354,6 +412,20 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
         return false;
     }
 
+    private boolean hasVisibleParentView() {
+        Callback callback = getCallback();
+        if (callback instanceof View && ((View) callback).isShown()) {
+            return true;
+        }
+        for (int a = 0, N = parentViews.size(); a < N; a++) {
+            View view = parentViews.get(a).get();
+            if (view != null && view.isShown()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void invalidateInternal() {
         for (int a = 0, N = parentViews.size(); a < N; a++) {
             View view = parentViews.get(a).get();
@@ -482,6 +554,13 @@ public class RLottieDrawable extends BitmapDrawable implements Animatable {
             pendingColorUpdates.putAll(newColorUpdates);
             newColorUpdates.clear();
         }
+        if (isRunning) {
+            loadFrameRunnable.priority = hasVisibleParentView() ? PRIORITY_VISIBLE : PRIORITY_HIDDEN;
+        } else {
+            loadFrameRunnable.priority = PRIORITY_SINGLE_FRAME;
+        }
+        loadFrameRunnable.sequence = frameTasksCount.incrementAndGet();
+        loadFrameRunnable.scheduleTime = System.nanoTime();
         loadFrameRunnableQueue.execute(loadFrameTask = loadFrameRunnable);
         return true;
     }
@@ -66,6 +66,7 @@ import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.R;
 import org.telegram.messenger.SharedConfig;
+import org.telegram.messenger.TextLayoutCache;
 import org.telegram.messenger.UserConfig;
 import org.telegram.messenger.Utilities;
 import org.telegram.messenger.time.SunDate;
@@ -248,6 +249,7 @@ public class ThemeActivity extends BaseFragment implements NotificationCenter.No
                     editor.putInt("fons_size", SharedConfig.fontSize);
                     editor.commit();
                     Theme.chat_msgTextPaint.setTextSize(AndroidUtilities.dp(SharedConfig.fontSize));
+                    TextLayoutCache.getInstance().clear();
                     int firstVisPos = layoutManager.findFirstVisibleItemPosition();
                     View firstVisView = firstVisPos != RecyclerView.NO_POSITION ? layoutManager.findViewByPosition(firstVisPos) : null;
                     int top = firstVisView != null ? firstVisView.getTop() : 0;
@@ -0,0 +1,119 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContactsSectionIndexTest {
+
+    @Test
+    public void testSectionsOrder() {
+        ContactsSectionIndex<String> index = new ContactsSectionIndex<>();
+        index.add(ContactsSectionIndex.createEntry(1, "bob", "bob", "B"));
+        index.add(ContactsSectionIndex.createEntry(2, "123", "123", ""));
+        index.add(ContactsSectionIndex.createEntry(3, "alice", "alice", "A"));
+        index.add(ContactsSectionIndex.createEntry(4, "hidden", "hidden", null));
+
+        assertEquals(4, index.size());
+        assertEquals(list("123", "alice", "bob", "hidden"), index.getItems());
+        assertEquals(list("A", "B", "#"), index.getSortedSections());
+        assertEquals(list("123"), index.getSectionsDict().get("#"));
+        assertFalse(index.getSectionsDict().containsKey(null));
+    }
+
+    @Test
+    public void testAddReplacesSameId() {
+        ContactsSectionIndex<String> index = new ContactsSectionIndex<>();
+        index.add(ContactsSectionIndex.createEntry(1, "alice", "alice", "A"));
+        index.add(ContactsSectionIndex.createEntry(2, "bob", "bob", "B"));
+        ContactsSectionIndex.Entry<String> entry = ContactsSectionIndex.createEntry(1, "carol", "carol", "C");
+        index.add(entry);
+
+        assertEquals(2, index.size());
+        assertSame(entry, index.get(1));
+        assertEquals(list("bob", "carol"), index.getItems());
+        assertEquals(list("B", "C"), index.getSortedSections());
+        assertNull(index.getSectionsDict().get("A"));
+
+        assertTrue(index.remove(1));
+        assertFalse(index.remove(1));
+        assertFalse(index.contains(1));
+        assertEquals(list("B"), index.getSortedSections());
+    }
+
+    @Test
+    public void testEqualKeysKeepCreationOrder() {
+        ContactsSectionIndex.Entry<String> first = ContactsSectionIndex.createEntry(1, "first", "same", "S");
+        ContactsSectionIndex.Entry<String> second = ContactsSectionIndex.createEntry(2, "second", "same", "S");
+        ContactsSectionIndex<String> index = new ContactsSectionIndex<>();
+        index.add(second);
+        index.add(first);
+        assertEquals(list("first", "second"), index.getItems());
+        assertEquals(list("first", "second"), index.getSectionsDict().get("S"));
+    }
+
+    @Test
+    public void testIncrementalMatchesBuild() {
+        Random random = new Random(20190701);
+        String letters = "abcxyz1";
+        for (int round = 0; round < 100; round++) {
+            ContactsSectionIndex<String> index = new ContactsSectionIndex<>();
+            HashMap<Integer, ContactsSectionIndex.Entry<String>> current = new HashMap<>();
+            for (int a = 0; a < 200; a++) {
+                int id = random.nextInt(50);
+                if (random.nextInt(4) == 0) {
+                    assertEquals(current.remove(id) != null, index.remove(id));
+                } else {
+                    String key = "" + letters.charAt(random.nextInt(letters.length())) + letters.charAt(random.nextInt(letters.length()));
+                    String section = key.charAt(0) == '1' ? "" : random.nextInt(10) == 0 ? null : key.substring(0, 1).toUpperCase();
+                    ContactsSectionIndex.Entry<String> entry = ContactsSectionIndex.createEntry(id, key + id, key, section);
+                    current.put(id, entry);
+                    index.add(entry);
+                }
+            }
+            ContactsSectionIndex<String> built = new ContactsSectionIndex<>();
+            built.build(new ArrayList<>(current.values()));
+
+            assertEquals(built.size(), index.size());
+            assertEquals(built.getItems(), index.getItems());
+            assertEquals(built.getSortedSections(), index.getSortedSections());
+            assertEquals(built.getSectionsDict(), index.getSectionsDict());
+        }
+    }
+
+    @Test
+    public void testBuildKeepsFirstEntryOfId() {
+        ArrayList<ContactsSectionIndex.Entry<String>> entries = new ArrayList<>();
+        entries.add(ContactsSectionIndex.createEntry(1, "zed", "zed", "Z"));
+        entries.add(ContactsSectionIndex.createEntry(1, "amy", "amy", "A"));
+        ContactsSectionIndex<String> index = new ContactsSectionIndex<>();
+        index.build(entries);
+        assertEquals(1, index.size());
+        assertEquals(list("amy"), index.getItems());
+        assertEquals(list("A"), index.getSortedSections());
+    }
+
+    private static ArrayList<String> list(String... values) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+}
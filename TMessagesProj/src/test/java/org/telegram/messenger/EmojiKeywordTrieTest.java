@@ -0,0 +1,122 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmojiKeywordTrieTest {
+
+    @Test
+    public void testPrefixAndFullMatch() {
+        EmojiKeywordTrie.Builder builder = new EmojiKeywordTrie.Builder();
+        builder.add("cat", "🐱");
+        builder.add("car", "🚗");
+        builder.add("cart", "🛒");
+        builder.add("dog", "🐶");
+        EmojiKeywordTrie trie = builder.build();
+        assertEquals(4, trie.size());
+
+        assertEquals("car=🚗 cart=🛒 cat=🐱", search(trie, "ca", false));
+        assertEquals("car=🚗", search(trie, "car", true));
+        assertEquals("", search(trie, "ca", true));
+        assertEquals("", search(trie, "cow", false));
+        assertEquals("car=🚗 cart=🛒 cat=🐱 dog=🐶", search(trie, "", false));
+    }
+
+    @Test
+    public void testVariationSelectorsAndDuplicates() {
+        EmojiKeywordTrie.Builder builder = new EmojiKeywordTrie.Builder();
+        builder.add("heart", "❤️");
+        builder.add("heart", "❤");
+        builder.add("love", "❤️");
+        EmojiKeywordTrie trie = builder.build();
+        assertEquals(2, trie.size());
+        assertEquals("heart=❤", search(trie, "heart", false));
+
+        ArrayList<MediaDataController.KeywordResult> result = new ArrayList<>();
+        HashSet<String> added = new HashSet<>();
+        trie.search("heart", false, result, added);
+        trie.search("love", false, result, added);
+        assertEquals(1, result.size());
+    }
+
+    @Test
+    public void testBuilderFromTrie() {
+        EmojiKeywordTrie.Builder builder = new EmojiKeywordTrie.Builder();
+        builder.add("sun", "☀");
+        builder.add("sunny", "🌞");
+        EmojiKeywordTrie.Builder copy = new EmojiKeywordTrie.Builder(builder.build());
+        copy.remove("sun", "☀️");
+        copy.add("moon", "🌙");
+        EmojiKeywordTrie trie = copy.build();
+        assertEquals("sunny=🌞", search(trie, "su", false));
+        assertEquals("moon=🌙", search(trie, "m", false));
+    }
+
+    @Test
+    public void testRandomKeywords() {
+        Random random = new Random(20190701);
+        String letters = "abcй";
+        for (int round = 0; round < 100; round++) {
+            TreeMap<String, String> model = new TreeMap<>();
+            EmojiKeywordTrie.Builder builder = new EmojiKeywordTrie.Builder();
+            for (int a = 0, N = random.nextInt(60); a < N; a++) {
+                String keyword = randomString(random, letters, 1 + random.nextInt(5));
+                String value = "e" + a;
+                if (!model.containsKey(keyword)) {
+                    model.put(keyword, value);
+                    builder.add(keyword, value);
+                }
+            }
+            EmojiKeywordTrie trie = builder.build();
+            for (int a = 0; a < 50; a++) {
+                String key = randomString(random, letters, random.nextInt(4));
+                boolean fullMatch = random.nextBoolean();
+                StringBuilder expected = new StringBuilder();
+                for (String keyword : model.keySet()) {
+                    if (fullMatch ? keyword.equals(key) : keyword.startsWith(key)) {
+                        if (expected.length() > 0) {
+                            expected.append(' ');
+                        }
+                        expected.append(keyword).append('=').append(model.get(keyword));
+                    }
+                }
+                assertEquals(expected.toString(), search(trie, key, fullMatch));
+            }
+        }
+    }
+
+    private static String randomString(Random random, String letters, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int a = 0; a < length; a++) {
+            builder.append(letters.charAt(random.nextInt(letters.length())));
+        }
+        return builder.toString();
+    }
+
+    private static String search(EmojiKeywordTrie trie, String key, boolean fullMatch) {
+        ArrayList<MediaDataController.KeywordResult> result = new ArrayList<>();
+        trie.search(key, fullMatch, result, new HashSet<>());
+        StringBuilder builder = new StringBuilder();
+        for (int a = 0; a < result.size(); a++) {
+            if (a != 0) {
+                builder.append(' ');
+            }
+            builder.append(result.get(a).keyword).append('=').append(result.get(a).emoji);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link LinkTokenizer} with the patterns MessageObject.addUrlsByPattern used before it.
+ * The patterns are compiled with UNICODE_CHARACTER_CLASS, which gives \d, \w, \s and \b the same
+ * Unicode meaning they have in the ICU engine on Android; the corpus avoids the few characters
+ * (vertical tab, form feed, NEL, combining marks) the two engines still treat differently.
+ */
+public class LinkTokenizerTest {
+
+    private static final Pattern URL_PATTERN = Pattern.compile("(^|\\s)/[a-zA-Z@\\d_]{1,255}|(^|\\s|\\()@[a-zA-Z\\d_]{1,32}|(^|\\s|\\()#[\\w.]+|(^|\\s)\\$[A-Z]{3,8}([ ,.]|$)", Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern INSTAGRAM_URL_PATTERN = Pattern.compile("(^|\\s|\\()@[a-zA-Z\\d_.]{1,32}|(^|\\s|\\()#[\\w.]+", Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern VIDEO_TIME_URL_PATTERN = Pattern.compile("\\b(?:(\\d{1,2}):)?(\\d{1,3}):([0-5][0-9])\\b", Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final String[] CORPUS = new String[]{
+            "",
+            "/start",
+            "/start@bot and /help",
+            "hello /start",
+            "a/start",
+            "@durov",
+            "(@durov)",
+            "mail@durov.ru",
+            "@abcdefghijklmnopqrstuvwxyz0123456789",
+            "#hashtag #другой #tag.with.dots",
+            "(#tag) x#tag",
+            "#",
+            "@",
+            "$USD",
+            "$USD, $EUR. $GBP $ABCDEFGHI",
+            "price $US and $usd",
+            "$ABC\n",
+            "$ABC\r\n",
+            "$ABC\nmore",
+            "1:23",
+            "at 12:34 and 1:02:03",
+            "99:59:59 123:45 1234:56 12:60",
+            "x1:23 1:23x 1:23:4",
+            "٣:٤٥",
+            "café 10:00",
+            "line\n@user\t#tag /cmd $EUR",
+            "@user.name and @user_name",
+    };
+
+    private static final String ALPHABET = "aZz09_.@#/$:( )\n\tAUSDé٣ж ,";
+
+    @Test
+    public void testCorpus() {
+        for (String text : CORPUS) {
+            compare(text);
+        }
+    }
+
+    @Test
+    public void testRandomInput() {
+        Random random = new Random(20190701);
+        StringBuilder builder = new StringBuilder();
+        for (int a = 0; a < 20000; a++) {
+            builder.setLength(0);
+            int length = random.nextInt(40);
+            for (int b = 0; b < length; b++) {
+                builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            compare(builder.toString());
+        }
+    }
+
+    @Test
+    public void testTimecodeGroups() {
+        LinkTokenizer tokenizer = new LinkTokenizer("see 1:02:03 and 4:05", LinkTokenizer.MODE_TIMECODE);
+        assertTrue(tokenizer.find());
+        assertEquals(4, tokenizer.start(1));
+        assertEquals(5, tokenizer.end(1));
+        assertEquals(6, tokenizer.start(2));
+        assertEquals(9, tokenizer.start(3));
+        assertTrue(tokenizer.find());
+        assertEquals(-1, tokenizer.start(1));
+        assertEquals(16, tokenizer.start(2));
+        assertFalse(tokenizer.find());
+    }
+
+    private static void compare(String text) {
+        assertEquals(text, run(URL_PATTERN, text, false), run(new LinkTokenizer(text, LinkTokenizer.MODE_DEFAULT), false));
+        assertEquals(text, run(INSTAGRAM_URL_PATTERN, text, false), run(new LinkTokenizer(text, LinkTokenizer.MODE_INSTAGRAM), false));
+        assertEquals(text, run(VIDEO_TIME_URL_PATTERN, text, true), run(new LinkTokenizer(text, LinkTokenizer.MODE_TIMECODE), true));
+    }
+
+    private static ArrayList<Integer> run(Pattern pattern, String text, boolean groups) {
+        ArrayList<Integer> result = new ArrayList<>();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            result.add(matcher.start());
+            result.add(matcher.end());
+            if (groups) {
+                for (int a = 1; a <= 3; a++) {
+                    result.add(matcher.start(a));
+                    result.add(matcher.end(a));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ArrayList<Integer> run(LinkTokenizer tokenizer, boolean groups) {
+        ArrayList<Integer> result = new ArrayList<>();
+        while (tokenizer.find()) {
+            result.add(tokenizer.start());
+            result.add(tokenizer.end());
+            if (groups) {
+                for (int a = 1; a <= 3; a++) {
+                    result.add(tokenizer.start(a));
+                    result.add(tokenizer.end(a));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.tgnet.TLRPC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PeerCacheTest {
+
+    private PeerCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PeerCache();
+    }
+
+    @Test
+    public void testUsers() {
+        assertNull(cache.getUser(1));
+        TLRPC.User user = createUser(1);
+        cache.putUser(user);
+        assertSame(user, cache.getUser(1));
+        assertTrue(cache.containsUser(1));
+        assertFalse(cache.isMissingUser(1));
+        cache.removeUser(1);
+        assertFalse(cache.containsUser(1));
+        assertEquals("users=0 chats=0 hits=1 misses=1", cache.getStats());
+    }
+
+    @Test
+    public void testMissingEntries() {
+        cache.putMissingUser(1);
+        assertTrue(cache.containsUser(1));
+        assertTrue(cache.isMissingUser(1));
+        assertNull(cache.getUser(1));
+
+        TLRPC.User user = createUser(1);
+        cache.putUser(user);
+        assertFalse(cache.isMissingUser(1));
+        cache.putMissingUser(1);
+        assertSame(user, cache.getUser(1));
+
+        cache.putMissingChat(2);
+        assertTrue(cache.isMissingChat(2));
+        assertNull(cache.getChat(2));
+        TLRPC.Chat chat = new TLRPC.TL_chat();
+        chat.id = 2;
+        cache.putChat(chat);
+        assertSame(chat, cache.getChat(2));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        for (int a = 1; a <= 2000; a++) {
+            cache.putUser(createUser(a));
+        }
+        cache.getUser(1);
+        cache.putUser(createUser(2001));
+        assertTrue(cache.containsUser(1));
+        assertFalse(cache.containsUser(2));
+        assertTrue(cache.containsUser(2001));
+
+        cache.clear();
+        assertFalse(cache.containsUser(1));
+    }
+
+    private static TLRPC.User createUser(int id) {
+        TLRPC.User user = new TLRPC.TL_user();
+        user.id = id;
+        return user;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This is the source code of Telegram for Android v. 5.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2018.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RangeSetTest {
+
+    @Test
+    public void testAddMergesTouchingRanges() {
+        RangeSet set = new RangeSet();
+        assertTrue(set.isEmpty());
+        assertEquals(-1, set.getFirstStart());
+        assertEquals(0, set.add(10, 20));
+        assertEquals(1, set.add(30, 40));
+        assertEquals(0, set.add(0, 5));
+        assertEquals(3, set.getCount());
+        assertEquals(1, set.add(20, 30));
+        assertEquals(2, set.getCount());
+        assertEquals(0, set.getFirstStart());
+        assertEquals(35, set.getTotalLength());
+        assertEquals(-1, set.add(12, 38));
+        assertEquals(-1, set.add(7, 7));
+        assertEquals(0, set.add(3, 50));
+        assertEquals(1, set.getCount());
+        assertEquals(50, set.getTotalLength());
+    }
+
+    @Test
+    public void testSubtractSplitsRanges() {
+        RangeSet set = new RangeSet();
+        set.add(0, 100);
+        assertEquals(0, set.subtract(40, 60));
+        assertEquals(2, set.getCount());
+        assertTrue(set.contains(39));
+        assertFalse(set.contains(40));
+        assertFalse(set.contains(59));
+        assertTrue(set.contains(60));
+        assertEquals(-1, set.subtract(40, 60));
+        assertEquals(-1, set.subtract(100, 200));
+        assertEquals(0, set.subtract(0, 10));
+        assertEquals(10, set.getFirstStart());
+        assertEquals(0, set.subtract(0, 200));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testFindOffset() {
+        RangeSet set = new RangeSet();
+        set.add(10, 20);
+        set.add(30, 40);
+        assertEquals(10, set.findOffset(0));
+        assertEquals(15, set.findOffset(15));
+        assertEquals(30, set.findOffset(20));
+        assertEquals(39, set.findOffset(39));
+        assertEquals(-1, set.findOffset(40));
+    }
+
+    @Test
+    public void testWriteTo() {
+        RangeSet set = new RangeSet();
+        set.add(10, 20);
+        set.add(30, 40);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * 4);
+        set.writeTo(buffer, 0);
+        assertEquals(2, buffer.getInt(0));
+        assertEquals(10, buffer.getInt(4));
+        assertEquals(20, buffer.getInt(8));
+        assertEquals(30, buffer.getInt(12));
+        assertEquals(40, buffer.getInt(16));
+
+        int index = set.add(50, 60);
+        buffer.putInt(4, -1);
+        set.writeTo(buffer, index);
+        assertEquals(3, buffer.getInt(0));
+        assertEquals(-1, buffer.getInt(4));
+        assertEquals(50, buffer.getInt(20));
+        assertEquals(60, buffer.getInt(24));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(20190701);
+        for (int round = 0; round < 200; round++) {
+            RangeSet set = new RangeSet();
+            boolean[] model = new boolean[256];
+            for (int a = 0; a < 100; a++) {
+                int start = random.nextInt(model.length);
+                int end = Math.min(model.length, start + random.nextInt(32));
+                boolean add = random.nextInt(3) != 0;
+                if (add) {
+                    set.add(start, end);
+                } else {
+                    set.subtract(start, end);
+                }
+                for (int b = start; b < end; b++) {
+                    model[b] = add;
+                }
+                check(set, model);
+            }
+        }
+    }
+
+    private static void check(RangeSet set, boolean[] model) {
+        int count = 0;
+        int length = 0;
+        int first = -1;
+        for (int a = 0; a < model.length; a++) {
+            assertEquals(model[a], set.contains(a));
+            if (model[a]) {
+                length++;
+                if (a == 0 || !model[a - 1]) {
+                    count++;
+                }
+                if (first < 0) {
+                    first = a;
+                }
+            }
+            int next = -1;
+            for (int b = a; b < model.length; b++) {
+                if (model[b]) {
+                    next = b;
+                    break;
+                }
+            }
+            assertEquals(next, set.findOffset(a));
+        }
+        assertEquals(count, set.getCount());
+        assertEquals(length, set.getTotalLength());
+        assertEquals(first, set.getFirstStart());
+    }
+}